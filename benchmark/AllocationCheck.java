@@ -0,0 +1,77 @@
+package benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import demo.SceneContainer;
+import raytracing.Scene;
+
+/**
+ * Checks that rendering allocates nothing once warmed up.
+ * Each scene first renders many small tiles, so the thread context grows
+ * to the scene depth and the JIT compiles the render path, then one tile
+ * is rendered between two reads of the allocation counter of the thread;
+ * any byte allocated fails the check with exit status 1. The bytes allocated by reading the counter
+ * itself are measured first and subtracted.
+ * Run with {@code make check}.
+ *
+ * @author KepsyIn
+ */
+public class AllocationCheck {
+
+	private static final int WIDTH = 200;
+	private static final int HEIGHT = 150;
+	private static final int SAMPLES = 2;
+	// Small tiles rendered first, enough for the JIT to compile renderTile
+	private static final int WARMUP_TILES = 2000;
+	private static final int WARMUP_TILE_SIZE = 8;
+	private static final int INSTANCES = 100;
+
+	/**
+	 * Runs the check on the demo scenes and an instanced scene.
+	 *
+	 * @param args Unused
+	 */
+	public static void main(String[] args) {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)
+				|| !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+			System.err.println("allocation counters not supported by this JVM");
+			System.exit(2);
+		}
+		com.sun.management.ThreadMXBean counters = (com.sun.management.ThreadMXBean) threads;
+		counters.setThreadAllocatedMemoryEnabled(true);
+
+		int failures = 0;
+		for (int n = 1; n <= SceneContainer.getTotalScenes(); n++) {
+			failures += check("scene " + n, SceneContainer.buildScene(n), counters);
+		}
+		failures += check("instances " + INSTANCES, SceneContainer.buildInstances(INSTANCES, 1), counters);
+
+		if (failures > 0) {
+			System.err.println("> " + failures + " scenes allocate while rendering");
+			System.exit(1);
+		}
+		System.out.println("> no allocation while rendering");
+	}
+
+	private static int check(String name, Scene scene, com.sun.management.ThreadMXBean counters) {
+		byte[] buffer = new byte[3 * WIDTH * HEIGHT];
+		for (int i = 0; i < WARMUP_TILES; i++) {
+			int x = (i * WARMUP_TILE_SIZE) % (WIDTH - WARMUP_TILE_SIZE);
+			int y = (i / (WIDTH / WARMUP_TILE_SIZE) * WARMUP_TILE_SIZE) % (HEIGHT - WARMUP_TILE_SIZE);
+			scene.renderTile(buffer, WIDTH, HEIGHT, SAMPLES, x, y, x + WARMUP_TILE_SIZE, y + WARMUP_TILE_SIZE);
+		}
+
+		long thread = Thread.currentThread().getId();
+		long before = counters.getThreadAllocatedBytes(thread);
+		long overhead = counters.getThreadAllocatedBytes(thread) - before;
+
+		before = counters.getThreadAllocatedBytes(thread);
+		scene.renderTile(buffer, WIDTH, HEIGHT, SAMPLES, 0, 0, WIDTH, HEIGHT);
+		long allocated = counters.getThreadAllocatedBytes(thread) - before - overhead;
+
+		int rays = WIDTH * HEIGHT * SAMPLES * SAMPLES;
+		System.out.printf("%-16s %8d primary rays %8d bytes allocated%n", name, rays, allocated);
+		return allocated > 0 ? 1 : 0;
+	}
+}
@@ -0,0 +1,220 @@
+package benchmark;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Minimal micro-benchmark harness in the spirit of JMH.
+ * Each benchmark runs warmup iterations, then measurement iterations of a
+ * fixed duration, and reports the average time per operation with a 99.9%
+ * confidence error and the bytes allocated per operation.
+ * Results are written as JSON in the layout used by JMH, so runs can be
+ * compared with the usual tools.
+ *
+ * @author KepsyIn
+ */
+public class Benchmark {
+
+	private static final double Z_999 = 3.291;
+
+	private final int warmupIterations;
+	private final int measurementIterations;
+	private final long iterationNanos;
+
+	private final List<Result> results = new ArrayList<>();
+
+	// keeps the results alive so the JIT cannot drop the measured code
+	private static volatile long sink;
+
+	/**
+	 * Score of one benchmark.
+	 */
+	public static class Result {
+		public final String name;
+		public final Map<String, String> params;
+		public final double score;
+		public final double scoreError;
+		public final double[] rawData;
+		public final double allocatedBytesPerOp;
+
+		Result(String name, Map<String, String> params, double score, double scoreError, double[] rawData, double allocatedBytesPerOp) {
+			this.name = name;
+			this.params = params;
+			this.score = score;
+			this.scoreError = scoreError;
+			this.rawData = rawData;
+			this.allocatedBytesPerOp = allocatedBytesPerOp;
+		}
+	}
+
+	/**
+	 * Creates a harness.
+	 *
+	 * @param warmupIterations Number of discarded iterations
+	 * @param measurementIterations Number of measured iterations
+	 * @param iterationMillis Duration of one iteration
+	 */
+	public Benchmark(int warmupIterations, int measurementIterations, long iterationMillis) {
+		this.warmupIterations = warmupIterations;
+		this.measurementIterations = measurementIterations;
+		this.iterationNanos = iterationMillis * 1_000_000L;
+	}
+
+	/**
+	 * Measures an operation.
+	 * The operation is invoked in a loop until the iteration time is spent;
+	 * its return value is consumed so the work cannot be optimized away.
+	 *
+	 * @param name Benchmark name
+	 * @param params Parameters shown in the report
+	 * @param opsPerInvocation Number of operations done by one invocation
+	 * @param operation The measured code
+	 * @return The result, also kept for {@link #writeJson(Writer)}
+	 */
+	public Result run(String name, Map<String, String> params, int opsPerInvocation, LongSupplier operation) {
+		for (int i = 0; i < warmupIterations; i++) {
+			iteration(opsPerInvocation, operation);
+		}
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long allocatedBefore = allocatedBytes(threads);
+		long totalOps = 0;
+
+		double[] raw = new double[measurementIterations];
+		for (int i = 0; i < measurementIterations; i++) {
+			long[] measure = iteration(opsPerInvocation, operation);
+			raw[i] = (double) measure[0] / measure[1];
+			totalOps += measure[1];
+		}
+
+		long allocatedAfter = allocatedBytes(threads);
+		double allocated = allocatedBefore < 0 || totalOps == 0 ? Double.NaN : (double) (allocatedAfter - allocatedBefore) / totalOps;
+
+		double mean = 0;
+		for (double value : raw) {
+			mean += value;
+		}
+		mean /= raw.length;
+
+		double error = Double.NaN;
+		if (raw.length > 1) {
+			double variance = 0;
+			for (double value : raw) {
+				variance += (value - mean) * (value - mean);
+			}
+			variance /= raw.length - 1;
+			error = Z_999 * Math.sqrt(variance / raw.length);
+		}
+
+		Result result = new Result(name, new LinkedHashMap<>(params), mean, error, raw, allocated);
+		results.add(result);
+		return result;
+	}
+
+	/**
+	 * Runs one iteration.
+	 *
+	 * @return {elapsed nanoseconds, operations}
+	 */
+	private long[] iteration(int opsPerInvocation, LongSupplier operation) {
+		long consumed = 0;
+		long ops = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			consumed += operation.getAsLong();
+			ops += opsPerInvocation;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < iterationNanos);
+		sink += consumed;
+		return new long[]{elapsed, ops};
+	}
+
+	private static long allocatedBytes(ThreadMXBean threads) {
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+			if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+				return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the results measured so far.
+	 *
+	 * @return The results in execution order
+	 */
+	public List<Result> getResults() {
+		return results;
+	}
+
+	/**
+	 * Formats a result as a single report line.
+	 *
+	 * @param result The result
+	 * @return The formatted line
+	 */
+	public static String format(Result result) {
+		return String.format("%-40s %-28s %14.1f +- %10.1f ns/op %12.1f B/op",
+				result.name, result.params.toString(), result.score, result.scoreError, result.allocatedBytesPerOp);
+	}
+
+	/**
+	 * Writes all results as a JSON array, using the JMH result layout.
+	 *
+	 * @param out The destination
+	 * @throws IOException If I/O error occurs
+	 */
+	public void writeJson(Writer out) throws IOException {
+		out.write("[\n");
+		for (int r = 0; r < results.size(); r++) {
+			Result result = results.get(r);
+			out.write("    {\n");
+			out.write("        \"benchmark\" : " + quote(result.name) + ",\n");
+			out.write("        \"mode\" : \"avgt\",\n");
+			out.write("        \"threads\" : 1,\n");
+			out.write("        \"warmupIterations\" : " + warmupIterations + ",\n");
+			out.write("        \"measurementIterations\" : " + measurementIterations + ",\n");
+			out.write("        \"params\" : {");
+			int p = 0;
+			for (Map.Entry<String, String> param : result.params.entrySet()) {
+				out.write((p++ == 0 ? "\n" : ",\n") + "            " + quote(param.getKey()) + " : " + quote(param.getValue()));
+			}
+			out.write(p == 0 ? "},\n" : "\n        },\n");
+			out.write("        \"primaryMetric\" : {\n");
+			out.write("            \"score\" : " + number(result.score) + ",\n");
+			out.write("            \"scoreError\" : " + number(result.scoreError) + ",\n");
+			out.write("            \"scoreUnit\" : \"ns/op\",\n");
+			out.write("            \"rawData\" : [[");
+			for (int i = 0; i < result.rawData.length; i++) {
+				out.write((i == 0 ? "" : ", ") + number(result.rawData[i]));
+			}
+			out.write("]]\n");
+			out.write("        },\n");
+			out.write("        \"secondaryMetrics\" : {\n");
+			out.write("            \"gc.alloc.rate.norm\" : {\n");
+			out.write("                \"score\" : " + number(result.allocatedBytesPerOp) + ",\n");
+			out.write("                \"scoreUnit\" : \"B/op\"\n");
+			out.write("            }\n");
+			out.write("        }\n");
+			out.write(r == results.size() - 1 ? "    }\n" : "    },\n");
+		}
+		out.write("]\n");
+	}
+
+	private static String number(double value) {
+		return Double.isFinite(value) ? Double.toString(value) : "\"NaN\"";
+	}
+
+	private static String quote(String text) {
+		return "\"" + text.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+}
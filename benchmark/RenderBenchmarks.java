@@ -0,0 +1,314 @@
+package benchmark;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+import demo.SceneContainer;
+import model.HitRecord;
+import model.Model;
+import model.Plan;
+import model.Sphere;
+import model.SphereKernel;
+import raytracing.AdaptiveRenderer;
+import raytracing.IncrementalRenderer;
+import raytracing.Scene;
+import raytracing.TraceContext;
+import utils.Vec3;
+
+/**
+ * Benchmarks of the rendering pipeline.
+ * Covers ray-model intersection, the scalar and vector sphere kernels on
+ * groups of 8, 16 and 64 spheres, Scene.findColor, the full Scene.draw
+ * with and without ray packets and
+ * the adaptive anti-aliasing, on every demo scene and on procedural scenes
+ * of 10, 1k and 100k spheres, stored as objects and packed in a SphereSet,
+ * and of 10, 1k and 100k instances of one cluster of spheres. On the
+ * sphere scenes, the update of the hierarchy after every sphere moved is
+ * measured both refitted and rebuilt.
+ * The vector kernel is only measured when the JVM runs with
+ * --add-modules jdk.incubator.vector.
+ *
+ * Usage: java -cp bin benchmark.RenderBenchmarks [options]
+ *   -f regex    only run the benchmarks whose name matches
+ *   -o file     write the results as JSON (default bench_results.json)
+ *   -wi n       warmup iterations (default 3)
+ *   -i n        measurement iterations (default 5)
+ *   -t millis   duration of one iteration (default 500)
+ *   -size WxH   resolution of the draw benchmarks (default 320x240)
+ *
+ * @author KepsyIn
+ */
+public class RenderBenchmarks {
+
+	private static final int[] PROCEDURAL_COUNTS = {10, 1_000, 100_000};
+	private static final long PROCEDURAL_SEED = 1234;
+	private static final int RAY_POOL = 1024;
+	private static final int MAX_DEPTH = Scene.DEFAULT_DEPTH;
+	private static final int ADAPTIVE_SAMPLES = 4;
+	private static final int[] KERNEL_GROUPS = {8, 16, 64};
+
+	private final Benchmark harness;
+	private final Pattern filter;
+	private final int width;
+	private final int height;
+
+	private RenderBenchmarks(Benchmark harness, Pattern filter, int width, int height) {
+		this.harness = harness;
+		this.filter = filter;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Runs the benchmarks.
+	 *
+	 * @param args Command line options
+	 * @throws IOException If the JSON file cannot be written
+	 */
+	public static void main(String[] args) throws IOException {
+		String output = "bench_results.json";
+		Pattern filter = Pattern.compile(".*");
+		int warmup = 3;
+		int iterations = 5;
+		long millis = 500;
+		int width = 320;
+		int height = 240;
+
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "-f": filter = Pattern.compile(args[++i]); break;
+				case "-o": output = args[++i]; break;
+				case "-wi": warmup = Integer.parseInt(args[++i]); break;
+				case "-i": iterations = Integer.parseInt(args[++i]); break;
+				case "-t": millis = Long.parseLong(args[++i]); break;
+				case "-size":
+					String[] size = args[++i].split("x");
+					width = Integer.parseInt(size[0]);
+					height = Integer.parseInt(size[1]);
+					break;
+				default:
+					System.err.println("unknown option: " + args[i]);
+					return;
+			}
+		}
+
+		RenderBenchmarks benchmarks = new RenderBenchmarks(new Benchmark(warmup, iterations, millis), filter, width, height);
+		benchmarks.runAll();
+
+		try (Writer out = new FileWriter(output)) {
+			benchmarks.harness.writeJson(out);
+		}
+		System.out.println("> results written to " + output);
+	}
+
+	private void runAll() {
+		Random random = new Random(7);
+		Vec3[] origins = new Vec3[RAY_POOL];
+		Vec3[] directions = new Vec3[RAY_POOL];
+		for (int i = 0; i < RAY_POOL; i++) {
+			origins[i] = new Vec3(random.nextFloat() * 2 - 1, random.nextFloat() * 2 - 1, random.nextFloat() * 2 - 1);
+			directions[i] = new Vec3(random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, -1);
+		}
+
+		Sphere sphere = new Sphere(1, new Vec3(0, 0, -5));
+		run("Sphere.getIntersection", params(), RAY_POOL, () -> {
+			long hits = 0;
+			for (int i = 0; i < RAY_POOL; i++) {
+				hits += sphere.getIntersection(origins[i], directions[i]) > 0 ? 1 : 0;
+			}
+			return hits;
+		});
+
+		Plan plan = new Plan(new Vec3(0, -1, 0), new Vec3(0, 1, 0));
+		run("Plan.getIntersection", params(), RAY_POOL, () -> {
+			long hits = 0;
+			for (int i = 0; i < RAY_POOL; i++) {
+				hits += plan.getIntersection(origins[i], directions[i]) > 0 ? 1 : 0;
+			}
+			return hits;
+		});
+
+		for (int group : KERNEL_GROUPS) {
+			benchKernels(group, origins, directions);
+		}
+
+		for (int n = 1; n <= SceneContainer.getTotalScenes(); n++) {
+			Scene scene = SceneContainer.buildScene(n);
+			benchScene(scene, params("scene", Integer.toString(n)));
+			benchEdits(scene, params("scene", Integer.toString(n)));
+		}
+
+		for (int count : PROCEDURAL_COUNTS) {
+			Scene scene = SceneContainer.buildRandomSpheres(count, PROCEDURAL_SEED);
+			benchAnimation(scene, count);
+			benchScene(scene, params("spheres", Integer.toString(count)));
+			scene.packSpheres();
+			benchScene(scene, params("spheres", Integer.toString(count), "packed", "true"));
+		}
+
+		for (int count : PROCEDURAL_COUNTS) {
+			Scene scene = SceneContainer.buildInstances(count, PROCEDURAL_SEED);
+			benchScene(scene, params("instances", Integer.toString(count)));
+		}
+	}
+
+	private void benchKernels(int group, Vec3[] origins, Vec3[] directions) {
+		// One leaf of spheres in front of the rays, about half of them hit
+		Random random = new Random(group);
+		float[] centerX = new float[group];
+		float[] centerY = new float[group];
+		float[] centerZ = new float[group];
+		double[] radiusSquared = new double[group];
+		for (int i = 0; i < group; i++) {
+			centerX[i] = random.nextFloat() * 4 - 2;
+			centerY[i] = random.nextFloat() * 4 - 2;
+			centerZ[i] = -5 - random.nextFloat() * 5;
+			float radius = 0.2f + random.nextFloat() * 0.5f;
+			radiusSquared[i] = (double) radius * radius;
+		}
+		Model model = new Sphere(1, new Vec3(0, 0, -5));
+		HitRecord hit = new HitRecord();
+
+		for (SphereKernel kernel : new SphereKernel[] {SphereKernel.scalar(), SphereKernel.vector()}) {
+			if (kernel == null) {
+				// jdk.incubator.vector is not enabled
+				continue;
+			}
+			run("SphereKernel.intersect", params("spheres", Integer.toString(group), "lanes", Integer.toString(kernel.getLanes())), RAY_POOL, () -> {
+				long hits = 0;
+				for (int i = 0; i < RAY_POOL; i++) {
+					hit.reset(Double.MAX_VALUE);
+					hits += kernel.intersect(centerX, centerY, centerZ, radiusSquared, 0, group, origins[i], directions[i], 0, hit, model, 0) ? hit.primitive : 0;
+				}
+				return hits;
+			});
+		}
+	}
+
+	private void benchAnimation(Scene scene, int count) {
+		// Every sphere moves by a small step, back and forth so that the refit tree does not degrade
+		List<Sphere> spheres = new ArrayList<>();
+		for (Model m : scene.getModelList()) {
+			if (m instanceof Sphere) {
+				spheres.add((Sphere) m);
+			}
+		}
+		float step = (float) (0.5 / Math.cbrt(Math.max(1, count)));
+		int[] frame = {0};
+		Runnable move = () -> {
+			float d = (frame[0]++ & 1) == 0 ? step : -step;
+			for (Sphere sphere : spheres) {
+				Vec3 center = sphere.getCenter();
+				sphere.setCenter(new Vec3(center.x + d, center.y, center.z - d));
+			}
+		};
+
+		run("Scene.getAccelerationStructure", params("spheres", Integer.toString(count), "update", "refit"), 1, () -> {
+			move.run();
+			return scene.getAccelerationStructure().getNodeCount();
+		});
+		run("Scene.getAccelerationStructure", params("spheres", Integer.toString(count), "update", "rebuild"), 1, () -> {
+			move.run();
+			scene.invalidateAccelerationStructure();
+			return scene.getAccelerationStructure().getNodeCount();
+		});
+		if ((frame[0] & 1) != 0) {
+			move.run();
+		}
+	}
+
+	private void benchEdits(Scene scene, Map<String, String> params) {
+		// One sphere edited between two renders, back and forth
+		Sphere sphere = null;
+		for (Model m : scene.getModelList()) {
+			if (m instanceof Sphere) {
+				sphere = (Sphere) m;
+				break;
+			}
+		}
+		if (sphere == null) {
+			return;
+		}
+		Sphere edited = sphere;
+		Vec3 color = edited.getColor();
+		Vec3 center = edited.getCenter();
+		IncrementalRenderer renderer = new IncrementalRenderer(scene, width, height, 1);
+		renderer.render();
+		int[] frame = {0};
+
+		Map<String, String> colorParams = new LinkedHashMap<>(params);
+		colorParams.put("size", width + "x" + height);
+		colorParams.put("edit", "color");
+		run("IncrementalRenderer.render", colorParams, 1, () -> {
+			edited.setColor((frame[0]++ & 1) == 0 ? new Vec3(1, 0, 0) : color);
+			return renderer.render()[0];
+		});
+		edited.setColor(color);
+
+		Map<String, String> moveParams = new LinkedHashMap<>(colorParams);
+		moveParams.put("edit", "move");
+		run("IncrementalRenderer.render", moveParams, 1, () -> {
+			float d = (frame[0]++ & 1) == 0 ? 0.1f : 0;
+			edited.setCenter(new Vec3(center.x + d, center.y, center.z));
+			return renderer.render()[0];
+		});
+		edited.setCenter(center);
+	}
+
+	private void benchScene(Scene scene, Map<String, String> params) {
+		// Primary rays spread over the screen, as Scene.draw would cast them
+		Vec3[] directions = new Vec3[RAY_POOL];
+		Random random = new Random(11);
+		for (int i = 0; i < RAY_POOL; i++) {
+			directions[i] = new Vec3(random.nextFloat() - 0.5f, (random.nextFloat() - 0.5f) * 0.75f, -Scene.DEFAULT_DISTANCE);
+		}
+		Vec3 color = new Vec3();
+
+		run("Scene.findColor", params, RAY_POOL, () -> {
+			TraceContext ctx = TraceContext.current();
+			long sum = 0;
+			for (int i = 0; i < RAY_POOL; i++) {
+				sum += Float.floatToRawIntBits(scene.findColor(scene.getViewerPosition(), directions[i], MAX_DEPTH, ctx, color).x);
+			}
+			return sum;
+		});
+
+		Map<String, String> drawParams = new LinkedHashMap<>(params);
+		drawParams.put("size", width + "x" + height);
+		run("Scene.draw", drawParams, 1, () -> scene.draw(width, height)[0]);
+
+		// Same draw with one walk of the hierarchy per primary ray
+		Map<String, String> singleParams = new LinkedHashMap<>(drawParams);
+		singleParams.put("packets", "false");
+		scene.setPacketTracing(false);
+		run("Scene.draw", singleParams, 1, () -> scene.draw(width, height)[0]);
+		scene.setPacketTracing(true);
+
+		Map<String, String> adaptiveParams = new LinkedHashMap<>(drawParams);
+		adaptiveParams.put("samples", Integer.toString(ADAPTIVE_SAMPLES));
+		run("Scene.drawAdaptive", adaptiveParams, 1, () -> scene.drawAdaptive(width, height, ADAPTIVE_SAMPLES, AdaptiveRenderer.DEFAULT_THRESHOLD)[0]);
+	}
+
+	private void run(String name, Map<String, String> params, int opsPerInvocation, LongSupplier operation) {
+		String id = name + params;
+		if (!filter.matcher(id).find()) {
+			return;
+		}
+		System.out.println(Benchmark.format(harness.run(name, params, opsPerInvocation, operation)));
+	}
+
+	private static Map<String, String> params(String... keyValues) {
+		Map<String, String> params = new LinkedHashMap<>();
+		for (int i = 0; i + 1 < keyValues.length; i += 2) {
+			params.put(keyValues[i], keyValues[i + 1]);
+		}
+		return params;
+	}
+}
@@ -0,0 +1,163 @@
+package benchmark;
+
+import java.util.List;
+import java.util.Random;
+import model.HitRecord;
+import model.Model;
+import model.Plan;
+import model.Sphere;
+import raytracing.BVH;
+import raytracing.LightSource;
+import raytracing.Scene;
+import utils.Vec3;
+
+/**
+ * Compares the cost of shadow rays as the number of lights grows.
+ * Each shading point casts one shadow ray per light, resolved three ways:
+ * the former linear scan over every model, a closest-hit query through
+ * the BVH, and the any-hit occlusion query with early exit.
+ *
+ * @author KepsyIn
+ */
+public class ShadowRayBenchmark {
+
+	private static final int SPHERES = 1000;
+	private static final int SHADING_POINTS = 5000;
+	private static final int[] LIGHT_COUNTS = {1, 2, 4, 8, 16, 32};
+	private static final int ROUNDS = 5;
+
+	// keeps the results alive so the JIT cannot drop the loops
+	private static volatile long sink;
+
+	/**
+	 * Runs the benchmark and prints one line per light count.
+	 *
+	 * @param args Unused
+	 */
+	public static void main(String[] args) {
+		Random random = new Random(42);
+		Scene scene = buildScene(random, LIGHT_COUNTS[LIGHT_COUNTS.length - 1]);
+		List<Model> models = scene.getModelList();
+		BVH bvh = scene.getAccelerationStructure();
+
+		float[] points = shadingPoints(bvh, random);
+		int[] stack = new int[bvh.getDepth() + 1];
+		HitRecord hit = new HitRecord();
+
+		System.out.println("> shadow rays: " + SPHERES + " spheres, " + (points.length / 3) + " shading points");
+		System.out.printf("%8s %14s %14s %14s %12s %12s%n", "lights", "linear ns/pt", "closest ns/pt", "any-hit ns/pt", "vs linear", "vs closest");
+
+		for (int lights : LIGHT_COUNTS) {
+			List<LightSource> sources = scene.getLightSources().subList(0, lights);
+
+			long linear = Long.MAX_VALUE;
+			long closest = Long.MAX_VALUE;
+			long anyHit = Long.MAX_VALUE;
+
+			for (int round = 0; round < ROUNDS; round++) {
+				long start = System.nanoTime();
+				sink += linearShadows(models, sources, points);
+				linear = Math.min(linear, System.nanoTime() - start);
+
+				start = System.nanoTime();
+				sink += closestShadows(bvh, sources, points, hit, stack);
+				closest = Math.min(closest, System.nanoTime() - start);
+
+				start = System.nanoTime();
+				sink += anyHitShadows(bvh, sources, points, stack);
+				anyHit = Math.min(anyHit, System.nanoTime() - start);
+			}
+
+			int count = points.length / 3;
+			System.out.printf("%8d %14.1f %14.1f %14.1f %11.2fx %11.2fx%n", lights,
+					(double) linear / count, (double) closest / count, (double) anyHit / count,
+					(double) linear / anyHit, (double) closest / anyHit);
+		}
+	}
+
+	private static Scene buildScene(Random random, int lights) {
+		Scene scene = new Scene();
+		for (int i = 0; i < SPHERES; i++) {
+			Vec3 center = new Vec3(random.nextFloat() * 30 - 15, random.nextFloat() * 20 - 10, -10 - random.nextFloat() * 30);
+			scene.addModel(new Sphere(0.2 + random.nextDouble() * 0.6, center));
+		}
+		scene.addModel(new Plan(new Vec3(0, -10, 0), new Vec3(0, 1, 0)));
+		scene.addModel(new Plan(new Vec3(0, 0, -50), new Vec3(0, 0, 1)));
+
+		for (int i = 0; i < lights; i++) {
+			Vec3 position = new Vec3(random.nextFloat() * 40 - 20, 15, random.nextFloat() * 20 - 5);
+			scene.addLightSource(new LightSource(new Vec3(1, 1, 1), position));
+		}
+		return scene;
+	}
+
+	/**
+	 * Traces primary rays and keeps their hit points.
+	 */
+	private static float[] shadingPoints(BVH bvh, Random random) {
+		float[] points = new float[3 * SHADING_POINTS];
+		Vec3 origin = new Vec3();
+		Vec3 direction = new Vec3();
+		HitRecord hit = new HitRecord();
+		int n = 0;
+		while (n < SHADING_POINTS) {
+			direction.set(random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, -1);
+			if (bvh.intersect(origin, direction, Scene.EPSILON, Double.MAX_VALUE, hit)) {
+				points[3 * n] = origin.x + (float) hit.lambda * direction.x;
+				points[3 * n + 1] = origin.y + (float) hit.lambda * direction.y;
+				points[3 * n + 2] = origin.z + (float) hit.lambda * direction.z;
+				n++;
+			}
+		}
+		return points;
+	}
+
+	private static int linearShadows(List<Model> models, List<LightSource> sources, float[] points) {
+		Vec3 P = new Vec3();
+		Vec3 lightDir = new Vec3();
+		int lit = 0;
+		for (int p = 0; p < points.length; p += 3) {
+			P.set(points[p], points[p + 1], points[p + 2]);
+			for (LightSource src : sources) {
+				lightDir.setSub(src.position, P);
+				boolean visible = true;
+				for (Model m : models) {
+					double lambda = m.getIntersection(P, lightDir);
+					if (lambda > Scene.EPSILON && lambda < 1) {
+						visible = false;
+					}
+				}
+				lit += visible ? 1 : 0;
+			}
+		}
+		return lit;
+	}
+
+	private static int closestShadows(BVH bvh, List<LightSource> sources, float[] points, HitRecord hit, int[] stack) {
+		Vec3 P = new Vec3();
+		Vec3 lightDir = new Vec3();
+		int lit = 0;
+		for (int p = 0; p < points.length; p += 3) {
+			P.set(points[p], points[p + 1], points[p + 2]);
+			for (LightSource src : sources) {
+				lightDir.setSub(src.position, P);
+				lit += bvh.intersect(P, lightDir, Scene.EPSILON, 1, hit, stack) ? 0 : 1;
+			}
+		}
+		return lit;
+	}
+
+	private static int anyHitShadows(BVH bvh, List<LightSource> sources, float[] points, int[] stack) {
+		Vec3 P = new Vec3();
+		Vec3 lightDir = new Vec3();
+		int lit = 0;
+		for (int p = 0; p < points.length; p += 3) {
+			P.set(points[p], points[p + 1], points[p + 2]);
+			for (LightSource src : sources) {
+				lightDir.setSub(src.position, P);
+				lit += bvh.occluded(P, lightDir, Scene.EPSILON, 1, stack) ? 0 : 1;
+			}
+		}
+		return lit;
+	}
+}
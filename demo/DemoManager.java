@@ -1,7 +1,26 @@
 package demo;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IllegalFormatException;
+import java.util.List;
+import farm.RenderCoordinator;
+import farm.RenderWorker;
+import model.Model;
+import model.SphereSet;
+import parser.BinaryScene;
+import parser.SceneFile;
+import raytracing.AnimationRenderer;
+import raytracing.RenderMetrics;
 import raytracing.Scene;
+import raytracing.TileRenderer;
+import render.RenderPng;
 import render.RenderTga;
+import server.RenderServer;
 
 /**
  * Manages raytracing demonstration.
@@ -16,6 +35,12 @@ public class DemoManager {
 	private static final String OUTPUT_FILENAME = "raytracing_scene";
 	private static final boolean ANTIALIASING = true;
 	private static final int SAMPLES = 4;
+	private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+	private static final int PACKED_SPHERES = 10_000;
+	private static final String FRAMES_OPTION = "-frames";
+	private static final String FARM_OPTION = "-farm";
+	private static final String WORKER_OPTION = "-worker";
+	private static final String SERVER_OPTION = "-server";
 	
 	/**
 	 * Starts the raytracing demonstration.
@@ -33,11 +58,86 @@ public class DemoManager {
 			return;
 		}
 		
+		if (args[0].equals(WORKER_OPTION)) {
+			runWorker(args.length > 1 ? args[1] : Integer.toString(RenderWorker.DEFAULT_PORT));
+			return;
+		}
+		
+		if (args[0].equals(SERVER_OPTION)) {
+			runServer(args.length > 1 ? args[1] : Integer.toString(RenderServer.DEFAULT_PORT));
+			return;
+		}
+		
+		if (RenderMetrics.ENABLED) {
+			try {
+				RenderMetrics.registerMBean();
+			} catch (Exception e) {
+				printError("render metrics not registered with JMX: " + e);
+			}
+		}
+		
+		List<String> arguments = new ArrayList<>(Arrays.asList(args));
+		int[] frames = null;
+		int option = arguments.indexOf(FRAMES_OPTION);
+		if (option > 0) {
+			if (option + 1 >= arguments.size() || (frames = parseFrames(arguments.get(option + 1))) == null) {
+				printError("insert a frame range such as " + FRAMES_OPTION + " 0-99, or type -h for help");
+				return;
+			}
+			arguments.subList(option, option + 2).clear();
+		}
+		List<InetSocketAddress> farm = null;
+		option = arguments.indexOf(FARM_OPTION);
+		if (option > 0) {
+			try {
+				if (option + 1 >= arguments.size() || (farm = RenderCoordinator.parseWorkers(arguments.get(option + 1))).isEmpty()) {
+					throw new IllegalArgumentException("no worker");
+				}
+			} catch (IllegalArgumentException e) {
+				printError("insert the workers such as " + FARM_OPTION + " localhost:7450,localhost:7451, or type -h for help");
+				return;
+			}
+			arguments.subList(option, option + 2).clear();
+			if (frames != null) {
+				printError("an animation is rendered on this machine, not on a render farm");
+				return;
+			}
+		}
+		
+		String input = arguments.get(0);
+		String output = arguments.size() > 1 ? arguments.get(1) : OUTPUT_FILENAME + (frames != null ? "_%04d" : "") + ".tga";
+		if (frames != null && output.endsWith("." + BinaryScene.EXTENSION)) {
+			printError("an animation is written to images, not to a binary scene");
+			return;
+		}
+		
+		if (input.endsWith("." + SceneFile.EXTENSION) || input.endsWith("." + BinaryScene.EXTENSION)) {
+			renderSceneFile(Paths.get(input), output, frames, farm);
+			return;
+		}
+		
 		try {
-			int sceneNumber = Integer.parseInt(args[0]);
-			renderScene(sceneNumber);
+			int sceneNumber = Integer.parseInt(input);
+			renderScene(sceneNumber, output, frames, farm);
 		} catch (NumberFormatException e) {
-			printError("insert a valid scene number or type -h for help: " + e);
+			printError("insert a valid scene number or scene file, or type -h for help: " + e);
+		}
+	}
+	
+	/**
+	 * Parses a frame range.
+	 * 
+	 * @param range First and last frame, as in 0-99, or a single frame
+	 * @return The first and last frame, or null if the range is invalid
+	 */
+	private static int[] parseFrames(String range) {
+		try {
+			int dash = range.indexOf('-', 1);
+			int first = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+			int last = dash < 0 ? first : Integer.parseInt(range.substring(dash + 1));
+			return first <= last ? new int[] {first, last} : null;
+		} catch (NumberFormatException e) {
+			return null;
 		}
 	}
 	
@@ -45,7 +145,18 @@ public class DemoManager {
 	 * Displays help with available scenes.
 	 */
 	private static void displayHelp() {
-		System.out.println("> the program takes one argument <number_of_the_scene> you want to generate.");
+		System.out.println("> the program takes one argument <number_of_the_scene> you want to generate, or a <file>." + SceneFile.EXTENSION + " scene description.");
+		System.out.println("> binary <file>." + BinaryScene.EXTENSION + " scenes are loaded too, by memory mapping.");
+		System.out.println(" - an optional second argument names the output image, .tga (default) or .png,");
+		System.out.println("   or a ." + BinaryScene.EXTENSION + " file to convert the scene to the binary format instead of rendering it");
+		System.out.println(" - " + FRAMES_OPTION + " <first>-<last> renders an animation of the scene in one run, the camera sweeping and the spheres bobbing;");
+		System.out.println("   large scenes are then not packed, and the spheres of ." + BinaryScene.EXTENSION + " files, always packed, stay still");
+		System.out.println("   the output names each frame, as in frame_%04d.png (a frame number is appended if it has no %d)");
+		System.out.println(" - " + FARM_OPTION + " <host>:<port>,... renders the tiles on render farm workers instead of this machine");
+		System.out.println("   (scenes of spheres and planes only, scenes with meshes or instances are refused)");
+		System.out.println("> " + WORKER_OPTION + " [<port>] starts a render farm worker (port " + RenderWorker.DEFAULT_PORT + " by default) and serves until killed");
+		System.out.println("> " + SERVER_OPTION + " [<port>] starts the HTTP render server (port " + RenderServer.DEFAULT_PORT + " by default): GET /render?scene=<n>&width=<w>&height=<h>,");
+		System.out.println("  POST /render with a scene file as body, GET /stats for the latency percentiles");
 		System.out.println(" - there are " + SceneContainer.getTotalScenes() + " available scenes in this raytracing program: ");
 		
 		for (int i = 1; i <= SceneContainer.getTotalScenes(); i++) {
@@ -57,43 +168,260 @@ public class DemoManager {
 	 * Renders the requested scene.
 	 * 
 	 * @param sceneNumber The scene number to render
+	 * @param output The image file to write
+	 * @param frames First and last frame of an animation, or null for one image
+	 * @param farm Workers rendering the image, or null to render here
 	 */
-	private static void renderScene(int sceneNumber) {
-		Scene scene = SceneContainer.buildScene1();
+	private static void renderScene(int sceneNumber, String output, int[] frames, List<InetSocketAddress> farm) {
+		Scene scene = SceneContainer.buildScene(sceneNumber);
 		
-		switch(sceneNumber) {
-			case 1: scene = SceneContainer.buildScene1(); break;
-			case 2: scene = SceneContainer.buildScene2(); break;
-			case 3: scene = SceneContainer.buildScene3(); break;
-			case 4: scene = SceneContainer.buildScene4(); break;
-			case 5: scene = SceneContainer.buildScene5(); break;
-			default:
-				printError("No scene associated with argument: " + sceneNumber);
-				return;
+		if (scene == null) {
+			printError("No scene associated with argument: " + sceneNumber);
+			return;
 		}
 		
+		SceneFile file = new SceneFile(scene, WIDTH, HEIGHT, ANTIALIASING ? SAMPLES : 1);
+		if (output.endsWith("." + BinaryScene.EXTENSION)) {
+			saveBinaryScene(file, output);
+			return;
+		}
+		render(file, output, frames, farm);
+	}
+	
+	/**
+	 * Renders a scene with its settings, as one image or as an animation.
+	 * 
+	 * @param file The scene and its render settings
+	 * @param output The image file to write, or the pattern of the frame files
+	 * @param frames First and last frame of the animation, or null for one image
+	 * @param farm Workers rendering the image, or null to render here
+	 */
+	private static void render(SceneFile file, String output, int[] frames, List<InetSocketAddress> farm) {
+		if (farm != null) {
+			renderOnFarm(file, output, farm);
+		} else if (frames != null) {
+			renderAnimation(file.getScene(), file.getWidth(), file.getHeight(), file.getSamples(), output, frames[0], frames[1]);
+		} else {
+			renderScene(file.getScene(), file.getWidth(), file.getHeight(), file.getSamples(), output);
+		}
+	}
+	
+	/**
+	 * Renders a scene described in a text or binary file, with the settings
+	 * of the file.
+	 * 
+	 * @param path The scene file
+	 * @param output The image file to write
+	 * @param frames First and last frame of an animation, or null for one image
+	 * @param farm Workers rendering the image, or null to render here
+	 */
+	private static void renderSceneFile(Path path, String output, int[] frames, List<InetSocketAddress> farm) {
+		SceneFile file;
+		try {
+			System.out.println("> loading " + path);
+			long start = System.nanoTime();
+			file = path.toString().endsWith("." + BinaryScene.EXTENSION) ? BinaryScene.load(path) : SceneFile.load(path);
+			System.out.println(" - " + file.getScene().getModelList().size() + " models loaded in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+			// Packed spheres cannot move, an animation keeps them as models
+			if (frames == null && file.getScene().getModelList().size() >= PACKED_SPHERES) {
+				System.out.println(" - " + file.getScene().packSpheres() + " spheres packed");
+			}
+		} catch (IOException e) {
+			printError("scene file not loaded: " + e);
+			return;
+		}
+		
+		if (output.endsWith("." + BinaryScene.EXTENSION)) {
+			saveBinaryScene(file, output);
+			return;
+		}
+		render(file, output, frames, farm);
+	}
+	
+	/**
+	 * Converts a scene to the binary format, with its sphere hierarchy.
+	 * 
+	 * @param file The scene and its render settings
+	 * @param output The binary scene file to write
+	 */
+	private static void saveBinaryScene(SceneFile file, String output) {
+		try {
+			System.out.println("> writing " + output);
+			long start = System.nanoTime();
+			BinaryScene.save(file, Paths.get(output), true);
+			System.out.println(" - binary scene written in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+		} catch (IOException | IllegalArgumentException e) {
+			printError("binary scene not written: " + e);
+		}
+	}
+	
+	/**
+	 * Renders a scene and saves the image, the format follows the file
+	 * extension.
+	 * 
+	 * @param scene The scene to render
+	 * @param width Image width
+	 * @param height Image height
+	 * @param samples Samples per dimension
+	 * @param output The image file to write
+	 */
+	private static void renderScene(Scene scene, int width, int height, int samples, String output) {
 		try {
 			System.out.println("> start raytracing");
 			System.out.println(" - start generating the scene");
 			
-			byte[] sceneBuffer;
-			if (ANTIALIASING) {
-				System.out.println("  + generating scene with anti-aliasing (" + SAMPLES + " samples)");
-				sceneBuffer = scene.draw(WIDTH, HEIGHT, SAMPLES);
-			} else {
-				sceneBuffer = scene.draw(WIDTH, HEIGHT);
+			if (samples > 1) {
+				System.out.println("  + generating scene with anti-aliasing (" + samples + " samples)");
 			}
 			
+			System.out.println("  + rendering tiles on " + PARALLELISM + " threads");
+			byte[] sceneBuffer = scene.drawParallel(width, height, samples, PARALLELISM);
+			
 			System.out.println(" - finish generating the scene");
+			if (RenderMetrics.ENABLED) {
+				System.out.println("  + " + RenderMetrics.get());
+			}
 			
-			System.out.println(" - start generating " + OUTPUT_FILENAME + ".tga file");
-
-			RenderTga.saveTGA(OUTPUT_FILENAME + ".tga", sceneBuffer, WIDTH, HEIGHT);
-			System.out.println(" - finish generating " + OUTPUT_FILENAME + ".tga file");
+			System.out.println(" - start generating " + output + " file");
+			saveImage(output, sceneBuffer, width, height);
+			System.out.println(" - finish generating " + output + " file");
 			
 			System.out.println("> finish raytracing");
 		} catch (Exception e) {
-			printError("TGA file not created: " + e);
+			printError("image file not created: " + e);
+		}
+	}
+	
+	/**
+	 * Renders the frames of the demo animation of a scene in one run.
+	 * Each frame is saved while the next one is rendered.
+	 * 
+	 * @param scene The scene to animate
+	 * @param width Image width
+	 * @param height Image height
+	 * @param samples Samples per dimension
+	 * @param output Pattern of the frame files, formatted with the frame number
+	 * @param firstFrame First frame (inclusive)
+	 * @param lastFrame Last frame (inclusive)
+	 */
+	private static void renderAnimation(Scene scene, int width, int height, int samples, String output, int firstFrame, int lastFrame) {
+		String pattern = output.contains("%") ? output : output.replaceFirst("(\\.[^./\\\\]*)?$", "_%04d$1");
+		TileRenderer tiles = new TileRenderer(PARALLELISM);
+		try {
+			System.out.println("> start raytracing frames " + firstFrame + " to " + lastFrame);
+			int packed = 0;
+			for (Model m : scene.getModelList()) {
+				if (m instanceof SphereSet) {
+					packed += ((SphereSet) m).size();
+				}
+			}
+			if (packed > 0) {
+				System.out.println("  + the " + packed + " packed spheres (binary scene) do not bob, only the camera moves");
+			}
+			System.out.println("  + rendering tiles on " + PARALLELISM + " threads");
+			long start = System.nanoTime();
+			
+			new AnimationRenderer(tiles).render(scene, SceneContainer.buildAnimation(scene, firstFrame, lastFrame), firstFrame, lastFrame,
+					width, height, samples, (frame, image, w, h) -> {
+						String file = String.format(pattern, frame);
+						saveImage(file, image, w, h);
+						System.out.println(" - frame " + frame + " written to " + file);
+					});
+			
+			long millis = (System.nanoTime() - start) / 1_000_000;
+			System.out.println("> finish raytracing, " + (lastFrame - firstFrame + 1) + " frames in " + millis + " ms");
+			if (RenderMetrics.ENABLED) {
+				System.out.println("  + " + RenderMetrics.get());
+			}
+		} catch (IOException | IllegalFormatException e) {
+			printError("animation not written: " + e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			printError("animation interrupted");
+		} finally {
+			tiles.shutdown();
+		}
+	}
+	
+	/**
+	 * Renders a scene on render farm workers and saves the image.
+	 * 
+	 * @param file The scene and its render settings
+	 * @param output The image file to write
+	 * @param farm The workers
+	 */
+	private static void renderOnFarm(SceneFile file, String output, List<InetSocketAddress> farm) {
+		try {
+			System.out.println("> start raytracing on " + farm.size() + " workers");
+			long start = System.nanoTime();
+			RenderCoordinator coordinator = new RenderCoordinator(farm);
+			byte[] sceneBuffer = coordinator.render(file);
+			
+			System.out.println(" - finish generating the scene in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+			System.out.println("  + tiles per worker " + Arrays.toString(coordinator.getRenderedTiles())
+					+ ", " + coordinator.getStolenTiles() + " stolen, " + coordinator.getRetriedTiles() + " retried");
+			
+			System.out.println(" - start generating " + output + " file");
+			saveImage(output, sceneBuffer, file.getWidth(), file.getHeight());
+			System.out.println(" - finish generating " + output + " file");
+			
+			System.out.println("> finish raytracing");
+		} catch (IOException | IllegalArgumentException e) {
+			printError("image not rendered on the farm: " + e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			printError("render interrupted");
+		}
+	}
+	
+	/**
+	 * Serves as a render farm worker until the process is killed.
+	 * 
+	 * @param port The port to listen on
+	 */
+	private static void runWorker(String port) {
+		try (RenderWorker worker = new RenderWorker(Integer.parseInt(port), PARALLELISM)) {
+			System.out.println("> render worker listening on port " + worker.getPort() + " with " + PARALLELISM + " threads");
+			worker.serve();
+		} catch (NumberFormatException e) {
+			printError("insert a valid port number, or type -h for help: " + e);
+		} catch (IOException e) {
+			printError("render worker stopped: " + e);
+		}
+	}
+	
+	/**
+	 * Serves render requests over HTTP until the process is killed.
+	 * 
+	 * @param port The port to listen on
+	 */
+	private static void runServer(String port) {
+		try {
+			RenderServer server = new RenderServer(Integer.parseInt(port), PARALLELISM, RenderServer.DEFAULT_QUEUE_CAPACITY);
+			server.start();
+			System.out.println("> render server listening on http://localhost:" + server.getPort() + "/render with " + PARALLELISM + " render threads, requests on "
+					+ (server.isVirtualThreads() ? "virtual threads" : "a thread pool (no virtual threads in this JVM)"));
+		} catch (NumberFormatException e) {
+			printError("insert a valid port number, or type -h for help: " + e);
+		} catch (IOException e) {
+			printError("render server not started: " + e);
+		}
+	}
+	
+	/**
+	 * Saves an image, the format follows the file extension.
+	 * 
+	 * @param output The image file to write, .png or .tga
+	 * @param buffer The pixels
+	 * @param width Image width
+	 * @param height Image height
+	 * @throws IOException If the file cannot be written
+	 */
+	private static void saveImage(String output, byte[] buffer, int width, int height) throws IOException {
+		if (output.toLowerCase().endsWith(".png")) {
+			RenderPng.savePNG(output, buffer, width, height);
+		} else {
+			RenderTga.saveTGA(output, buffer, width, height);
 		}
 	}
 	
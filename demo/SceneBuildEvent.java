@@ -0,0 +1,42 @@
+package demo;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import raytracing.Scene;
+
+/**
+ * Flight Recorder event emitted when a demo scene is built.
+ * 
+ * @author KepsyIn
+ */
+@Name("raytracing.SceneBuild")
+@Label("Scene Build")
+@Category({"Raytracing", "Scene"})
+final class SceneBuildEvent extends jdk.jfr.Event {
+	
+	@Label("Scene")
+	String scene;
+	
+	@Label("Models")
+	int models;
+	
+	@Label("Lights")
+	int lights;
+	
+	/**
+	 * Ends the event and commits it if it passes the recording settings.
+	 * 
+	 * @param name Description of the scene
+	 * @param built The built scene
+	 */
+	void record(String name, Scene built) {
+		end();
+		if (shouldCommit()) {
+			this.scene = name;
+			this.models = built.getModelList().size();
+			this.lights = built.getLightSources().size();
+			commit();
+		}
+	}
+}
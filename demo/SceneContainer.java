@@ -1,8 +1,17 @@
 package demo;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import model.Instance;
+import model.Material;
+import model.Model;
 import model.Plan;
 import model.Sphere;
+import model.SphereSet;
+import raytracing.AnimationRenderer;
 import raytracing.LightSource;
 import raytracing.Scene;
+import utils.Keyframes;
 import utils.Vec3;
 
 /**
@@ -12,6 +21,11 @@ import utils.Vec3;
  */
 public class SceneContainer {
 	
+	/**
+	 * Number of spheres in the cluster shared by {@link #buildInstances(int, long)}.
+	 */
+	public static final int CLUSTER_SIZE = 64;
+	
 	public static Scene buildScene1() {
 		Sphere sphere = new Sphere(1, new Vec3(3,0,-15));
 		Sphere otherSphere = new Sphere(1, new Vec3(0,0,-10));
@@ -132,6 +146,167 @@ public class SceneContainer {
 		return scene;
 	}
 	
+	/**
+	 * Builds one of the demo scenes by number.
+	 * 
+	 * @param sceneNumber The scene number, from 1 to {@link #getTotalScenes()}
+	 * @return The scene, or null if no scene has this number
+	 */
+	public static Scene buildScene(int sceneNumber) {
+		SceneBuildEvent event = new SceneBuildEvent();
+		event.begin();
+		Scene scene = switch(sceneNumber) {
+			case 1 -> buildScene1();
+			case 2 -> buildScene2();
+			case 3 -> buildScene3();
+			case 4 -> buildScene4();
+			case 5 -> buildScene5();
+			default -> null;
+		};
+		if (scene != null) {
+			event.record("scene " + sceneNumber, scene);
+		}
+		return scene;
+	}
+	
+	/**
+	 * Builds a procedural scene of randomly placed spheres above a floor.
+	 * The spheres fill a box in front of the viewer; their radius shrinks
+	 * with the count so the density stays similar.
+	 * 
+	 * @param count Number of spheres
+	 * @param seed Seed of the random generator, same seed gives the same scene
+	 * @return The generated scene
+	 */
+	public static Scene buildRandomSpheres(int count, long seed) {
+		SceneBuildEvent event = new SceneBuildEvent();
+		event.begin();
+		Random random = new Random(seed);
+		Scene scene = new Scene();
+		
+		scene.addLightSource(new LightSource(new Vec3(1,1,1), new Vec3(10,10,0)));
+		scene.addLightSource(new LightSource(new Vec3(1,1,1), new Vec3(-10,10,-5)));
+		
+		Plan floor = new Plan(new Vec3(0,-6,0), new Vec3(0,1,0));
+		floor.setColor(new Vec3(0.6f,0.6f,0.6f));
+		floor.setReflexionCoeff(0.3f);
+		scene.addModel(floor);
+		
+		double radius = 2.0 / Math.cbrt(Math.max(1, count));
+		
+		for (int i = 0; i < count; i++) {
+			Vec3 center = new Vec3(random.nextFloat() * 16 - 8, random.nextFloat() * 10 - 5, -8 - random.nextFloat() * 20);
+			Sphere sphere = new Sphere(radius * (0.5 + random.nextDouble()), center);
+			sphere.setColor(new Vec3(random.nextFloat(), random.nextFloat(), random.nextFloat()));
+			if (random.nextInt(4) == 0) {
+				sphere.setReflexionCoeff(0.5f);
+			}
+			scene.addModel(sphere);
+		}
+		
+		event.record(count + " random spheres", scene);
+		return scene;
+	}
+	
+	/**
+	 * Builds a procedural scene of many copies of one cluster of spheres
+	 * above a floor. Every copy is an {@link Instance} of the same
+	 * {@link SphereSet}, turned around the vertical axis and scaled; one
+	 * copy in three overrides the materials of the cluster.
+	 * Memory grows by one small instance per copy, not by the cluster size.
+	 *
+	 * @param count Number of copies
+	 * @param seed Seed of the random generator, same seed gives the same scene
+	 * @return The generated scene
+	 */
+	public static Scene buildInstances(int count, long seed) {
+		SceneBuildEvent event = new SceneBuildEvent();
+		event.begin();
+		Random random = new Random(seed);
+		Scene scene = new Scene();
+		
+		scene.addLightSource(new LightSource(new Vec3(1,1,1), new Vec3(10,10,0)));
+		scene.addLightSource(new LightSource(new Vec3(1,1,1), new Vec3(-10,10,-5)));
+		
+		Plan floor = new Plan(new Vec3(0,-6,0), new Vec3(0,1,0));
+		floor.setColor(new Vec3(0.6f,0.6f,0.6f));
+		floor.setReflexionCoeff(0.3f);
+		scene.addModel(floor);
+		
+		// Le motif partagé : des sphères dans une boule de rayon 1
+		SphereSet.Builder cluster = new SphereSet.Builder();
+		for (int i = 0; i < CLUSTER_SIZE; i++) {
+			Vec3 color = new Vec3(random.nextFloat(), random.nextFloat(), random.nextFloat());
+			int material = cluster.material(new Material(color, new Vec3(1,1,1), 10, random.nextInt(4) == 0 ? 0.5f : 0));
+			float x, y, z;
+			do {
+				x = random.nextFloat() * 2 - 1;
+				y = random.nextFloat() * 2 - 1;
+				z = random.nextFloat() * 2 - 1;
+			} while (x * x + y * y + z * z > 0.64f);
+			cluster.add(x, y, z, 0.1f + random.nextFloat() * 0.1f, material);
+		}
+		SphereSet geometry = cluster.build();
+		
+		float scale = (float) (3.0 / Math.cbrt(Math.max(1, count)));
+		
+		for (int i = 0; i < count; i++) {
+			Vec3 position = new Vec3(random.nextFloat() * 16 - 8, random.nextFloat() * 10 - 5, -8 - random.nextFloat() * 20);
+			double angle = random.nextDouble() * 2 * Math.PI;
+			float s = scale * (0.5f + random.nextFloat());
+			float cos = (float) Math.cos(angle) * s, sin = (float) Math.sin(angle) * s;
+			float[] matrix = {cos, 0, sin, 0, s, 0, -sin, 0, cos};
+			Material material = null;
+			if (i % 3 == 0) {
+				material = new Material(new Vec3(random.nextFloat(), random.nextFloat(), random.nextFloat()), new Vec3(1,1,1), 10, 0);
+			}
+			scene.addModel(new Instance(geometry, matrix, position, material));
+		}
+		
+		event.record(count + " instances of " + CLUSTER_SIZE + " spheres", scene);
+		return scene;
+	}
+	
+	/**
+	 * Builds the demo animation of a scene over a range of frames: the
+	 * camera sweeps from left to right, slightly above its position, and
+	 * every {@link Sphere} bobs up and down by half its radius, one full
+	 * period over the range.
+	 * 
+	 * @param scene The scene, its viewer position and spheres at frame 0 of the animation
+	 * @param firstFrame First frame of the range
+	 * @param lastFrame Last frame of the range
+	 * @return The animation, to pass to an {@link AnimationRenderer}
+	 */
+	public static AnimationRenderer.Animation buildAnimation(Scene scene, int firstFrame, int lastFrame) {
+		Vec3 viewer = new Vec3(scene.getViewerPosition());
+		Keyframes camera = new Keyframes()
+				.add(firstFrame, new Vec3(viewer.x - 1, viewer.y + 0.5f, viewer.z))
+				.add(lastFrame + 1, new Vec3(viewer.x + 1, viewer.y + 0.5f, viewer.z));
+		
+		List<Sphere> spheres = new ArrayList<>();
+		List<Vec3> centers = new ArrayList<>();
+		for (Model m : scene.getModelList()) {
+			if (m instanceof Sphere) {
+				spheres.add((Sphere) m);
+				centers.add(new Vec3(((Sphere) m).getCenter()));
+			}
+		}
+		double period = lastFrame - firstFrame + 1;
+		
+		return (s, frame) -> {
+			s.setViewerPosition(camera.valueAt(frame, new Vec3()));
+			double phase = 2 * Math.PI * (frame - firstFrame) / period;
+			for (int i = 0; i < spheres.size(); i++) {
+				Sphere sphere = spheres.get(i);
+				Vec3 center = centers.get(i);
+				// Décalage de phase par sphère pour que le mouvement ne soit pas uniforme
+				float dy = (float) (0.5 * sphere.getRayon() * Math.sin(phase + i));
+				sphere.setCenter(new Vec3(center.x, center.y + dy, center.z));
+			}
+		};
+	}
+	
 	/**
 	 * Retourne la description d'une scène.
 	 */
@@ -0,0 +1,45 @@
+package farm;
+
+/**
+ * Messages exchanged between a {@link RenderCoordinator} and its
+ * {@link RenderWorker}s, over one TCP connection per worker. All values
+ * are big-endian, as written by DataOutputStream.
+ * <pre>
+ * worker      HELLO    magic, version, threads           on connection
+ * coordinator SCENE    width, height, samples, length, scene text
+ * coordinator TILE     tile, x0, y0, x1, y1
+ * worker      RESULT   tile, (x1 - x0) * (y1 - y0) RGB pixels, row by row
+ * worker      ERROR    tile (-1 for the scene), message
+ * coordinator END      no more tiles, the worker closes the connection
+ * </pre>
+ * The coordinator never has more than a window of tiles outstanding on a
+ * connection, which bounds the work queued in a worker.
+ *
+ * @author KepsyIn
+ */
+final class FarmProtocol {
+
+	static final int MAGIC = 0x52544652;
+	static final int VERSION = 1;
+
+	static final byte SCENE = 1;
+	static final byte TILE = 2;
+	static final byte END = 3;
+	static final byte RESULT = 4;
+	static final byte ERROR = 5;
+
+	/**
+	 * Tiles outstanding per worker thread, enough to keep the threads busy
+	 * while results travel back.
+	 */
+	static final int TILES_PER_THREAD = 2;
+
+	/**
+	 * Largest scene text a worker reads, a few million spheres; a longer
+	 * length is taken as a corrupt or hostile header.
+	 */
+	static final int MAX_SCENE_BYTES = 256 << 20;
+
+	private FarmProtocol() {
+	}
+}
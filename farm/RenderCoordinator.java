@@ -0,0 +1,499 @@
+package farm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import model.Model;
+import model.Plan;
+import model.Sphere;
+import model.SphereSet;
+import parser.SceneFile;
+import raytracing.Scene;
+
+/**
+ * Renders a scene on several {@link RenderWorker} processes.
+ * The scene is sent once to every worker in the text scene format, then
+ * the image is cut into tiles which are dealt out in contiguous runs, one
+ * queue per worker. A worker whose queue runs dry steals tiles from the
+ * end of the longest other queue, so fast workers take over the work of
+ * slow ones. Each worker has at most a window of tiles in flight (twice
+ * its threads), which bounds the work queued on the worker side.
+ * When a worker fails, its connection drops or it stays silent past the
+ * timeout, the tiles it held go back to the queues of the others; a tile
+ * lost with {@link #MAX_ATTEMPTS} workers fails the render.
+ * Tiles are written straight into the image as they arrive, the result is
+ * the image {@link raytracing.Scene#draw(int, int, int)} gives.
+ * Only scenes of spheres and planes can be sent: the scene text refers to
+ * meshes by a file the workers may not have, and cannot describe
+ * instances, so scenes holding {@link model.TriangleMesh} or
+ * {@link model.Instance} models are refused before any connection.
+ *
+ * @author KepsyIn
+ */
+public class RenderCoordinator {
+
+	public static final int DEFAULT_TILE_SIZE = 64;
+	public static final int DEFAULT_TIMEOUT_MILLIS = 60_000;
+	public static final int MAX_ATTEMPTS = 3;
+
+	private final List<InetSocketAddress> workers;
+	private int tileSize = DEFAULT_TILE_SIZE;
+	private int timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+	// statistics of the last render
+	private int[] renderedTiles = new int[0];
+	private int stolenTiles;
+	private int retriedTiles;
+
+	/**
+	 * Creates a coordinator.
+	 *
+	 * @param workers Addresses of the workers
+	 */
+	public RenderCoordinator(List<InetSocketAddress> workers) {
+		if (workers.isEmpty()) {
+			throw new IllegalArgumentException("no worker");
+		}
+		this.workers = new ArrayList<>(workers);
+	}
+
+	/**
+	 * Parses worker addresses.
+	 *
+	 * @param list Comma separated host:port pairs, the port defaults to {@link RenderWorker#DEFAULT_PORT}
+	 * @return The addresses
+	 * @throws IllegalArgumentException If a port is not a number
+	 */
+	public static List<InetSocketAddress> parseWorkers(String list) {
+		List<InetSocketAddress> addresses = new ArrayList<>();
+		for (String worker : list.split(",")) {
+			worker = worker.trim();
+			if (worker.isEmpty()) {
+				continue;
+			}
+			int colon = worker.lastIndexOf(':');
+			String host = colon < 0 ? worker : worker.substring(0, colon);
+			int port = colon < 0 ? RenderWorker.DEFAULT_PORT : Integer.parseInt(worker.substring(colon + 1));
+			addresses.add(InetSocketAddress.createUnresolved(host.isEmpty() ? "localhost" : host, port));
+		}
+		return addresses;
+	}
+
+	/**
+	 * Sets the tile size.
+	 *
+	 * @param tileSize Width and height of a tile in pixels
+	 */
+	public void setTileSize(int tileSize) {
+		if (tileSize < 1) {
+			throw new IllegalArgumentException("tile size must be positive: " + tileSize);
+		}
+		this.tileSize = tileSize;
+	}
+
+	/**
+	 * Sets how long a worker may stay silent with tiles in flight before
+	 * it is considered dead, and the connection timeout.
+	 *
+	 * @param timeoutMillis Timeout in milliseconds
+	 */
+	public void setTimeout(int timeoutMillis) {
+		if (timeoutMillis < 1) {
+			throw new IllegalArgumentException("timeout must be positive: " + timeoutMillis);
+		}
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Renders a scene on the workers.
+	 *
+	 * @param file The scene and its render settings
+	 * @return The image, 3 bytes per pixel
+	 * @throws IOException If the scene cannot be sent, a worker reports an
+	 *         error, or tiles are left once every worker failed
+	 * @throws InterruptedException If the calling thread is interrupted
+	 * @throws IllegalArgumentException If the scene holds a mesh or an
+	 *         instance, or its text is larger than workers take
+	 */
+	public byte[] render(SceneFile file) throws IOException, InterruptedException {
+		checkSupported(file.getScene());
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		file.write(text);
+		if (text.size() > FarmProtocol.MAX_SCENE_BYTES) {
+			throw new IllegalArgumentException("scene text of " + text.size() + " bytes, workers take up to " + FarmProtocol.MAX_SCENE_BYTES);
+		}
+		Job job = new Job(file, text.toByteArray());
+
+		Link[] links = new Link[workers.size()];
+		for (int i = 0; i < links.length; i++) {
+			links[i] = new Link(job, i, workers.get(i));
+			links[i].start();
+		}
+		boolean complete = false;
+		try {
+			job.await();
+			complete = job.failure == null;
+		} finally {
+			job.finish();
+			if (!complete) {
+				// Unblocks the links still waiting for tiles
+				for (Link link : links) {
+					link.close();
+				}
+			}
+			for (Link link : links) {
+				link.join();
+			}
+		}
+
+		renderedTiles = job.renderedTiles;
+		stolenTiles = job.stolen;
+		retriedTiles = job.retried;
+		if (job.failure != null) {
+			throw job.failure;
+		}
+		return job.image;
+	}
+
+	/**
+	 * Checks that every model of a scene can be sent to the workers.
+	 *
+	 * @param scene The scene
+	 * @throws IllegalArgumentException If the scene holds another model than
+	 *         spheres, sphere sets and planes
+	 */
+	public static void checkSupported(Scene scene) {
+		for (Model model : scene.getModelList()) {
+			if (!(model instanceof Sphere || model instanceof SphereSet || model instanceof Plan)) {
+				throw new IllegalArgumentException("the render farm only renders spheres and planes, not "
+						+ model.getClass().getSimpleName() + " models");
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of tiles each worker rendered in the last render.
+	 *
+	 * @return The tile counts, in the order of the workers
+	 */
+	public int[] getRenderedTiles() {
+		return renderedTiles.clone();
+	}
+
+	/**
+	 * Gets the number of tiles taken from the queue of another worker in
+	 * the last render.
+	 *
+	 * @return The stolen tile count
+	 */
+	public int getStolenTiles() {
+		return stolenTiles;
+	}
+
+	/**
+	 * Gets the number of tiles sent again after their worker failed in the
+	 * last render.
+	 *
+	 * @return The retried tile count
+	 */
+	public int getRetriedTiles() {
+		return retriedTiles;
+	}
+
+	/**
+	 * Tiles of a render and their queues, shared by the links and guarded
+	 * by the job monitor.
+	 */
+	private final class Job {
+
+		final SceneFile file;
+		final byte[] sceneText;
+		final byte[] image;
+
+		final int[] tiles;
+		final int[] attempts;
+		final boolean[] done;
+		int remaining;
+
+		final List<ArrayDeque<Integer>> queues;
+		final boolean[] alive;
+		int aliveCount;
+		final int[] renderedTiles;
+		int stolen;
+		int retried;
+
+		IOException failure;
+		boolean finished;
+
+		Job(SceneFile file, byte[] sceneText) {
+			this.file = file;
+			this.sceneText = sceneText;
+			int width = file.getWidth(), height = file.getHeight();
+			this.image = new byte[3 * width * height];
+
+			int tilesX = (width + tileSize - 1) / tileSize;
+			int tilesY = (height + tileSize - 1) / tileSize;
+			int count = tilesX * tilesY;
+			tiles = new int[4 * count];
+			for (int t = 0; t < count; t++) {
+				int x0 = (t % tilesX) * tileSize, y0 = (t / tilesX) * tileSize;
+				tiles[4 * t] = x0;
+				tiles[4 * t + 1] = y0;
+				tiles[4 * t + 2] = Math.min(x0 + tileSize, width);
+				tiles[4 * t + 3] = Math.min(y0 + tileSize, height);
+			}
+			attempts = new int[count];
+			done = new boolean[count];
+			remaining = count;
+
+			// Contiguous runs, the neighbouring tiles of a worker share the same models
+			int n = workers.size();
+			queues = new ArrayList<>(n);
+			for (int w = 0; w < n; w++) {
+				ArrayDeque<Integer> queue = new ArrayDeque<>();
+				for (int t = (int) ((long) w * count / n); t < (long) (w + 1) * count / n; t++) {
+					queue.add(t);
+				}
+				queues.add(queue);
+			}
+			alive = new boolean[n];
+			Arrays.fill(alive, true);
+			aliveCount = n;
+			renderedTiles = new int[n];
+		}
+
+		/**
+		 * Takes the next tile for a worker, from its own queue or stolen
+		 * from the longest queue of a live worker.
+		 *
+		 * @return The tile, or -1 if every queue is empty
+		 */
+		synchronized int next(int worker) {
+			if (finished) {
+				return -1;
+			}
+			Integer tile = queues.get(worker).pollFirst();
+			if (tile != null) {
+				return tile;
+			}
+			int victim = -1;
+			for (int w = 0; w < queues.size(); w++) {
+				if (alive[w] && !queues.get(w).isEmpty() && (victim < 0 || queues.get(w).size() > queues.get(victim).size())) {
+					victim = w;
+				}
+			}
+			if (victim < 0) {
+				return -1;
+			}
+			stolen++;
+			return queues.get(victim).pollLast();
+		}
+
+		/**
+		 * Waits until tiles are queued again or the render is over.
+		 *
+		 * @return Whether there may be tiles to take
+		 */
+		synchronized boolean awaitWork() throws InterruptedException {
+			while (!finished && remaining > 0 && !hasQueued()) {
+				wait();
+			}
+			return !finished && remaining > 0;
+		}
+
+		private boolean hasQueued() {
+			for (ArrayDeque<Integer> queue : queues) {
+				if (!queue.isEmpty()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		synchronized void complete(int tile, int worker) {
+			if (!done[tile]) {
+				done[tile] = true;
+				renderedTiles[worker]++;
+				if (--remaining == 0) {
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Gives the tiles of a failed worker to the live ones.
+		 *
+		 * @param inFlight Tiles sent to the worker and not received
+		 */
+		synchronized void lost(int worker, ArrayDeque<Integer> inFlight, IOException cause) {
+			if (!alive[worker]) {
+				return;
+			}
+			alive[worker] = false;
+			aliveCount--;
+			if (finished) {
+				return;
+			}
+			List<Integer> orphans = new ArrayList<>(queues.get(worker));
+			queues.get(worker).clear();
+			for (int tile : inFlight) {
+				if (done[tile]) {
+					continue;
+				}
+				if (++attempts[tile] >= MAX_ATTEMPTS) {
+					fail(new IOException("tile " + tile + " lost with " + MAX_ATTEMPTS + " workers", cause));
+					return;
+				}
+				retried++;
+				orphans.add(tile);
+			}
+			if (aliveCount == 0) {
+				if (remaining > 0) {
+					fail(new IOException("no worker left, " + remaining + " tiles not rendered", cause));
+				}
+				return;
+			}
+			for (int tile : orphans) {
+				int target = -1;
+				for (int w = 0; w < queues.size(); w++) {
+					if (alive[w] && (target < 0 || queues.get(w).size() < queues.get(target).size())) {
+						target = w;
+					}
+				}
+				queues.get(target).add(tile);
+			}
+			notifyAll();
+		}
+
+		synchronized void fail(IOException e) {
+			if (failure == null) {
+				failure = e;
+			}
+			finished = true;
+			notifyAll();
+		}
+
+		synchronized void await() throws InterruptedException {
+			while (!finished && remaining > 0) {
+				wait();
+			}
+		}
+
+		synchronized void finish() {
+			finished = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Connection to one worker, feeding it tiles and reading its results
+	 * on a thread of its own.
+	 */
+	private final class Link extends Thread {
+
+		private final Job job;
+		private final int index;
+		private final InetSocketAddress address;
+		private final Socket socket = new Socket();
+		private final ArrayDeque<Integer> inFlight = new ArrayDeque<>();
+
+		Link(Job job, int index, InetSocketAddress address) {
+			super("farm-link-" + address);
+			setDaemon(true);
+			this.job = job;
+			this.index = index;
+			this.address = address;
+		}
+
+		@Override
+		public void run() {
+			try {
+				InetSocketAddress resolved = address.isUnresolved() ? new InetSocketAddress(address.getHostString(), address.getPort()) : address;
+				socket.connect(resolved, timeoutMillis);
+				socket.setSoTimeout(timeoutMillis);
+				socket.setTcpNoDelay(true);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+				if (in.readInt() != FarmProtocol.MAGIC || in.readInt() != FarmProtocol.VERSION) {
+					throw new IOException("not a render worker of this version");
+				}
+				int window = Math.max(1, in.readInt()) * FarmProtocol.TILES_PER_THREAD;
+
+				SceneFile file = job.file;
+				out.writeByte(FarmProtocol.SCENE);
+				out.writeInt(file.getWidth());
+				out.writeInt(file.getHeight());
+				out.writeInt(file.getSamples());
+				out.writeInt(job.sceneText.length);
+				out.write(job.sceneText);
+
+				while (true) {
+					for (int tile; inFlight.size() < window && (tile = job.next(index)) >= 0; ) {
+						out.writeByte(FarmProtocol.TILE);
+						out.writeInt(tile);
+						for (int k = 0; k < 4; k++) {
+							out.writeInt(job.tiles[4 * tile + k]);
+						}
+						inFlight.add(tile);
+					}
+					out.flush();
+
+					if (inFlight.isEmpty()) {
+						if (!job.awaitWork()) {
+							break;
+						}
+						continue;
+					}
+					receive(in);
+				}
+
+				out.writeByte(FarmProtocol.END);
+				out.flush();
+			} catch (IOException e) {
+				job.lost(index, inFlight, new IOException("worker " + address + ": " + e.getMessage(), e));
+			} catch (InterruptedException e) {
+				// The render is over
+			} finally {
+				close();
+			}
+		}
+
+		private void receive(DataInputStream in) throws IOException {
+			byte type = in.readByte();
+			int tile = in.readInt();
+			if (type == FarmProtocol.ERROR) {
+				job.fail(new IOException("worker " + address + " failed on " + (tile < 0 ? "the scene" : "tile " + tile) + ": " + in.readUTF()));
+				inFlight.clear();
+				return;
+			}
+			if (type != FarmProtocol.RESULT || !inFlight.remove(tile)) {
+				throw new IOException("unexpected message " + type + " for tile " + tile);
+			}
+			int width = job.file.getWidth();
+			int x0 = job.tiles[4 * tile], y0 = job.tiles[4 * tile + 1];
+			int x1 = job.tiles[4 * tile + 2], y1 = job.tiles[4 * tile + 3];
+			for (int y = y0; y < y1; y++) {
+				in.readFully(job.image, 3 * (y * width + x0), 3 * (x1 - x0));
+			}
+			job.complete(tile, index);
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Already closed
+			}
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package farm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import parser.SceneBuilder;
+import parser.SceneFile;
+import parser.SceneParser;
+import raytracing.Scene;
+
+/**
+ * Worker of a render farm: listens on a TCP port, receives a scene from a
+ * {@link RenderCoordinator} and renders the tiles it is sent on a pool of
+ * threads, sending each tile back as soon as it is done.
+ * Several coordinators may be connected at once, they share the threads.
+ * Scenes holding meshes are refused: a scene received from the network
+ * never opens a file of the worker host.
+ * See {@link FarmProtocol} for the messages.
+ *
+ * @author KepsyIn
+ */
+public class RenderWorker implements Closeable {
+
+	public static final int DEFAULT_PORT = 7450;
+
+	// Scenes with this many models are packed into sphere sets, as by the demo
+	private static final int PACKED_SPHERES = 10_000;
+
+	private final ServerSocket server;
+	private final int parallelism;
+	private final ExecutorService pool;
+	private final Set<Socket> sessions = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Creates a worker listening on a port.
+	 *
+	 * @param port The port, 0 for any free port
+	 * @param parallelism Number of rendering threads
+	 * @throws IOException If the port cannot be bound
+	 */
+	public RenderWorker(int port, int parallelism) throws IOException {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		}
+		this.server = new ServerSocket(port);
+		this.parallelism = parallelism;
+		this.pool = Executors.newFixedThreadPool(parallelism, task -> {
+			Thread thread = new Thread(task, "farm-worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Gets the port the worker listens on.
+	 *
+	 * @return The local port
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Accepts coordinators until the worker is closed, each connection is
+	 * served on its own thread.
+	 *
+	 * @throws IOException If accepting fails for another reason than closing
+	 */
+	public void serve() throws IOException {
+		while (!server.isClosed()) {
+			Socket socket;
+			try {
+				socket = server.accept();
+			} catch (SocketException e) {
+				if (server.isClosed()) {
+					return;
+				}
+				throw e;
+			}
+			sessions.add(socket);
+			Thread session = new Thread(() -> session(socket), "farm-session-" + socket.getRemoteSocketAddress());
+			session.setDaemon(true);
+			session.start();
+		}
+	}
+
+	/**
+	 * Starts serving on a background thread.
+	 *
+	 * @return The accepting thread
+	 */
+	public Thread start() {
+		Thread thread = new Thread(() -> {
+			try {
+				serve();
+			} catch (IOException e) {
+				System.err.println("render worker stopped: " + e);
+			}
+		}, "farm-accept-" + getPort());
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Stops accepting coordinators and stops the threads. Connections in
+	 * progress are dropped, their coordinators give the tiles to other
+	 * workers.
+	 */
+	@Override
+	public void close() throws IOException {
+		server.close();
+		pool.shutdownNow();
+		for (Socket socket : sessions) {
+			socket.close();
+		}
+	}
+
+	private void session(Socket socket) {
+		try (Socket s = socket) {
+			s.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			out.writeInt(FarmProtocol.MAGIC);
+			out.writeInt(FarmProtocol.VERSION);
+			out.writeInt(parallelism);
+			out.flush();
+
+			SceneFile file = null;
+			while (true) {
+				byte type = in.readByte();
+				if (type == FarmProtocol.SCENE) {
+					file = readScene(in, out);
+				} else if (type == FarmProtocol.TILE) {
+					int tile = in.readInt();
+					int x0 = in.readInt(), y0 = in.readInt(), x1 = in.readInt(), y1 = in.readInt();
+					if (file == null) {
+						sendError(out, tile, "tile before the scene");
+					} else if (x0 < 0 || y0 < 0 || x1 > file.getWidth() || y1 > file.getHeight() || x0 >= x1 || y0 >= y1) {
+						sendError(out, tile, "tile out of the image");
+					} else {
+						SceneFile scene = file;
+						pool.execute(() -> renderTile(scene, tile, x0, y0, x1, y1, out));
+					}
+				} else if (type == FarmProtocol.END) {
+					return;
+				} else {
+					throw new IOException("unknown message " + type);
+				}
+			}
+		} catch (EOFException | RejectedExecutionException e) {
+			// The coordinator went away, or the worker is closing
+		} catch (IOException e) {
+			if (!server.isClosed()) {
+				System.err.println("render worker: connection lost: " + e);
+			}
+		} finally {
+			sessions.remove(socket);
+		}
+	}
+
+	private SceneFile readScene(DataInputStream in, DataOutputStream out) throws IOException {
+		int width = in.readInt(), height = in.readInt(), samples = in.readInt();
+		int length = in.readInt();
+		if (length < 0 || length > FarmProtocol.MAX_SCENE_BYTES || width <= 0 || height <= 0 || samples <= 0) {
+			throw new IOException("bad scene header " + width + "x" + height + " samples " + samples + " length " + length);
+		}
+		byte[] text = new byte[length];
+		in.readFully(text);
+		try {
+			// Mesh files would be read from the disk of the worker, by any peer
+			SceneBuilder builder = new SceneBuilder() {
+				@Override
+				public void mesh(String file, int material) throws IOException {
+					throw new IOException("meshes are not rendered by the farm");
+				}
+			};
+			new SceneParser(new ByteArrayInputStream(text), builder).parse();
+			Scene scene = builder.getScene();
+			if (scene.getModelList().size() >= PACKED_SPHERES) {
+				scene.packSpheres();
+			}
+			// Builds the hierarchy once, not in the first tiles
+			scene.getAccelerationStructure();
+			return new SceneFile(scene, width, height, samples);
+		} catch (IOException | RuntimeException e) {
+			sendError(out, -1, "scene not loaded: " + e);
+			return null;
+		}
+	}
+
+	private static void renderTile(SceneFile file, int tile, int x0, int y0, int x1, int y1, DataOutputStream out) {
+		int width = file.getWidth();
+		try {
+			// Rows of the tile at full width, only the tile columns are sent
+			byte[] band = new byte[3 * width * (y1 - y0)];
+			file.getScene().renderTile(band, y0, width, file.getHeight(), file.getSamples(), x0, y0, x1, y1);
+			synchronized (out) {
+				out.writeByte(FarmProtocol.RESULT);
+				out.writeInt(tile);
+				for (int y = 0; y < y1 - y0; y++) {
+					out.write(band, 3 * (y * width + x0), 3 * (x1 - x0));
+				}
+				out.flush();
+			}
+		} catch (RuntimeException e) {
+			try {
+				sendError(out, tile, e.toString());
+			} catch (IOException lost) {
+				// The coordinator will not wait for this tile
+			}
+		} catch (IOException e) {
+			// Connection closed, the coordinator retries the tile elsewhere
+		}
+	}
+
+	private static void sendError(DataOutputStream out, int tile, String message) throws IOException {
+		synchronized (out) {
+			out.writeByte(FarmProtocol.ERROR);
+			out.writeInt(tile);
+			out.writeUTF(message.length() > 1000 ? message.substring(0, 1000) : message);
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package model;
+
+import utils.Vec3;
+
+/**
+ * Axis-aligned bounding box of a model.
+ * 
+ * @author KepsyIn
+ */
+public class BoundingBox {
+	
+	public double minX, minY, minZ;
+	public double maxX, maxY, maxZ;
+	
+	/**
+	 * Creates an empty box (min above max on every axis).
+	 */
+	public BoundingBox() {
+		reset();
+	}
+	
+	/**
+	 * Creates a box from its two extreme corners.
+	 * 
+	 * @param min Corner with the smallest coordinates
+	 * @param max Corner with the largest coordinates
+	 */
+	public BoundingBox(Vec3 min, Vec3 max) {
+		this.minX = min.x;
+		this.minY = min.y;
+		this.minZ = min.z;
+		this.maxX = max.x;
+		this.maxY = max.y;
+		this.maxZ = max.z;
+	}
+	
+	/**
+	 * Empties the box.
+	 * 
+	 * @return This box
+	 */
+	public BoundingBox reset() {
+		minX = minY = minZ = Double.POSITIVE_INFINITY;
+		maxX = maxY = maxZ = Double.NEGATIVE_INFINITY;
+		return this;
+	}
+	
+	/**
+	 * Grows the box to contain a point.
+	 * 
+	 * @param x,y,z The point coordinates
+	 * @return This box
+	 */
+	public BoundingBox expand(double x, double y, double z) {
+		minX = Math.min(minX, x);
+		minY = Math.min(minY, y);
+		minZ = Math.min(minZ, z);
+		maxX = Math.max(maxX, x);
+		maxY = Math.max(maxY, y);
+		maxZ = Math.max(maxZ, z);
+		return this;
+	}
+	
+	/**
+	 * Grows the box to contain another box.
+	 * 
+	 * @param that The box to include
+	 * @return This box
+	 */
+	public BoundingBox expand(BoundingBox that) {
+		minX = Math.min(minX, that.minX);
+		minY = Math.min(minY, that.minY);
+		minZ = Math.min(minZ, that.minZ);
+		maxX = Math.max(maxX, that.maxX);
+		maxY = Math.max(maxY, that.maxY);
+		maxZ = Math.max(maxZ, that.maxZ);
+		return this;
+	}
+	
+	/**
+	 * Checks whether the box contains no point.
+	 * 
+	 * @return true if the box is empty
+	 */
+	public boolean isEmpty() {
+		return minX > maxX || minY > maxY || minZ > maxZ;
+	}
+	
+	/**
+	 * Computes the surface area, used by the SAH cost model.
+	 * 
+	 * @return The surface area, 0 for an empty box
+	 */
+	public double surfaceArea() {
+		if (isEmpty()) {
+			return 0;
+		}
+		double dx = maxX - minX;
+		double dy = maxY - minY;
+		double dz = maxZ - minZ;
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+	
+	@Override
+	public String toString() {
+		return "[(" + minX + "," + minY + "," + minZ + "),(" + maxX + "," + maxY + "," + maxZ + ")]";
+	}
+}
@@ -0,0 +1,579 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+ * Bounding box tree over a set of primitives, built with the binned
+ * surface area heuristic (SAH).
+ * Nodes are stored in flat arrays in depth-first order: the left child of
+ * an inner node directly follows it, the right child index is stored, and
+ * each node knows the index following its subtree, so a tree can also be
+ * walked without a stack. Leaves refer to a range of {@link #getOrder()},
+ * which lists the primitives in leaf order.
+ * The tree only handles boxes, the owner of the primitives does the ray
+ * tests.
+ *
+ * @author KepsyIn
+ */
+public class BoxHierarchy {
+
+	public static final int MAX_LEAF_SIZE = 4;
+
+	/**
+	 * Cost of a primitive test relative to a node visit, used by the
+	 * default construction.
+	 */
+	public static final double INTERSECTION_COST = 1.0;
+
+	private static final int BIN_COUNT = 16;
+
+	private static final double TRAVERSAL_COST = 1.0;
+
+	private final float[] nodeBounds;
+	private final int[] nodeStart;
+	private final int[] nodeSize;
+	private final int[] nodeSkip;
+	private final int[] order;
+	private int nodeCount;
+	private int depth;
+
+	// build-time data
+	private int maxLeafSize;
+	private double intersectionCost;
+	private float[] boxes;
+	private float[] centroids;
+	private int[] binCount;
+	private double[] binBounds;
+	private double[] rightArea;
+	private int[] rightCount;
+
+	/**
+	 * Builds a tree over primitive boxes.
+	 *
+	 * @param boxes Boxes of the primitives, 6 values each (min x, y, z then
+	 *              max x, y, z); they must enclose the primitives
+	 * @param count Number of primitives
+	 */
+	public BoxHierarchy(float[] boxes, int count) {
+		this(boxes, count, MAX_LEAF_SIZE, INTERSECTION_COST);
+	}
+
+	/**
+	 * Builds a tree over primitive boxes, with leaves sized for the cost of
+	 * the primitive tests. Cheap primitives stored contiguously are better
+	 * served by larger leaves and fewer node visits.
+	 *
+	 * @param boxes Boxes of the primitives, 6 values each (min x, y, z then
+	 *              max x, y, z); they must enclose the primitives
+	 * @param count Number of primitives
+	 * @param maxLeafSize Largest number of primitives in a leaf
+	 * @param intersectionCost Cost of a primitive test relative to a node visit
+	 */
+	public BoxHierarchy(float[] boxes, int count, int maxLeafSize, double intersectionCost) {
+		if (maxLeafSize < 1 || !(intersectionCost > 0)) {
+			throw new IllegalArgumentException("invalid leaf size " + maxLeafSize + " or cost " + intersectionCost);
+		}
+		this.maxLeafSize = maxLeafSize;
+		this.intersectionCost = intersectionCost;
+		this.boxes = boxes;
+		this.order = new int[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+
+		int maxNodes = Math.max(1, 2 * count - 1);
+		nodeBounds = new float[6 * maxNodes];
+		nodeStart = new int[maxNodes];
+		nodeSize = new int[maxNodes];
+
+		if (count > 0) {
+			centroids = new float[3 * count];
+			for (int i = 0; i < count; i++) {
+				for (int k = 0; k < 3; k++) {
+					centroids[3 * i + k] = 0.5f * (boxes[6 * i + k] + boxes[6 * i + 3 + k]);
+				}
+			}
+			binCount = new int[BIN_COUNT];
+			binBounds = new double[6 * BIN_COUNT];
+			rightArea = new double[BIN_COUNT];
+			rightCount = new int[BIN_COUNT];
+			build(0, count, 1);
+		}
+
+		this.boxes = null;
+		centroids = null;
+		binCount = null;
+		binBounds = null;
+		rightArea = null;
+		rightCount = null;
+
+		nodeSkip = skips(nodeStart, nodeSize, nodeCount);
+	}
+
+	/**
+	 * Wraps a tree built earlier, for instance read back from a file.
+	 * The links between nodes are checked, leaf ranges are left to the
+	 * owner of the primitives.
+	 *
+	 * @param nodeBounds Node boxes, 6 values per node
+	 * @param nodeStart Right child of inner nodes, first position in the order of leaves
+	 * @param nodeSize Primitive count of leaves, 0 for inner nodes
+	 * @param nodeCount Number of nodes
+	 * @param order Primitives in leaf order, or null if the owner already
+	 *              stores its primitives in leaf order
+	 * @throws IllegalArgumentException If the nodes do not form a depth-first tree
+	 */
+	public BoxHierarchy(float[] nodeBounds, int[] nodeStart, int[] nodeSize, int nodeCount, int[] order) {
+		if (nodeBounds.length < 6 * nodeCount || nodeStart.length < nodeCount || nodeSize.length < nodeCount) {
+			throw new IllegalArgumentException("arrays shorter than " + nodeCount + " nodes");
+		}
+		this.nodeBounds = nodeBounds;
+		this.nodeStart = nodeStart;
+		this.nodeSize = nodeSize;
+		this.nodeCount = nodeCount;
+		this.order = order;
+		this.intersectionCost = INTERSECTION_COST;
+
+		// Every node is visited once from its parent, which gives the depth
+		int[] level = new int[nodeCount];
+		if (nodeCount > 0) {
+			level[0] = 1;
+		}
+		for (int node = 0; node < nodeCount; node++) {
+			if (level[node] == 0) {
+				throw new IllegalArgumentException("node " + node + " has no parent");
+			}
+			depth = Math.max(depth, level[node]);
+			if (nodeSize[node] < 0) {
+				throw new IllegalArgumentException("node " + node + " has a negative size");
+			}
+			if (nodeSize[node] == 0) {
+				int right = nodeStart[node];
+				if (right <= node + 1 || right >= nodeCount || level[node + 1] != 0 || level[right] != 0) {
+					throw new IllegalArgumentException("node " + node + " has invalid children");
+				}
+				level[node + 1] = level[right] = level[node] + 1;
+			}
+		}
+
+		this.nodeSkip = skips(nodeStart, nodeSize, nodeCount);
+	}
+
+	/**
+	 * Computes for each node the index following its subtree.
+	 */
+	private static int[] skips(int[] nodeStart, int[] nodeSize, int nodeCount) {
+		int[] skip = new int[nodeCount];
+		for (int node = nodeCount - 1; node >= 0; node--) {
+			skip[node] = nodeSize[node] > 0 ? node + 1 : skip[nodeStart[node]];
+		}
+		return skip;
+	}
+
+	/**
+	 * Recursively builds the subtree over order[start, end[.
+	 *
+	 * @return The index of the created node
+	 */
+	private int build(int start, int end, int level) {
+		int node = nodeCount++;
+		depth = Math.max(depth, level);
+
+		double cminX = Double.POSITIVE_INFINITY, cminY = Double.POSITIVE_INFINITY, cminZ = Double.POSITIVE_INFINITY;
+		double cmaxX = Double.NEGATIVE_INFINITY, cmaxY = Double.NEGATIVE_INFINITY, cmaxZ = Double.NEGATIVE_INFINITY;
+
+		int o = 6 * node;
+		nodeBounds[o] = nodeBounds[o + 1] = nodeBounds[o + 2] = Float.POSITIVE_INFINITY;
+		nodeBounds[o + 3] = nodeBounds[o + 4] = nodeBounds[o + 5] = Float.NEGATIVE_INFINITY;
+
+		for (int i = start; i < end; i++) {
+			int p = order[i];
+			for (int k = 0; k < 3; k++) {
+				nodeBounds[o + k] = Math.min(nodeBounds[o + k], boxes[6 * p + k]);
+				nodeBounds[o + 3 + k] = Math.max(nodeBounds[o + 3 + k], boxes[6 * p + 3 + k]);
+			}
+			cminX = Math.min(cminX, centroids[3 * p]);
+			cminY = Math.min(cminY, centroids[3 * p + 1]);
+			cminZ = Math.min(cminZ, centroids[3 * p + 2]);
+			cmaxX = Math.max(cmaxX, centroids[3 * p]);
+			cmaxY = Math.max(cmaxY, centroids[3 * p + 1]);
+			cmaxZ = Math.max(cmaxZ, centroids[3 * p + 2]);
+		}
+
+		int count = end - start;
+		if (count == 1) {
+			makeLeaf(node, start, count);
+			return node;
+		}
+
+		double[] cmin = {cminX, cminY, cminZ};
+		double[] cmax = {cmaxX, cmaxY, cmaxZ};
+
+		// Find the cheapest binned split over the three axes
+		double parentArea = area(nodeBounds, o);
+		double bestCost = Double.POSITIVE_INFINITY;
+		int bestAxis = -1;
+		int bestBin = -1;
+
+		double[] acc = new double[6];
+
+		for (int axis = 0; axis < 3; axis++) {
+			double extent = cmax[axis] - cmin[axis];
+			if (extent <= 0) {
+				continue;
+			}
+			double scale = BIN_COUNT / extent;
+
+			Arrays.fill(binCount, 0);
+			for (int k = 0; k < BIN_COUNT; k++) {
+				resetBox(binBounds, 6 * k);
+			}
+			for (int i = start; i < end; i++) {
+				int p = order[i];
+				int bin = Math.min(BIN_COUNT - 1, (int) ((centroids[3 * p + axis] - cmin[axis]) * scale));
+				binCount[bin]++;
+				for (int k = 0; k < 3; k++) {
+					binBounds[6 * bin + k] = Math.min(binBounds[6 * bin + k], boxes[6 * p + k]);
+					binBounds[6 * bin + 3 + k] = Math.max(binBounds[6 * bin + 3 + k], boxes[6 * p + 3 + k]);
+				}
+			}
+
+			// Sweep from the right to get the area of every right part
+			resetBox(acc, 0);
+			int n = 0;
+			for (int k = BIN_COUNT - 1; k > 0; k--) {
+				growBox(acc, 0, binBounds, 6 * k);
+				n += binCount[k];
+				rightArea[k] = area(acc, 0);
+				rightCount[k] = n;
+			}
+
+			// Then from the left, evaluating each split plane
+			resetBox(acc, 0);
+			n = 0;
+			for (int k = 0; k < BIN_COUNT - 1; k++) {
+				growBox(acc, 0, binBounds, 6 * k);
+				n += binCount[k];
+				if (n == 0 || rightCount[k + 1] == 0) {
+					continue;
+				}
+				double cost = TRAVERSAL_COST + intersectionCost * (area(acc, 0) * n + rightArea[k + 1] * rightCount[k + 1]) / parentArea;
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = axis;
+					bestBin = k;
+				}
+			}
+		}
+
+		double leafCost = intersectionCost * count;
+		if (count <= maxLeafSize && (bestAxis < 0 || bestCost >= leafCost)) {
+			makeLeaf(node, start, count);
+			return node;
+		}
+
+		int middle;
+		if (bestAxis < 0) {
+			// All centroids are identical, split arbitrarily
+			middle = (start + end) >>> 1;
+		} else {
+			double scale = BIN_COUNT / (cmax[bestAxis] - cmin[bestAxis]);
+			int i = start;
+			int j = end - 1;
+			while (i <= j) {
+				int p = order[i];
+				int bin = Math.min(BIN_COUNT - 1, (int) ((centroids[3 * p + bestAxis] - cmin[bestAxis]) * scale));
+				if (bin <= bestBin) {
+					i++;
+				} else {
+					order[i] = order[j];
+					order[j--] = p;
+				}
+			}
+			middle = i;
+		}
+
+		nodeSize[node] = 0;
+		build(start, middle, level + 1);
+		nodeStart[node] = build(middle, end, level + 1);
+		return node;
+	}
+
+	private void makeLeaf(int node, int start, int count) {
+		nodeStart[node] = start;
+		nodeSize[node] = count;
+	}
+
+	private static void resetBox(double[] box, int o) {
+		box[o] = box[o + 1] = box[o + 2] = Double.POSITIVE_INFINITY;
+		box[o + 3] = box[o + 4] = box[o + 5] = Double.NEGATIVE_INFINITY;
+	}
+
+	private static void growBox(double[] box, int o, double[] that, int t) {
+		for (int k = 0; k < 3; k++) {
+			box[o + k] = Math.min(box[o + k], that[t + k]);
+			box[o + 3 + k] = Math.max(box[o + 3 + k], that[t + 3 + k]);
+		}
+	}
+
+	private static void growBox(float[] box, int o, float[] that, int t) {
+		for (int k = 0; k < 3; k++) {
+			box[o + k] = Math.min(box[o + k], that[t + k]);
+			box[o + 3 + k] = Math.max(box[o + 3 + k], that[t + 3 + k]);
+		}
+	}
+
+	private static double area(float[] box, int o) {
+		double dx = box[o + 3] - box[o];
+		double dy = box[o + 4] - box[o + 1];
+		double dz = box[o + 5] - box[o + 2];
+		if (dx < 0 || dy < 0 || dz < 0) {
+			return 0;
+		}
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+
+	private static double area(double[] box, int o) {
+		double dx = box[o + 3] - box[o];
+		double dy = box[o + 4] - box[o + 1];
+		double dz = box[o + 5] - box[o + 2];
+		if (dx < 0 || dy < 0 || dz < 0) {
+			return 0;
+		}
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+
+	/**
+	 * Recomputes the node boxes bottom-up from new primitive boxes, keeping
+	 * the shape of the tree. Runs in linear time, but the tree gets slower
+	 * as the primitives move away from where it was built; see
+	 * {@link #cost()}.
+	 *
+	 * @param boxes Boxes of the primitives in leaf order, 6 values each
+	 */
+	public void refit(float[] boxes) {
+		float[] bounds = nodeBounds;
+		// Children follow their parent in depth-first order
+		for (int node = nodeCount - 1; node >= 0; node--) {
+			int o = 6 * node;
+			bounds[o] = bounds[o + 1] = bounds[o + 2] = Float.POSITIVE_INFINITY;
+			bounds[o + 3] = bounds[o + 4] = bounds[o + 5] = Float.NEGATIVE_INFINITY;
+			if (nodeSize[node] > 0) {
+				int end = nodeStart[node] + nodeSize[node];
+				for (int p = nodeStart[node]; p < end; p++) {
+					growBox(bounds, o, boxes, 6 * p);
+				}
+			} else {
+				growBox(bounds, o, bounds, 6 * (node + 1));
+				growBox(bounds, o, bounds, 6 * nodeStart[node]);
+			}
+		}
+	}
+
+	/**
+	 * Estimates the cost of tracing a ray through the tree with the surface
+	 * area heuristic: node visits and primitive tests weighted by the
+	 * chance of a ray hitting the root to hit their box.
+	 *
+	 * @return The expected cost of a ray, in node visits; 0 for an empty or flat tree
+	 */
+	public double cost() {
+		double root = nodeCount > 0 ? area(nodeBounds, 0) : 0;
+		if (!(root > 0)) {
+			return 0;
+		}
+		double sum = 0;
+		for (int node = 0; node < nodeCount; node++) {
+			double a = area(nodeBounds, 6 * node);
+			sum += nodeSize[node] > 0 ? intersectionCost * nodeSize[node] * a : TRAVERSAL_COST * a;
+		}
+		return sum / root;
+	}
+
+	/**
+	 * Slab test between a ray and the box of a node.
+	 *
+	 * @param node The node
+	 * @param ox Ray origin
+	 * @param oy Ray origin
+	 * @param oz Ray origin
+	 * @param invX Inverse of the ray direction
+	 * @param invY Inverse of the ray direction
+	 * @param invZ Inverse of the ray direction
+	 * @param tMin Lower bound of the distance
+	 * @param tMax Upper bound of the distance
+	 * @return The entry distance, or positive infinity if the box is missed in [tMin, tMax]
+	 */
+	public double entry(int node, double ox, double oy, double oz, double invX, double invY, double invZ, double tMin, double tMax) {
+		float[] bounds = nodeBounds;
+		int o = 6 * node;
+		double t1 = (bounds[o] - ox) * invX;
+		double t2 = (bounds[o + 3] - ox) * invX;
+		if (t1 > t2) { double t = t1; t1 = t2; t2 = t; }
+		if (t1 > tMin) tMin = t1;
+		if (t2 < tMax) tMax = t2;
+
+		t1 = (bounds[o + 1] - oy) * invY;
+		t2 = (bounds[o + 4] - oy) * invY;
+		if (t1 > t2) { double t = t1; t1 = t2; t2 = t; }
+		if (t1 > tMin) tMin = t1;
+		if (t2 < tMax) tMax = t2;
+
+		t1 = (bounds[o + 2] - oz) * invZ;
+		t2 = (bounds[o + 5] - oz) * invZ;
+		if (t1 > t2) { double t = t1; t1 = t2; t2 = t; }
+		if (t1 > tMin) tMin = t1;
+		if (t2 < tMax) tMax = t2;
+
+		return tMin <= tMax ? tMin : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Slab test between the box of a node and a group of rays sharing one
+	 * origin, with interval arithmetic: the inverse directions of the rays
+	 * are only known to lie in an interval per axis. A product of an offset
+	 * by the inverse direction is monotonic in the inverse, so the four
+	 * products of the interval ends bound the slab distances of every ray
+	 * of the group, and a miss means that no ray of the group hits the box.
+	 *
+	 * @param node The node
+	 * @param ox Origin of the rays
+	 * @param oy Origin of the rays
+	 * @param oz Origin of the rays
+	 * @param minInvX Smallest inverse direction of the rays
+	 * @param maxInvX Largest inverse direction of the rays
+	 * @param minInvY Smallest inverse direction of the rays
+	 * @param maxInvY Largest inverse direction of the rays
+	 * @param minInvZ Smallest inverse direction of the rays
+	 * @param maxInvZ Largest inverse direction of the rays
+	 * @param tMin Lower bound of the distance, common to the rays
+	 * @param tMax Upper bound of the distance, the largest one of the rays
+	 * @return A lower bound of the entry distances, or positive infinity if every ray misses the box in [tMin, tMax]
+	 */
+	public double intervalEntry(int node, double ox, double oy, double oz, double minInvX, double maxInvX,
+			double minInvY, double maxInvY, double minInvZ, double maxInvZ, double tMin, double tMax) {
+		float[] bounds = nodeBounds;
+		int o = 6 * node;
+		double lo = bounds[o] - ox;
+		double hi = bounds[o + 3] - ox;
+		double t1 = Math.min(Math.min(lo * minInvX, lo * maxInvX), Math.min(hi * minInvX, hi * maxInvX));
+		double t2 = Math.max(Math.max(lo * minInvX, lo * maxInvX), Math.max(hi * minInvX, hi * maxInvX));
+		// a NaN product (0 times an infinite inverse) leaves the bounds as they are
+		if (t1 > tMin) tMin = t1;
+		if (t2 < tMax) tMax = t2;
+
+		lo = bounds[o + 1] - oy;
+		hi = bounds[o + 4] - oy;
+		t1 = Math.min(Math.min(lo * minInvY, lo * maxInvY), Math.min(hi * minInvY, hi * maxInvY));
+		t2 = Math.max(Math.max(lo * minInvY, lo * maxInvY), Math.max(hi * minInvY, hi * maxInvY));
+		if (t1 > tMin) tMin = t1;
+		if (t2 < tMax) tMax = t2;
+
+		lo = bounds[o + 2] - oz;
+		hi = bounds[o + 5] - oz;
+		t1 = Math.min(Math.min(lo * minInvZ, lo * maxInvZ), Math.min(hi * minInvZ, hi * maxInvZ));
+		t2 = Math.max(Math.max(lo * minInvZ, lo * maxInvZ), Math.max(hi * minInvZ, hi * maxInvZ));
+		if (t1 > tMin) tMin = t1;
+		if (t2 < tMax) tMax = t2;
+
+		return tMin <= tMax ? tMin : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Rounds a box outward to floats, so the float box still encloses it.
+	 *
+	 * @param box Destination, 6 values per box
+	 * @param offset Position of the box in the destination
+	 * @param minX Box lower corner
+	 * @param minY Box lower corner
+	 * @param minZ Box lower corner
+	 * @param maxX Box upper corner
+	 * @param maxY Box upper corner
+	 * @param maxZ Box upper corner
+	 */
+	public static void setBox(float[] box, int offset, double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+		box[offset] = floor(minX);
+		box[offset + 1] = floor(minY);
+		box[offset + 2] = floor(minZ);
+		box[offset + 3] = ceil(maxX);
+		box[offset + 4] = ceil(maxY);
+		box[offset + 5] = ceil(maxZ);
+	}
+
+	private static float floor(double value) {
+		float f = (float) value;
+		return f > value ? Math.nextDown(f) : f;
+	}
+
+	private static float ceil(double value) {
+		float f = (float) value;
+		return f < value ? Math.nextUp(f) : f;
+	}
+
+	/**
+	 * Gets the node boxes, 6 values per node.
+	 *
+	 * @return The backing array, at least {@link #getNodeCount()} nodes long
+	 */
+	public float[] getNodeBounds() {
+		return nodeBounds;
+	}
+
+	/**
+	 * Gets the right child of inner nodes, or the first position in the
+	 * leaf order for leaves.
+	 *
+	 * @return The backing array
+	 */
+	public int[] getNodeStart() {
+		return nodeStart;
+	}
+
+	/**
+	 * Gets the number of primitives of each node, 0 for inner nodes.
+	 *
+	 * @return The backing array
+	 */
+	public int[] getNodeSize() {
+		return nodeSize;
+	}
+
+	/**
+	 * Gets for each node the index of the node following its subtree in
+	 * depth-first order, which is where a stackless walk resumes when the
+	 * node box is missed.
+	 *
+	 * @return The backing array
+	 */
+	public int[] getNodeSkip() {
+		return nodeSkip;
+	}
+
+	/**
+	 * Gets the primitives in leaf order.
+	 *
+	 * @return The backing array, leaves refer to ranges of it; null if the
+	 *         tree was wrapped without it
+	 */
+	public int[] getOrder() {
+		return order;
+	}
+
+	/**
+	 * Gets the number of nodes of the tree.
+	 *
+	 * @return The number of nodes
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Gets the depth of the tree.
+	 *
+	 * @return The number of levels, 0 for an empty tree
+	 */
+	public int getDepth() {
+		return depth;
+	}
+}
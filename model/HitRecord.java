@@ -0,0 +1,171 @@
+package model;
+
+import utils.Vec3;
+
+/**
+ * Result of a closest-hit query.
+ * Holds the nearest model found so far and its intersection distance.
+ * 
+ * @author KepsyIn
+ */
+public class HitRecord {
+	
+	public Model model;
+	
+	public double lambda;
+	
+	/**
+	 * Position of the model in the scene list, used to break ties
+	 * the same way a linear scan would (first model wins).
+	 */
+	public int order;
+	
+	/**
+	 * Primitive hit inside an aggregate model (such as a {@link SphereSet}),
+	 * -1 for simple models.
+	 */
+	public int primitive;
+	
+	// traversal stack lent to aggregate models
+	private int[] stack = new int[0];
+	
+	// lane buffer lent to vector kernels
+	private double[] lanes = new double[0];
+	
+	// object space rays lent to instances, origin and direction per nesting level
+	private Vec3[] rays = new Vec3[0];
+	private int rayDepth;
+	
+	/**
+	 * Clears the record before a new query.
+	 * 
+	 * @param lambdaMax Upper bound of the query
+	 * @return This record
+	 */
+	public HitRecord reset(double lambdaMax) {
+		this.model = null;
+		this.lambda = lambdaMax;
+		this.order = Integer.MAX_VALUE;
+		this.primitive = -1;
+		return this;
+	}
+	
+	/**
+	 * Keeps an intersection if it is closer than the current one.
+	 * 
+	 * @param m The intersected model
+	 * @param lambda Intersection distance
+	 * @param lambdaMin Lower bound of the query (exclusive)
+	 * @param order Position of the model in the scene list
+	 * @return true if the record was updated
+	 */
+	public boolean offer(Model m, double lambda, double lambdaMin, int order) {
+		return offer(m, lambda, lambdaMin, order, -1);
+	}
+	
+	/**
+	 * Keeps an intersection with a primitive of an aggregate model if it is
+	 * closer than the current one.
+	 * 
+	 * @param m The intersected model
+	 * @param lambda Intersection distance
+	 * @param lambdaMin Lower bound of the query (exclusive)
+	 * @param order Position of the model in the scene list
+	 * @param primitive Primitive of the model, -1 for simple models
+	 * @return true if the record was updated
+	 */
+	public boolean offer(Model m, double lambda, double lambdaMin, int order, int primitive) {
+		if (lambda > lambdaMin && (lambda < this.lambda || (lambda == this.lambda && model != null && order < this.order))) {
+			this.model = m;
+			this.lambda = lambda;
+			this.order = order;
+			this.primitive = primitive;
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Gets a traversal stack for an aggregate model, growing it if needed.
+	 * The stack is reused by the next query.
+	 * 
+	 * @param size Needed size
+	 * @return A stack at least size long
+	 */
+	public int[] stack(int size) {
+		if (stack.length < size) {
+			stack = new int[size];
+		}
+		return stack;
+	}
+	
+	/**
+	 * Gets a buffer to read the lanes of a vector, growing it if needed.
+	 * The buffer is reused by the next query.
+	 * 
+	 * @param size Needed size
+	 * @return A buffer at least size long
+	 */
+	public double[] lanes(int size) {
+		if (lanes.length < size) {
+			lanes = new double[size];
+		}
+		return lanes;
+	}
+	
+	/**
+	 * Lends a ray to an instance, for the duration of the query of its
+	 * geometry. Instances of instances get a ray per level.
+	 * 
+	 * @return Level of the ray, to pass to {@link #rayOrigin(int)} and {@link #rayDirection(int)}
+	 * @see #releaseRay()
+	 */
+	public int acquireRay() {
+		int level = rayDepth++;
+		if (rays.length < 2 * rayDepth) {
+			Vec3[] grown = new Vec3[2 * rayDepth];
+			System.arraycopy(rays, 0, grown, 0, rays.length);
+			for (int i = rays.length; i < grown.length; i++) {
+				grown[i] = new Vec3();
+			}
+			rays = grown;
+		}
+		return level;
+	}
+	
+	/**
+	 * Gives back the last ray acquired.
+	 */
+	public void releaseRay() {
+		rayDepth--;
+	}
+	
+	/**
+	 * Gets the origin of a lent ray.
+	 * 
+	 * @param level Level returned by {@link #acquireRay()}
+	 * @return The origin vector
+	 */
+	public Vec3 rayOrigin(int level) {
+		return rays[2 * level];
+	}
+	
+	/**
+	 * Gets the direction of a lent ray.
+	 * 
+	 * @param level Level returned by {@link #acquireRay()}
+	 * @return The direction vector
+	 */
+	public Vec3 rayDirection(int level) {
+		return rays[2 * level + 1];
+	}
+	
+	/**
+	 * Checks whether a model was hit.
+	 * 
+	 * @return true if the query found an intersection
+	 */
+	public boolean hasHit() {
+		return model != null;
+	}
+}
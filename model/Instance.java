@@ -0,0 +1,305 @@
+package model;
+
+import java.util.Arrays;
+import utils.Vec3;
+
+/**
+ * A transformed copy of a shared geometry.
+ * The instance only holds a reference to the geometry, an affine transform
+ * (3x3 matrix and translation, from object to world space) with its
+ * inverse, and optionally its own material; thousands of instances of one
+ * mesh or sphere set cost a few dozen bytes each.
+ * Rays are moved to object space instead of moving the geometry: the
+ * direction is transformed but not normalized, so a distance along the ray
+ * is the same in both spaces and hits compare directly with the other
+ * models of the scene. The scene hierarchy over the instance boxes is the
+ * top level, the hierarchy of the geometry (a {@link SphereSet} or a
+ * {@link TriangleMesh}) the bottom one.
+ * Hits report the instance as the model and the primitive of the geometry.
+ *
+ * @author KepsyIn
+ */
+public class Instance extends Model {
+
+	private static final float[] IDENTITY = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+
+	private final Model geometry;
+
+	// row-major, object to world and world to object
+	private final float[] matrix;
+	private final float[] inverse;
+	private final Vec3 translation;
+	// copies only moved keep the rays and normals of the geometry untouched
+	private final boolean translationOnly;
+
+	private final boolean ownMaterial;
+
+	/**
+	 * Creates an instance keeping the material of the geometry.
+	 *
+	 * @param geometry The shared geometry
+	 * @param matrix Linear part of the transform, 9 values in row-major order
+	 * @param translation Translation of the transform
+	 * @throws IllegalArgumentException If the matrix cannot be inverted
+	 */
+	public Instance(Model geometry, float[] matrix, Vec3 translation) {
+		this(geometry, matrix, translation, null);
+	}
+
+	/**
+	 * Creates an instance.
+	 *
+	 * @param geometry The shared geometry
+	 * @param matrix Linear part of the transform, 9 values in row-major order
+	 * @param translation Translation of the transform
+	 * @param material Material of the whole instance, or null to keep the materials of the geometry
+	 * @throws IllegalArgumentException If the matrix cannot be inverted
+	 */
+	public Instance(Model geometry, float[] matrix, Vec3 translation, Material material) {
+		if (matrix.length != 9) {
+			throw new IllegalArgumentException("a transform matrix has 9 values, not " + matrix.length);
+		}
+		this.geometry = geometry;
+		this.matrix = matrix.clone();
+		this.inverse = invert(matrix);
+		this.translation = new Vec3(translation);
+		this.translationOnly = Arrays.equals(matrix, IDENTITY);
+		this.ownMaterial = material != null;
+		if (material != null) {
+			material.applyTo(this);
+		}
+	}
+
+	/**
+	 * Creates an instance moved and uniformly scaled.
+	 *
+	 * @param geometry The shared geometry
+	 * @param translation Position of the object space origin
+	 * @param scale Scale factor, not 0
+	 * @param material Material of the whole instance, or null to keep the materials of the geometry
+	 */
+	public Instance(Model geometry, Vec3 translation, float scale, Material material) {
+		this(geometry, new float[] {scale, 0, 0, 0, scale, 0, 0, 0, scale}, translation, material);
+	}
+
+	private static float[] invert(float[] m) {
+		double c00 = (double) m[4] * m[8] - (double) m[5] * m[7];
+		double c01 = (double) m[5] * m[6] - (double) m[3] * m[8];
+		double c02 = (double) m[3] * m[7] - (double) m[4] * m[6];
+		double det = m[0] * c00 + m[1] * c01 + m[2] * c02;
+		if (det == 0 || !Double.isFinite(det)) {
+			throw new IllegalArgumentException("the transform matrix cannot be inverted");
+		}
+		double d = 1 / det;
+		return new float[] {
+				(float) (c00 * d), (float) (((double) m[2] * m[7] - (double) m[1] * m[8]) * d), (float) (((double) m[1] * m[5] - (double) m[2] * m[4]) * d),
+				(float) (c01 * d), (float) (((double) m[0] * m[8] - (double) m[2] * m[6]) * d), (float) (((double) m[2] * m[3] - (double) m[0] * m[5]) * d),
+				(float) (c02 * d), (float) (((double) m[1] * m[6] - (double) m[0] * m[7]) * d), (float) (((double) m[0] * m[4] - (double) m[1] * m[3]) * d)};
+	}
+
+	/**
+	 * Offers the closest hit of the geometry, in object space, to a hit record.
+	 *
+	 * @param P Ray starting point
+	 * @param v Ray direction
+	 * @param lambdaMin Lower bound of the distance (exclusive)
+	 * @param hit Closest hit so far, its model is set to this instance
+	 * @param order Position of the instance in the scene list
+	 * @return true if the record was updated
+	 */
+	@Override
+	public boolean intersect(Vec3 P, Vec3 v, double lambdaMin, HitRecord hit, int order) {
+		int level = hit.acquireRay();
+		Vec3 origin = hit.rayOrigin(level);
+		Vec3 direction = hit.rayDirection(level);
+		toObject(P, v, origin, direction);
+
+		boolean updated = geometry.intersect(origin, direction, lambdaMin, hit, order);
+		hit.releaseRay();
+		if (updated) {
+			hit.model = this;
+		}
+		return updated;
+	}
+
+	/**
+	 * Moves a ray to object space.
+	 *
+	 * @param P Ray starting point, in world space
+	 * @param v Ray direction, in world space
+	 * @param origin Receives the starting point in object space
+	 * @param direction Receives the direction in object space, not normalized
+	 */
+	private void toObject(Vec3 P, Vec3 v, Vec3 origin, Vec3 direction) {
+		if (translationOnly) {
+			origin.setSub(P, translation);
+			direction.set(v);
+		} else {
+			direction.setSub(P, translation);
+			origin.setMatMultiply(inverse, direction);
+			direction.setMatMultiply(inverse, v);
+		}
+	}
+
+	/**
+	 * Checks whether the geometry blocks a ray segment, allocating the
+	 * object space ray.
+	 */
+	@Override
+	public boolean isOccluding(Vec3 P, Vec3 v, double lambdaMin, double lambdaMax) {
+		return isOccluding(P, v, lambdaMin, lambdaMax, null);
+	}
+
+	/**
+	 * Checks whether the geometry blocks a ray segment, with the object
+	 * space ray lent by a hit record.
+	 */
+	@Override
+	public boolean isOccluding(Vec3 P, Vec3 v, double lambdaMin, double lambdaMax, HitRecord scratch) {
+		if (scratch == null) {
+			scratch = new HitRecord();
+		}
+		int level = scratch.acquireRay();
+		Vec3 origin = scratch.rayOrigin(level);
+		Vec3 direction = scratch.rayDirection(level);
+		toObject(P, v, origin, direction);
+
+		boolean occluding = geometry.isOccluding(origin, direction, lambdaMin, lambdaMax, scratch);
+		scratch.releaseRay();
+		return occluding;
+	}
+
+	/**
+	 * Computes the closest intersection with the instance.
+	 * Allocates a hit record, the renderer uses
+	 * {@link #intersect(Vec3, Vec3, double, HitRecord, int)} instead.
+	 *
+	 * @return Closest positive intersection distance or 0 if none
+	 */
+	@Override
+	public double getIntersection(Vec3 P, Vec3 v) {
+		HitRecord hit = new HitRecord().reset(Double.POSITIVE_INFINITY);
+		return intersect(P, v, 0, hit, 0) ? hit.lambda : 0;
+	}
+
+	/**
+	 * Computes the normal at a point without knowing the primitive hit:
+	 * sphere sets and meshes use the primitive the closest to the point.
+	 *
+	 * @param P A point on the surface, in world space
+	 * @return The normalized normal vector, in world space
+	 */
+	@Override
+	public Vec3 getNormal(Vec3 P) {
+		return getNormal(P, -1, new Vec3());
+	}
+
+	/**
+	 * Computes the normal at a point without allocating: the point is moved
+	 * to object space, and the normal of the geometry is moved back with the
+	 * transpose of the inverse matrix, which keeps it orthogonal to the
+	 * surface under non-uniform scaling.
+	 *
+	 * @param P A point on the surface, in world space
+	 * @param primitive Primitive of the geometry, -1 to let the geometry
+	 *                  take the one the closest to the point
+	 * @param normal Receives the normalized normal vector, in world space
+	 * @return The normal vector
+	 */
+	@Override
+	public Vec3 getNormal(Vec3 P, int primitive, Vec3 normal) {
+		if (translationOnly) {
+			return geometry.getNormal(normal.setSub(P, translation), primitive, normal);
+		}
+		float[] m = inverse;
+		float x = P.x - translation.x, y = P.y - translation.y, z = P.z - translation.z;
+		normal.set(m[0] * x + m[1] * y + m[2] * z, m[3] * x + m[4] * y + m[5] * z, m[6] * x + m[7] * y + m[8] * z);
+
+		// The point is read before the normal is written, by every model
+		geometry.getNormal(normal, primitive, normal);
+
+		x = normal.x;
+		y = normal.y;
+		z = normal.z;
+		return normal.set(m[0] * x + m[3] * y + m[6] * z, m[1] * x + m[4] * y + m[7] * z, m[2] * x + m[5] * y + m[8] * z).normalize();
+	}
+
+	/**
+	 * Gets the world box of the instance, enclosing the transformed corners
+	 * of the geometry box.
+	 *
+	 * @return The box, or null if the geometry is unbounded
+	 */
+	@Override
+	public BoundingBox getBounds() {
+		BoundingBox box = geometry.getBounds();
+		if (box == null || box.isEmpty()) {
+			return null;
+		}
+		BoundingBox world = new BoundingBox();
+		Vec3 corner = new Vec3();
+		Vec3 moved = new Vec3();
+		for (int i = 0; i < 8; i++) {
+			corner.set((float) ((i & 1) == 0 ? box.minX : box.maxX), (float) ((i & 2) == 0 ? box.minY : box.maxY), (float) ((i & 4) == 0 ? box.minZ : box.maxZ));
+			moved.setMatMultiply(matrix, corner).add(translation);
+			world.expand(moved.x, moved.y, moved.z);
+		}
+		return world;
+	}
+
+	@Override
+	public Vec3 getColor(int primitive) {
+		return ownMaterial ? getColor() : geometry.getColor(primitive);
+	}
+
+	@Override
+	public Vec3 getSpecular(int primitive) {
+		return ownMaterial ? getSpecular() : geometry.getSpecular(primitive);
+	}
+
+	@Override
+	public double getShininess(int primitive) {
+		return ownMaterial ? getShininess() : geometry.getShininess(primitive);
+	}
+
+	@Override
+	public float getReflexionCoeff(int primitive) {
+		return ownMaterial ? getReflexionCoeff() : geometry.getReflexionCoeff(primitive);
+	}
+
+	/**
+	 * Gets the shared geometry.
+	 *
+	 * @return The geometry, in object space
+	 */
+	public Model getGeometry() {
+		return geometry;
+	}
+
+	/**
+	 * Gets the linear part of the transform.
+	 *
+	 * @return A copy of the matrix, row-major
+	 */
+	public float[] getMatrix() {
+		return matrix.clone();
+	}
+
+	/**
+	 * Gets the translation of the transform.
+	 *
+	 * @return A copy of the translation
+	 */
+	public Vec3 getTranslation() {
+		return new Vec3(translation);
+	}
+
+	/**
+	 * Checks whether the instance overrides the materials of its geometry.
+	 *
+	 * @return true if the instance has its own material
+	 */
+	public boolean hasOwnMaterial() {
+		return ownMaterial;
+	}
+}
@@ -0,0 +1,99 @@
+package model;
+
+import utils.Vec3;
+
+/**
+ * Surface properties shared by the primitives of aggregate models.
+ * Holds the same properties as a {@link Model}: diffuse color, specular
+ * color, shininess and reflection coefficient.
+ *
+ * @author KepsyIn
+ */
+public final class Material {
+
+	public static final Material DEFAULT = new Material(Model.DEFAULT_COLOR, Model.DEFAULT_SPECULAR, 100, 0);
+
+	private final Vec3 color;
+	private final Vec3 specular;
+	private final double shininess;
+	private final float reflexionCoeff;
+
+	/**
+	 * Creates a material.
+	 *
+	 * @param color Diffuse color
+	 * @param specular Specular color
+	 * @param shininess Specular exponent
+	 * @param reflexionCoeff Reflection coefficient, from 0 to 1
+	 */
+	public Material(Vec3 color, Vec3 specular, double shininess, float reflexionCoeff) {
+		this.color = color;
+		this.specular = specular;
+		this.shininess = shininess;
+		this.reflexionCoeff = reflexionCoeff;
+	}
+
+	/**
+	 * Gets the material of a model.
+	 *
+	 * @param model The model
+	 * @return A material with the model properties
+	 */
+	public static Material of(Model model) {
+		return new Material(model.getColor(), model.getSpecular(), model.getShininess(), model.getReflexionCoeff());
+	}
+
+	/**
+	 * Gives the material properties to a model.
+	 *
+	 * @param model The model
+	 */
+	public void applyTo(Model model) {
+		model.setColor(color);
+		model.setSpecular(specular);
+		model.setShininess(shininess);
+		model.setReflexionCoeff(reflexionCoeff);
+	}
+
+	public Vec3 getColor() {
+		return color;
+	}
+
+	public Vec3 getSpecular() {
+		return specular;
+	}
+
+	public double getShininess() {
+		return shininess;
+	}
+
+	public float getReflexionCoeff() {
+		return reflexionCoeff;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Material)) {
+			return false;
+		}
+		Material that = (Material) o;
+		return equal(color, that.color) && equal(specular, that.specular)
+				&& Double.compare(shininess, that.shininess) == 0
+				&& Float.compare(reflexionCoeff, that.reflexionCoeff) == 0;
+	}
+
+	private static boolean equal(Vec3 a, Vec3 b) {
+		return Float.compare(a.x, b.x) == 0 && Float.compare(a.y, b.y) == 0 && Float.compare(a.z, b.z) == 0;
+	}
+
+	@Override
+	public int hashCode() {
+		int h = Double.hashCode(shininess) * 31 + Float.hashCode(reflexionCoeff);
+		h = h * 31 + Float.hashCode(color.x);
+		h = h * 31 + Float.hashCode(color.y);
+		h = h * 31 + Float.hashCode(color.z);
+		h = h * 31 + Float.hashCode(specular.x);
+		h = h * 31 + Float.hashCode(specular.y);
+		return h * 31 + Float.hashCode(specular.z);
+	}
+}
@@ -1,5 +1,9 @@
 package model;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import utils.Vec3;
 
 /**
@@ -19,6 +23,16 @@ public abstract class Model {
 	
 	public static final Vec3 DEFAULT_COLOR = new Vec3(1,1,1); // white
 	
+	// shared by every model, so that revisions of different models compare
+	private static final AtomicLong REVISIONS = new AtomicLong();
+	
+	private long revision;
+	private long materialRevision;
+	
+	// copied on write, moves are far more frequent than registrations;
+	// held weakly, so a dropped scene is not kept alive by its models
+	private volatile List<WeakReference<ModelObserver>> observers = List.of();
+	
 	public Model( Vec3 color ) {
 		this.color = color;
 		this.specular = DEFAULT_SPECULAR;
@@ -37,8 +51,196 @@ public abstract class Model {
 	 */
 	public abstract double getIntersection( Vec3 P , Vec3 v );
 	
+	/**
+	 * Offers the intersection of a ray with this model to a hit record.
+	 * Aggregate models override it to report the primitive they hit.
+	 * 
+	 * @param P Ray starting point
+	 * @param v Ray direction
+	 * @param lambdaMin Lower bound of the distance (exclusive)
+	 * @param hit Closest hit so far
+	 * @param order Position of the model in the scene list
+	 * @return true if the record was updated
+	 */
+	public boolean intersect( Vec3 P , Vec3 v , double lambdaMin , HitRecord hit , int order ) {
+		return hit.offer(this, getIntersection(P, v), lambdaMin, order);
+	}
+	
+	/**
+	 * Checks whether this model blocks a ray segment.
+	 * Used for shadow rays, where any blocker is enough and the closest
+	 * one does not matter.
+	 * 
+	 * @param P Ray starting point
+	 * @param v Ray direction
+	 * @param lambdaMin Lower bound of the distance (exclusive)
+	 * @param lambdaMax Upper bound of the distance (exclusive)
+	 * @return true if the ray hits the model in ]lambdaMin, lambdaMax[
+	 */
+	public boolean isOccluding( Vec3 P , Vec3 v , double lambdaMin , double lambdaMax ) {
+		double lambda = getIntersection(P, v);
+		return lambda > lambdaMin && lambda < lambdaMax;
+	}
+	
+	/**
+	 * Checks whether this model blocks a ray segment, with a hit record
+	 * lending temporary storage to models that need some, such as
+	 * {@link Instance}. The closest hit of the record is left as it is.
+	 * 
+	 * @param P Ray starting point
+	 * @param v Ray direction
+	 * @param lambdaMin Lower bound of the distance (exclusive)
+	 * @param lambdaMax Upper bound of the distance (exclusive)
+	 * @param scratch Record lending storage, may be null
+	 * @return true if the ray hits the model in ]lambdaMin, lambdaMax[
+	 */
+	public boolean isOccluding( Vec3 P , Vec3 v , double lambdaMin , double lambdaMax , HitRecord scratch ) {
+		return isOccluding(P, v, lambdaMin, lambdaMax);
+	}
+	
 	public abstract Vec3 getNormal(Vec3 P);
 	
+	/**
+	 * Computes the normal at a point into an existing vector.
+	 * Models should override it to avoid allocating on the hot path.
+	 * 
+	 * @param P A point on the model surface
+	 * @param normal Receives the normal vector
+	 * @return The normal vector
+	 */
+	public Vec3 getNormal(Vec3 P, Vec3 normal) {
+		return normal.set(getNormal(P));
+	}
+	
+	/**
+	 * Computes the normal at a point of a primitive into an existing vector.
+	 * 
+	 * @param P A point on the model surface
+	 * @param primitive Primitive reported by the hit record, -1 for simple models
+	 * @param normal Receives the normal vector
+	 * @return The normal vector
+	 */
+	public Vec3 getNormal(Vec3 P, int primitive, Vec3 normal) {
+		return getNormal(P, normal);
+	}
+	
+	/**
+	 * Computes an axis-aligned box enclosing this model.
+	 * Unbounded models (such as planes) return null and are tested
+	 * separately from the acceleration structure.
+	 * 
+	 * @return The bounding box, or null if the model is unbounded
+	 */
+	public BoundingBox getBounds() {
+		return null;
+	}
+	
+	/**
+	 * Records that the shape or the position of this model changed and
+	 * tells the observers. Setters of geometric properties call it, so that
+	 * the bounding structures holding the model refit its box.
+	 * Changing a vector in place, such as the one returned by a getter,
+	 * is not seen.
+	 */
+	protected void markMoved() {
+		revision = REVISIONS.incrementAndGet();
+		boolean cleared = false;
+		for (WeakReference<ModelObserver> reference : observers) {
+			ModelObserver observer = reference.get();
+			if (observer != null) {
+				observer.modelMoved(this);
+			} else {
+				cleared = true;
+			}
+		}
+		if (cleared) {
+			removeObserver(null);
+		}
+	}
+	
+	/**
+	 * Records that the material of this model changed, the shape and the
+	 * position being the same. The material setters call it; observers are
+	 * not told, bounding structures have nothing to update.
+	 */
+	protected void markRepainted() {
+		materialRevision = REVISIONS.incrementAndGet();
+	}
+	
+	/**
+	 * Registers an observer told when this model moves, such as the scene
+	 * holding it. Adding the same observer twice has no effect.
+	 * The model only holds a weak reference: the observer must be kept
+	 * reachable by its owner, and is forgotten once the owner is collected.
+	 * 
+	 * @param observer The observer
+	 */
+	public synchronized void addObserver(ModelObserver observer) {
+		for (WeakReference<ModelObserver> reference : observers) {
+			if (reference.get() == observer) {
+				return;
+			}
+		}
+		List<WeakReference<ModelObserver>> grown = live(null);
+		grown.add(new WeakReference<>(observer));
+		observers = List.copyOf(grown);
+	}
+	
+	/**
+	 * Unregisters an observer.
+	 * 
+	 * @param observer The observer, ignored if it was not registered; null
+	 *                 only forgets the collected observers
+	 */
+	public synchronized void removeObserver(ModelObserver observer) {
+		observers = List.copyOf(live(observer));
+	}
+	
+	/**
+	 * Copies the observers still reachable, but one.
+	 */
+	private List<WeakReference<ModelObserver>> live(ModelObserver removed) {
+		List<WeakReference<ModelObserver>> live = new ArrayList<>(observers.size() + 1);
+		for (WeakReference<ModelObserver> reference : observers) {
+			ModelObserver observer = reference.get();
+			if (observer != null && observer != removed) {
+				live.add(reference);
+			}
+		}
+		return live;
+	}
+	
+	/**
+	 * Gets the revision of the last change of the shape or position.
+	 * 
+	 * @return The value of {@link #getLatestRevision()} right after the
+	 *         change, 0 if the model never changed
+	 */
+	public long getRevision() {
+		return revision;
+	}
+	
+	/**
+	 * Gets the revision of the last change of the material.
+	 * 
+	 * @return The value of {@link #getLatestRevision()} right after the
+	 *         change, 0 if the material never changed
+	 */
+	public long getMaterialRevision() {
+		return materialRevision;
+	}
+	
+	/**
+	 * Gets the revision of the latest change of any model, shape or
+	 * material. A structure updated when it had the same value is up to
+	 * date.
+	 * 
+	 * @return The latest revision
+	 */
+	public static long getLatestRevision() {
+		return REVISIONS.get();
+	}
+	
 	/**
 	 * Gets the color.
 	 * 
@@ -48,6 +250,16 @@ public abstract class Model {
 		return color;
 	}
 
+	/**
+	 * Gets the color of a primitive.
+	 * 
+	 * @param primitive Primitive reported by the hit record, -1 for simple models
+	 * @return The RGB color
+	 */
+	public Vec3 getColor(int primitive) {
+		return getColor();
+	}
+
 	/**
 	 * Sets the color.
 	 * 
@@ -55,6 +267,7 @@ public abstract class Model {
 	 */
 	public void setColor(Vec3 color) {
 		this.color = color;
+		markRepainted();
 	}
 
 	/**
@@ -66,6 +279,16 @@ public abstract class Model {
 		return specular;
 	}
 
+	/**
+	 * Gets the specular reflection of a primitive.
+	 * 
+	 * @param primitive Primitive reported by the hit record, -1 for simple models
+	 * @return The specular reflection color
+	 */
+	public Vec3 getSpecular(int primitive) {
+		return getSpecular();
+	}
+
 	/**
 	 * Sets the specular reflection.
 	 * 
@@ -73,6 +296,7 @@ public abstract class Model {
 	 */
 	public void setSpecular(Vec3 specular) {
 		this.specular = specular;
+		markRepainted();
 	}
 
 	/**
@@ -84,6 +308,16 @@ public abstract class Model {
 		return this.shininess;
 	}
 
+	/**
+	 * Gets the shininess of a primitive.
+	 * 
+	 * @param primitive Primitive reported by the hit record, -1 for simple models
+	 * @return The shininess value
+	 */
+	public double getShininess(int primitive) {
+		return getShininess();
+	}
+
 	/**
 	 * Gets the reflection coefficient.
 	 * 
@@ -93,6 +327,16 @@ public abstract class Model {
 		return reflexionCoeff;
 	}
 
+	/**
+	 * Gets the reflection coefficient of a primitive.
+	 * 
+	 * @param primitive Primitive reported by the hit record, -1 for simple models
+	 * @return The reflection coefficient
+	 */
+	public float getReflexionCoeff(int primitive) {
+		return getReflexionCoeff();
+	}
+
 	/**
 	 * Sets the reflection coefficient of this model.
 	 * Values should range from 0 (no reflection) to 1 (perfect reflection).
@@ -101,6 +345,7 @@ public abstract class Model {
 	 */
 	public void setReflexionCoeff(float reflexionCoeff) {
 		this.reflexionCoeff = reflexionCoeff;
+		markRepainted();
 	}
 
 	/**
@@ -111,6 +356,7 @@ public abstract class Model {
 	 */
 	public void setShininess(double shininess) {
 		this.shininess = shininess;
+		markRepainted();
 	}
 	
 	
@@ -0,0 +1,20 @@
+package model;
+
+/**
+ * Receives the moves of the models it was added to with
+ * {@link Model#addObserver(ModelObserver)}.
+ * Called on the thread that moved the model, it should only record the
+ * change.
+ * 
+ * @author KepsyIn
+ */
+public interface ModelObserver {
+	
+	/**
+	 * Called after the shape or the position of a model changed through
+	 * one of its setters. Material changes are not reported.
+	 * 
+	 * @param model The model that moved
+	 */
+	void modelMoved(Model model);
+}
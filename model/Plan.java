@@ -36,10 +36,10 @@ public class Plan extends Model {
 	@Override
 	public double getIntersection(Vec3 P, Vec3 v) {
         
-        double AdotN = new Vec3(point).dotProduct(normal);
-        double PdotN = new Vec3(P).dotProduct(normal);
+        double AdotN = point.dotProduct(normal);
+        double PdotN = P.dotProduct(normal);
         
-        double VdotN = new Vec3(v).dotProduct(normal);
+        double VdotN = v.dotProduct(normal);
         
         if( VdotN < 0 ) {
         	double lambda = (AdotN - PdotN) / VdotN;
@@ -70,6 +70,18 @@ public class Plan extends Model {
 	public Vec3 getNormal(Vec3 P ) {
 		return normal;
 	}
+	
+	/**
+	 * Copies the normal vector, constant for planes.
+	 * 
+	 * @param P A point (unused)
+	 * @param normal Receives the normal vector
+	 * @return The normal vector
+	 */
+	@Override
+	public Vec3 getNormal(Vec3 P, Vec3 normal) {
+		return normal.set(this.normal);
+	}
 
 	/**
 	 * Sets the normal vector.
@@ -78,6 +90,7 @@ public class Plan extends Model {
 	 */
 	public void setNormal(Vec3 normal) {
 		this.normal = normal;
+		markMoved();
 	}
 
 	/**
@@ -96,6 +109,7 @@ public class Plan extends Model {
 	 */
 	public void setPoint(Vec3 point) {
 		this.point = point;
+		markMoved();
 	}
 
 }
@@ -0,0 +1,62 @@
+package model;
+
+import utils.Vec3;
+
+/**
+ * Sphere kernel testing one sphere at a time.
+ *
+ * @author KepsyIn
+ */
+final class ScalarSphereKernel extends SphereKernel {
+
+	@Override
+	public boolean intersect(float[] centerX, float[] centerY, float[] centerZ, double[] radiusSquared, int start, int end,
+			Vec3 P, Vec3 v, double lambdaMin, HitRecord hit, Model model, int order) {
+		float px = P.x, py = P.y, pz = P.z;
+		float vx = v.x, vy = v.y, vz = v.z;
+		double alpha = v.dotProduct(v);
+		boolean updated = false;
+
+		for (int i = start; i < end; i++) {
+			float cpx = px - centerX[i];
+			float cpy = py - centerY[i];
+			float cpz = pz - centerZ[i];
+			double beta = vx * cpx + vy * cpy + vz * cpz;
+			double gamma = (cpx * cpx + cpy * cpy + cpz * cpz) - radiusSquared[i];
+			double delta = (beta * beta) - (alpha * gamma);
+			if (delta > 0 && hit.offer(model, root(beta, delta, alpha), lambdaMin, order, i)) {
+				updated = true;
+			}
+		}
+		return updated;
+	}
+
+	@Override
+	public boolean occludes(float[] centerX, float[] centerY, float[] centerZ, double[] radiusSquared, int start, int end,
+			Vec3 P, Vec3 v, double lambdaMin, double lambdaMax) {
+		float px = P.x, py = P.y, pz = P.z;
+		float vx = v.x, vy = v.y, vz = v.z;
+		double alpha = v.dotProduct(v);
+
+		for (int i = start; i < end; i++) {
+			float cpx = px - centerX[i];
+			float cpy = py - centerY[i];
+			float cpz = pz - centerZ[i];
+			double beta = vx * cpx + vy * cpy + vz * cpz;
+			double gamma = (cpx * cpx + cpy * cpy + cpz * cpz) - radiusSquared[i];
+			double delta = (beta * beta) - (alpha * gamma);
+			if (delta > 0) {
+				double lambda = root(beta, delta, alpha);
+				if (lambda > lambdaMin && lambda < lambdaMax) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public int getLanes() {
+		return 1;
+	}
+}
@@ -35,19 +35,21 @@ public class Sphere extends Model{
 	@Override
 	public double getIntersection(Vec3 P, Vec3 v) {
 		
-		double alpha = new Vec3(v).dotProduct(v);
-		Vec3 CP = new Vec3().setSub(P, center);
+		float cpx = P.x - center.x;
+		float cpy = P.y - center.y;
+		float cpz = P.z - center.z;
 		
-		double beta = v.dotProduct(CP);
+		double alpha = v.dotProduct(v);
+		double beta = v.x * cpx + v.y * cpy + v.z * cpz;
 		
-		
-		double gamma = CP.dotProduct(CP) - ( rayon * rayon );
+		double gamma = ( cpx * cpx + cpy * cpy + cpz * cpz ) - ( rayon * rayon );
 		double delta = ( beta * beta ) - ( alpha * gamma ) ;
 		
 		if( delta > 0 ) { // pas d'intersection
 			
-			double lambda1 = ( -beta - Math.sqrt(delta) ) / alpha;
-			double lambda2 = ( -beta + Math.sqrt(delta) ) / alpha;
+			double sqrtDelta = Math.sqrt(delta);
+			double lambda1 = ( -beta - sqrtDelta ) / alpha;
+			double lambda2 = ( -beta + sqrtDelta ) / alpha;
 			
 			if( lambda1 > 0 ) { 
 				return lambda1; // lambda1 < lambda2 
@@ -75,6 +77,7 @@ public class Sphere extends Model{
 	 */
 	public void setRayon(double rayon) {
 		this.rayon = rayon;
+		markMoved();
 	}
 
 	/**
@@ -93,6 +96,19 @@ public class Sphere extends Model{
 	 */
 	public void setCenter(Vec3 center) {
 		this.center = center;
+		markMoved();
+	}
+	
+	/**
+	 * Computes the box enclosing the sphere.
+	 * 
+	 * @return The bounding box
+	 */
+	@Override
+	public BoundingBox getBounds() {
+		return new BoundingBox()
+				.expand(center.x - rayon, center.y - rayon, center.z - rayon)
+				.expand(center.x + rayon, center.y + rayon, center.z + rayon);
 	}
 	
 	/**
@@ -109,4 +125,16 @@ public class Sphere extends Model{
 		return normal.normalize(); 
 	}
 	
+	/**
+	 * Computes the normal at a point without allocating.
+	 * 
+	 * @param P A point on the sphere surface
+	 * @param normal Receives the normalized normal vector
+	 * @return The normal vector
+	 */
+	@Override
+	public Vec3 getNormal(Vec3 P, Vec3 normal) {
+		return normal.setSub(P, this.center).normalize();
+	}
+	
 }
@@ -0,0 +1,139 @@
+package model;
+
+import utils.Vec3;
+
+/**
+ * Intersects a ray with a contiguous range of packed spheres, the inner
+ * loop of a {@link SphereSet} leaf.
+ * Two implementations exist: a scalar loop, and a loop over vector lanes
+ * using the incubating Vector API. The vector kernel is only available
+ * when the JVM runs with {@code --add-modules jdk.incubator.vector}, it is
+ * loaded by name so the rest of the renderer runs without the module.
+ * Both return exactly the same hits as {@link Sphere#getIntersection(Vec3, Vec3)}.
+ *
+ * @author KepsyIn
+ */
+public abstract class SphereKernel {
+
+	/**
+	 * System property choosing the kernel: "scalar" forces the scalar
+	 * loop, otherwise the vector kernel is used when available.
+	 */
+	public static final String PROPERTY = "raytracing.kernel";
+
+	private static final String VECTOR_KERNEL = "model.VectorSphereKernel";
+
+	private static final SphereKernel SCALAR = new ScalarSphereKernel();
+
+	private static final SphereKernel VECTOR = loadVector();
+
+	private static final SphereKernel DEFAULT = "scalar".equals(System.getProperty(PROPERTY)) || VECTOR == null ? SCALAR : VECTOR;
+
+	private static SphereKernel loadVector() {
+		try {
+			return (SphereKernel) Class.forName(VECTOR_KERNEL).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+			// jdk.incubator.vector is not in the module graph
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the kernel used by new sphere sets.
+	 *
+	 * @return The vector kernel if available and not disabled, the scalar one otherwise
+	 */
+	public static SphereKernel get() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Gets the scalar kernel.
+	 *
+	 * @return The scalar kernel, always available
+	 */
+	public static SphereKernel scalar() {
+		return SCALAR;
+	}
+
+	/**
+	 * Gets the vector kernel.
+	 *
+	 * @return The vector kernel, or null if the incubator module is not enabled
+	 */
+	public static SphereKernel vector() {
+		return VECTOR;
+	}
+
+	/**
+	 * Offers the sphere hits of a ray to a hit record, in index order.
+	 *
+	 * @param centerX Center coordinates
+	 * @param centerY Center coordinates
+	 * @param centerZ Center coordinates
+	 * @param radiusSquared Squared radii, its length bounds the readable range
+	 * @param start First sphere
+	 * @param end Sphere after the last one
+	 * @param P Ray starting point
+	 * @param v Ray direction
+	 * @param lambdaMin Lower bound of the distance (exclusive)
+	 * @param hit Closest hit so far, its primitive is set to the sphere index
+	 * @param model Model reported by the hits
+	 * @param order Position of the model in the scene list
+	 * @return true if the record was updated
+	 */
+	public abstract boolean intersect(float[] centerX, float[] centerY, float[] centerZ, double[] radiusSquared, int start, int end,
+			Vec3 P, Vec3 v, double lambdaMin, HitRecord hit, Model model, int order);
+
+	/**
+	 * Checks whether a sphere of a range blocks a ray segment.
+	 *
+	 * @param centerX Center coordinates
+	 * @param centerY Center coordinates
+	 * @param centerZ Center coordinates
+	 * @param radiusSquared Squared radii, its length bounds the readable range
+	 * @param start First sphere
+	 * @param end Sphere after the last one
+	 * @param P Ray starting point
+	 * @param v Ray direction
+	 * @param lambdaMin Lower bound of the distance (exclusive)
+	 * @param lambdaMax Upper bound of the distance (exclusive)
+	 * @return true if a sphere is hit in ]lambdaMin, lambdaMax[
+	 */
+	public abstract boolean occludes(float[] centerX, float[] centerY, float[] centerZ, double[] radiusSquared, int start, int end,
+			Vec3 P, Vec3 v, double lambdaMin, double lambdaMax);
+
+	/**
+	 * Gets the number of spheres tested at once.
+	 *
+	 * @return 1 for the scalar kernel, the lane count for the vector one
+	 */
+	public abstract int getLanes();
+
+	/**
+	 * Picks the closest positive root of a ray-sphere equation, the same
+	 * way as {@link Sphere#getIntersection(Vec3, Vec3)}.
+	 *
+	 * @param beta Half of the linear coefficient
+	 * @param delta Reduced discriminant, positive
+	 * @param alpha Quadratic coefficient
+	 * @return Closest positive intersection distance or 0 if none
+	 */
+	static double root(double beta, double delta, double alpha) {
+		double sqrtDelta = Math.sqrt(delta);
+		double lambda1 = (-beta - sqrtDelta) / alpha;
+		double lambda2 = (-beta + sqrtDelta) / alpha;
+
+		if (lambda1 > 0) {
+			return lambda1;
+		} else if (lambda1 < 0 && lambda2 > 0) {
+			return lambda2;
+		}
+		return 0;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[" + getLanes() + " lanes]";
+	}
+}
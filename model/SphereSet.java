@@ -0,0 +1,550 @@
+package model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import utils.Vec3;
+
+/**
+ * A large set of spheres stored as one model.
+ * Centers, squared radii and material indices are packed in parallel
+ * arrays instead of one {@link Sphere} object each, and the spheres are
+ * stored in the leaf order of their own {@link BoxHierarchy}, so a leaf is
+ * a contiguous range of the arrays tested by a {@link SphereKernel}. The scene
+ * hierarchy sees the set as a single bounded model; hits report the sphere
+ * index through {@link HitRecord#primitive}.
+ * Intersections are computed exactly as {@link Sphere} does for a sphere
+ * of the same (float) center and radius.
+ *
+ * @author KepsyIn
+ */
+public class SphereSet extends Model {
+
+	/**
+	 * Relative margin added around each sphere box, so that rounding in the
+	 * intersection code never lands a hit just outside its box.
+	 */
+	private static final double BOX_MARGIN = 1E-5;
+
+	/**
+	 * Leaf size and relative cost of a sphere test for the hierarchy.
+	 * A packed sphere test is much cheaper than a node visit, so leaves are
+	 * larger than in the scene hierarchy.
+	 */
+	private static final int MAX_LEAF_SIZE = 16;
+	private static final double INTERSECTION_COST = 0.1;
+
+	private final int count;
+	private final float[] centerX;
+	private final float[] centerY;
+	private final float[] centerZ;
+	private final float[] radius;
+	private final double[] radiusSquared;
+	private final int[] material;
+	private final Material[] materials;
+
+	private SphereKernel kernel = SphereKernel.get();
+
+	private final BoxHierarchy tree;
+	private final int[] nodeStart;
+	private final int[] nodeSize;
+	private final int[] nodeSkip;
+	private final int nodeCount;
+
+	/**
+	 * Creates a set of spheres and builds its hierarchy.
+	 * The arrays are copied in leaf order.
+	 *
+	 * @param centerX Center coordinates
+	 * @param centerY Center coordinates
+	 * @param centerZ Center coordinates
+	 * @param radius Radii
+	 * @param material Index of the material of each sphere
+	 * @param materials Material table
+	 * @param count Number of spheres
+	 */
+	public SphereSet(float[] centerX, float[] centerY, float[] centerZ, float[] radius, int[] material, Material[] materials, int count) {
+		float[] boxes = new float[6 * count];
+		for (int i = 0; i < count; i++) {
+			double r = radius[i];
+			double margin = BOX_MARGIN * (1 + 2 * r + Math.abs(centerX[i]) + Math.abs(centerY[i]) + Math.abs(centerZ[i]));
+			BoxHierarchy.setBox(boxes, 6 * i, centerX[i] - r - margin, centerY[i] - r - margin, centerZ[i] - r - margin,
+					centerX[i] + r + margin, centerY[i] + r + margin, centerZ[i] + r + margin);
+		}
+		BoxHierarchy built = new BoxHierarchy(boxes, count, MAX_LEAF_SIZE, INTERSECTION_COST);
+		boxes = null;
+
+		int[] order = built.getOrder();
+		this.centerX = new float[count];
+		this.centerY = new float[count];
+		this.centerZ = new float[count];
+		this.radius = new float[count];
+		this.material = new int[count];
+		for (int i = 0; i < count; i++) {
+			int s = order[i];
+			this.centerX[i] = centerX[s];
+			this.centerY[i] = centerY[s];
+			this.centerZ[i] = centerZ[s];
+			this.radius[i] = radius[s];
+			this.material[i] = material[s];
+		}
+
+		this.count = count;
+		this.radiusSquared = squares(this.radius, count);
+		this.materials = materials.clone();
+		this.tree = built;
+		this.nodeStart = built.getNodeStart();
+		this.nodeSize = built.getNodeSize();
+		this.nodeSkip = built.getNodeSkip();
+		this.nodeCount = built.getNodeCount();
+		checkMaterials();
+	}
+
+	/**
+	 * Creates a set of spheres already stored in the leaf order of a
+	 * hierarchy, for instance read back from a file. The arrays are used
+	 * as they are.
+	 *
+	 * @param centerX Center coordinates
+	 * @param centerY Center coordinates
+	 * @param centerZ Center coordinates
+	 * @param radius Radii
+	 * @param material Index of the material of each sphere
+	 * @param materials Material table
+	 * @param count Number of spheres
+	 * @param tree Hierarchy whose leaves refer to positions in the arrays
+	 */
+	public SphereSet(float[] centerX, float[] centerY, float[] centerZ, float[] radius, int[] material, Material[] materials, int count, BoxHierarchy tree) {
+		this.count = count;
+		this.centerX = centerX;
+		this.centerY = centerY;
+		this.centerZ = centerZ;
+		this.radius = radius;
+		this.radiusSquared = squares(radius, count);
+		this.material = material;
+		this.materials = materials.clone();
+		this.tree = tree;
+		this.nodeStart = tree.getNodeStart();
+		this.nodeSize = tree.getNodeSize();
+		this.nodeSkip = tree.getNodeSkip();
+		this.nodeCount = tree.getNodeCount();
+		checkMaterials();
+
+		for (int node = 0; node < nodeCount; node++) {
+			if (nodeSize[node] > 0 && (nodeStart[node] < 0 || nodeStart[node] + nodeSize[node] > count)) {
+				throw new IllegalArgumentException("leaf " + node + " is outside of the " + count + " spheres");
+			}
+		}
+	}
+
+	/**
+	 * Squares the radii, exactly since a float has less than half the
+	 * precision of a double.
+	 */
+	private static double[] squares(float[] radius, int count) {
+		double[] squares = new double[count];
+		for (int i = 0; i < count; i++) {
+			double r = radius[i];
+			squares[i] = r * r;
+		}
+		return squares;
+	}
+
+	private void checkMaterials() {
+		for (int i = 0; i < count; i++) {
+			if (material[i] < 0 || material[i] >= materials.length) {
+				throw new IllegalArgumentException("sphere " + i + " has no material " + material[i]);
+			}
+		}
+	}
+
+	/**
+	 * Offers the closest sphere hit by a ray to a hit record.
+	 *
+	 * @param P Ray starting point
+	 * @param v Ray direction
+	 * @param lambdaMin Lower bound of the distance (exclusive)
+	 * @param hit Closest hit so far, its primitive is set to the sphere index
+	 * @param order Position of the set in the scene list
+	 * @return true if the record was updated
+	 */
+	@Override
+	public boolean intersect(Vec3 P, Vec3 v, double lambdaMin, HitRecord hit, int order) {
+		if (nodeCount == 0) {
+			return false;
+		}
+
+		double ox = P.x, oy = P.y, oz = P.z;
+		double invX = 1.0 / v.x, invY = 1.0 / v.y, invZ = 1.0 / v.z;
+		float[] cx = centerX, cy = centerY, cz = centerZ;
+		double[] r2 = radiusSquared;
+
+		if (tree.entry(0, ox, oy, oz, invX, invY, invZ, lambdaMin, hit.lambda) == Double.POSITIVE_INFINITY) {
+			return false;
+		}
+
+		int[] stack = hit.stack(tree.getDepth() + 1);
+		int top = 0;
+		int node = 0;
+		boolean updated = false;
+
+		while (true) {
+			int size = nodeSize[node];
+			if (size > 0) {
+				int start = nodeStart[node];
+				if (kernel.intersect(cx, cy, cz, r2, start, start + size, P, v, lambdaMin, hit, this, order)) {
+					updated = true;
+				}
+			} else {
+				int left = node + 1;
+				int right = nodeStart[node];
+				double tLeft = tree.entry(left, ox, oy, oz, invX, invY, invZ, lambdaMin, hit.lambda);
+				double tRight = tree.entry(right, ox, oy, oz, invX, invY, invZ, lambdaMin, hit.lambda);
+
+				if (tLeft != Double.POSITIVE_INFINITY && tRight != Double.POSITIVE_INFINITY) {
+					if (tLeft <= tRight) {
+						stack[top++] = right;
+						node = left;
+					} else {
+						stack[top++] = left;
+						node = right;
+					}
+					continue;
+				} else if (tLeft != Double.POSITIVE_INFINITY) {
+					node = left;
+					continue;
+				} else if (tRight != Double.POSITIVE_INFINITY) {
+					node = right;
+					continue;
+				}
+			}
+
+			// Pop the next node still closer than the current hit
+			do {
+				if (top == 0) {
+					return updated;
+				}
+				node = stack[--top];
+			} while (tree.entry(node, ox, oy, oz, invX, invY, invZ, lambdaMin, hit.lambda) == Double.POSITIVE_INFINITY);
+		}
+	}
+
+	/**
+	 * Checks whether a sphere blocks a ray segment.
+	 * Walks the hierarchy without a stack, in depth-first order.
+	 */
+	@Override
+	public boolean isOccluding(Vec3 P, Vec3 v, double lambdaMin, double lambdaMax) {
+		double ox = P.x, oy = P.y, oz = P.z;
+		double invX = 1.0 / v.x, invY = 1.0 / v.y, invZ = 1.0 / v.z;
+		float[] cx = centerX, cy = centerY, cz = centerZ;
+		double[] r2 = radiusSquared;
+
+		int node = 0;
+		while (node < nodeCount) {
+			if (tree.entry(node, ox, oy, oz, invX, invY, invZ, lambdaMin, lambdaMax) == Double.POSITIVE_INFINITY) {
+				node = nodeSkip[node];
+				continue;
+			}
+			int size = nodeSize[node];
+			if (size > 0) {
+				int start = nodeStart[node];
+				if (kernel.occludes(cx, cy, cz, r2, start, start + size, P, v, lambdaMin, lambdaMax)) {
+					return true;
+				}
+			}
+			node++;
+		}
+		return false;
+	}
+
+	/**
+	 * Computes the closest intersection with the set.
+	 * Allocates a hit record, the renderer uses
+	 * {@link #intersect(Vec3, Vec3, double, HitRecord, int)} instead.
+	 *
+	 * @return Closest positive intersection distance or 0 if none
+	 */
+	@Override
+	public double getIntersection(Vec3 P, Vec3 v) {
+		HitRecord hit = new HitRecord().reset(Double.POSITIVE_INFINITY);
+		return intersect(P, v, 0, hit, 0) ? hit.lambda : 0;
+	}
+
+	/**
+	 * Computes the normal of the sphere whose surface is the closest to a
+	 * point. Scans every sphere, the renderer passes the sphere hit to
+	 * {@link #getNormal(Vec3, int, Vec3)} instead.
+	 *
+	 * @param P A point on the surface of the set
+	 * @return The normalized normal vector, zero if the set is empty
+	 */
+	@Override
+	public Vec3 getNormal(Vec3 P) {
+		return getNormal(P, -1, new Vec3());
+	}
+
+	/**
+	 * Computes the normal of a sphere at a point without allocating.
+	 *
+	 * @param P A point on the sphere surface
+	 * @param primitive Index of the sphere, -1 for the sphere whose surface
+	 *                  is the closest to the point
+	 * @param normal Receives the normalized normal vector
+	 * @return The normal vector, zero if the set is empty
+	 */
+	@Override
+	public Vec3 getNormal(Vec3 P, int primitive, Vec3 normal) {
+		if (primitive < 0) {
+			primitive = closestSphere(P);
+			if (primitive < 0) {
+				return normal.set(0, 0, 0);
+			}
+		}
+		return normal.set(P.x - centerX[primitive], P.y - centerY[primitive], P.z - centerZ[primitive]).normalize();
+	}
+
+	/**
+	 * Finds the sphere whose surface is the closest to a point.
+	 *
+	 * @return The sphere index, -1 if the set is empty
+	 */
+	private int closestSphere(Vec3 P) {
+		int closest = -1;
+		double distance = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < count; i++) {
+			double dx = P.x - centerX[i], dy = P.y - centerY[i], dz = P.z - centerZ[i];
+			double d = Math.abs(Math.sqrt(dx * dx + dy * dy + dz * dz) - radius[i]);
+			if (d < distance) {
+				distance = d;
+				closest = i;
+			}
+		}
+		return closest;
+	}
+
+	/**
+	 * Gets the box enclosing every sphere.
+	 *
+	 * @return The root box of the hierarchy, or null if the set is empty
+	 */
+	@Override
+	public BoundingBox getBounds() {
+		if (nodeCount == 0) {
+			return null;
+		}
+		float[] bounds = tree.getNodeBounds();
+		return new BoundingBox()
+				.expand(bounds[0], bounds[1], bounds[2])
+				.expand(bounds[3], bounds[4], bounds[5]);
+	}
+
+	@Override
+	public Vec3 getColor(int primitive) {
+		return materials[material[primitive]].getColor();
+	}
+
+	@Override
+	public Vec3 getSpecular(int primitive) {
+		return materials[material[primitive]].getSpecular();
+	}
+
+	@Override
+	public double getShininess(int primitive) {
+		return materials[material[primitive]].getShininess();
+	}
+
+	@Override
+	public float getReflexionCoeff(int primitive) {
+		return materials[material[primitive]].getReflexionCoeff();
+	}
+
+	/**
+	 * Gets the number of spheres.
+	 *
+	 * @return The sphere count
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Gets the center x coordinates, in leaf order.
+	 *
+	 * @return The backing array
+	 */
+	public float[] getCenterX() {
+		return centerX;
+	}
+
+	/**
+	 * Gets the center y coordinates, in leaf order.
+	 *
+	 * @return The backing array
+	 */
+	public float[] getCenterY() {
+		return centerY;
+	}
+
+	/**
+	 * Gets the center z coordinates, in leaf order.
+	 *
+	 * @return The backing array
+	 */
+	public float[] getCenterZ() {
+		return centerZ;
+	}
+
+	/**
+	 * Gets the radii, in leaf order.
+	 *
+	 * @return The backing array
+	 */
+	public float[] getRadius() {
+		return radius;
+	}
+
+	/**
+	 * Gets the material index of each sphere, in leaf order.
+	 *
+	 * @return The backing array
+	 */
+	public int[] getMaterial() {
+		return material;
+	}
+
+	/**
+	 * Gets the material table.
+	 *
+	 * @return A copy of the table
+	 */
+	public Material[] getMaterials() {
+		return materials.clone();
+	}
+
+	/**
+	 * Gets the kernel intersecting the spheres of a leaf.
+	 *
+	 * @return The kernel, {@link SphereKernel#get()} by default
+	 */
+	public SphereKernel getKernel() {
+		return kernel;
+	}
+
+	/**
+	 * Sets the kernel intersecting the spheres of a leaf.
+	 *
+	 * @param kernel The kernel, for instance {@link SphereKernel#scalar()}
+	 */
+	public void setKernel(SphereKernel kernel) {
+		this.kernel = kernel;
+	}
+
+	/**
+	 * Gets the hierarchy over the spheres.
+	 *
+	 * @return The hierarchy, its leaves refer to positions in the arrays
+	 */
+	public BoxHierarchy getHierarchy() {
+		return tree;
+	}
+
+	/**
+	 * Collects spheres one by one into growing arrays, then builds the set.
+	 * Materials are stored once per distinct set of properties.
+	 */
+	public static class Builder {
+
+		private static final int INITIAL_CAPACITY = 64;
+
+		private float[] centerX = new float[INITIAL_CAPACITY];
+		private float[] centerY = new float[INITIAL_CAPACITY];
+		private float[] centerZ = new float[INITIAL_CAPACITY];
+		private float[] radius = new float[INITIAL_CAPACITY];
+		private int[] material = new int[INITIAL_CAPACITY];
+		private int count;
+
+		private final Map<Material, Integer> materialIndex = new HashMap<>();
+		private Material[] materials = new Material[INITIAL_CAPACITY];
+		private int materialCount;
+
+		/**
+		 * Gets the index of a material, adding it to the table on first use.
+		 *
+		 * @param m The material
+		 * @return Its index in the table
+		 */
+		public int material(Material m) {
+			Integer index = materialIndex.get(m);
+			if (index == null) {
+				if (materialCount == materials.length) {
+					materials = Arrays.copyOf(materials, materials.length + (materials.length >> 1));
+				}
+				index = materialCount++;
+				materials[index] = m;
+				materialIndex.put(m, index);
+			}
+			return index;
+		}
+
+		/**
+		 * Adds a sphere.
+		 *
+		 * @param x Center coordinates
+		 * @param y Center coordinates
+		 * @param z Center coordinates
+		 * @param r Radius
+		 * @param materialIndex Index returned by {@link #material(Material)}
+		 * @return This builder
+		 */
+		public Builder add(float x, float y, float z, float r, int materialIndex) {
+			if (materialIndex < 0 || materialIndex >= materialCount) {
+				throw new IllegalArgumentException("unknown material " + materialIndex);
+			}
+			if (count == centerX.length) {
+				int capacity = Math.max(INITIAL_CAPACITY, centerX.length + (centerX.length >> 1));
+				centerX = Arrays.copyOf(centerX, capacity);
+				centerY = Arrays.copyOf(centerY, capacity);
+				centerZ = Arrays.copyOf(centerZ, capacity);
+				radius = Arrays.copyOf(radius, capacity);
+				material = Arrays.copyOf(material, capacity);
+			}
+			centerX[count] = x;
+			centerY[count] = y;
+			centerZ[count] = z;
+			radius[count] = r;
+			material[count++] = materialIndex;
+			return this;
+		}
+
+		/**
+		 * Adds a sphere model with its material. The radius is rounded to
+		 * a float.
+		 *
+		 * @param sphere The sphere
+		 * @return This builder
+		 */
+		public Builder add(Sphere sphere) {
+			Vec3 center = sphere.getCenter();
+			return add(center.x, center.y, center.z, (float) sphere.getRayon(), material(Material.of(sphere)));
+		}
+
+		/**
+		 * Gets the number of spheres added so far.
+		 *
+		 * @return The sphere count
+		 */
+		public int size() {
+			return count;
+		}
+
+		/**
+		 * Builds the set and its hierarchy.
+		 *
+		 * @return The sphere set
+		 */
+		public SphereSet build() {
+			return new SphereSet(centerX, centerY, centerZ, radius, material, Arrays.copyOf(materials, materialCount), count);
+		}
+	}
+}
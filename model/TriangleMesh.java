@@ -0,0 +1,538 @@
+package model;
+
+import java.util.Arrays;
+import utils.Vec3;
+
+/**
+ * A triangle mesh stored as one model.
+ * Vertex coordinates are packed in one float array (x, y, z per vertex)
+ * and triangles are three vertex indices each, stored in the leaf order of
+ * their own {@link BoxHierarchy}: the scene hierarchy sees a mesh of a
+ * million triangles as a single bounded model, and hits report the
+ * triangle index through {@link HitRecord#primitive}.
+ * The ray-triangle test is the watertight one of Woop, Benthin and Wald:
+ * the vertices are moved to the ray space, where the ray runs along an
+ * axis, and the edge functions of a shared edge are computed from the same
+ * values in both triangles, so a ray through an edge or a vertex never
+ * slips between neighbouring triangles. Both faces are hit; the normal
+ * follows the winding of the triangle (counter-clockwise is the front).
+ * The whole mesh has the material of the model.
+ *
+ * @author KepsyIn
+ */
+public class TriangleMesh extends Model {
+
+	/**
+	 * Relative margin added around each triangle box, so that rounding in
+	 * the slab test never misses a triangle inside its box.
+	 */
+	private static final double BOX_MARGIN = 1E-5;
+
+	private final int vertexCount;
+	private final float[] vertices;
+	private final int triangleCount;
+	private final int[] indices;
+
+	private final BoxHierarchy tree;
+	private final int[] nodeStart;
+	private final int[] nodeSize;
+	private final int[] nodeSkip;
+	private final int nodeCount;
+
+	/**
+	 * Creates a mesh and builds its hierarchy.
+	 * The indices are copied in leaf order, the vertices are used as they are.
+	 *
+	 * @param vertices Vertex coordinates, x, y, z per vertex
+	 * @param vertexCount Number of vertices
+	 * @param indices Vertex indices, three per triangle
+	 * @param triangleCount Number of triangles
+	 */
+	public TriangleMesh(float[] vertices, int vertexCount, int[] indices, int triangleCount) {
+		if (vertices.length < 3 * vertexCount || indices.length < 3 * triangleCount) {
+			throw new IllegalArgumentException("arrays shorter than " + vertexCount + " vertices and " + triangleCount + " triangles");
+		}
+		for (int i = 0; i < 3 * triangleCount; i++) {
+			if (indices[i] < 0 || indices[i] >= vertexCount) {
+				throw new IllegalArgumentException("triangle " + i / 3 + " has no vertex " + indices[i]);
+			}
+		}
+
+		float[] boxes = new float[6 * triangleCount];
+		for (int t = 0; t < triangleCount; t++) {
+			int a = 3 * indices[3 * t], b = 3 * indices[3 * t + 1], c = 3 * indices[3 * t + 2];
+			double minX = Math.min(vertices[a], Math.min(vertices[b], vertices[c]));
+			double minY = Math.min(vertices[a + 1], Math.min(vertices[b + 1], vertices[c + 1]));
+			double minZ = Math.min(vertices[a + 2], Math.min(vertices[b + 2], vertices[c + 2]));
+			double maxX = Math.max(vertices[a], Math.max(vertices[b], vertices[c]));
+			double maxY = Math.max(vertices[a + 1], Math.max(vertices[b + 1], vertices[c + 1]));
+			double maxZ = Math.max(vertices[a + 2], Math.max(vertices[b + 2], vertices[c + 2]));
+			double margin = BOX_MARGIN * (1 + Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ))
+					+ Math.max(Math.abs(minX), Math.max(Math.abs(minY), Math.abs(minZ)))
+					+ Math.max(Math.abs(maxX), Math.max(Math.abs(maxY), Math.abs(maxZ))));
+			BoxHierarchy.setBox(boxes, 6 * t, minX - margin, minY - margin, minZ - margin, maxX + margin, maxY + margin, maxZ + margin);
+		}
+		BoxHierarchy built = new BoxHierarchy(boxes, triangleCount);
+		boxes = null;
+
+		int[] order = built.getOrder();
+		this.indices = new int[3 * triangleCount];
+		for (int t = 0; t < triangleCount; t++) {
+			System.arraycopy(indices, 3 * order[t], this.indices, 3 * t, 3);
+		}
+
+		this.vertexCount = vertexCount;
+		this.vertices = vertices;
+		this.triangleCount = triangleCount;
+		this.tree = built;
+		this.nodeStart = built.getNodeStart();
+		this.nodeSize = built.getNodeSize();
+		this.nodeSkip = built.getNodeSkip();
+		this.nodeCount = built.getNodeCount();
+	}
+
+	/**
+	 * Offers the closest triangle hit by a ray to a hit record.
+	 *
+	 * @param P Ray starting point
+	 * @param v Ray direction
+	 * @param lambdaMin Lower bound of the distance (exclusive)
+	 * @param hit Closest hit so far, its primitive is set to the triangle index
+	 * @param order Position of the mesh in the scene list
+	 * @return true if the record was updated
+	 */
+	@Override
+	public boolean intersect(Vec3 P, Vec3 v, double lambdaMin, HitRecord hit, int order) {
+		if (nodeCount == 0) {
+			return false;
+		}
+
+		double ox = P.x, oy = P.y, oz = P.z;
+		double invX = 1.0 / v.x, invY = 1.0 / v.y, invZ = 1.0 / v.z;
+
+		if (tree.entry(0, ox, oy, oz, invX, invY, invZ, lambdaMin, hit.lambda) == Double.POSITIVE_INFINITY) {
+			return false;
+		}
+
+		// Ray space: kz is the dominant axis of the direction, the shear
+		// maps the direction onto it
+		int kz = dominantAxis(v);
+		int kx = kz == 2 ? 0 : kz + 1;
+		int ky = kx == 2 ? 0 : kx + 1;
+		if (component(v, kz) < 0) {
+			int k = kx;
+			kx = ky;
+			ky = k;
+		}
+		double dz = component(v, kz);
+		double sx = component(v, kx) / dz, sy = component(v, ky) / dz, sz = 1.0 / dz;
+		double px = component(P, kx), py = component(P, ky), pz = component(P, kz);
+
+		int[] stack = hit.stack(tree.getDepth() + 1);
+		int top = 0;
+		int node = 0;
+		boolean updated = false;
+
+		while (true) {
+			int size = nodeSize[node];
+			if (size > 0) {
+				int start = nodeStart[node];
+				for (int t = start; t < start + size; t++) {
+					double lambda = intersect(t, kx, ky, kz, px, py, pz, sx, sy, sz);
+					if (hit.offer(this, lambda, lambdaMin, order, t)) {
+						updated = true;
+					}
+				}
+			} else {
+				int left = node + 1;
+				int right = nodeStart[node];
+				double tLeft = tree.entry(left, ox, oy, oz, invX, invY, invZ, lambdaMin, hit.lambda);
+				double tRight = tree.entry(right, ox, oy, oz, invX, invY, invZ, lambdaMin, hit.lambda);
+
+				if (tLeft != Double.POSITIVE_INFINITY && tRight != Double.POSITIVE_INFINITY) {
+					if (tLeft <= tRight) {
+						stack[top++] = right;
+						node = left;
+					} else {
+						stack[top++] = left;
+						node = right;
+					}
+					continue;
+				} else if (tLeft != Double.POSITIVE_INFINITY) {
+					node = left;
+					continue;
+				} else if (tRight != Double.POSITIVE_INFINITY) {
+					node = right;
+					continue;
+				}
+			}
+
+			// Pop the next node still closer than the current hit
+			do {
+				if (top == 0) {
+					return updated;
+				}
+				node = stack[--top];
+			} while (tree.entry(node, ox, oy, oz, invX, invY, invZ, lambdaMin, hit.lambda) == Double.POSITIVE_INFINITY);
+		}
+	}
+
+	/**
+	 * Checks whether a triangle blocks a ray segment.
+	 * Walks the hierarchy without a stack, in depth-first order.
+	 */
+	@Override
+	public boolean isOccluding(Vec3 P, Vec3 v, double lambdaMin, double lambdaMax) {
+		double ox = P.x, oy = P.y, oz = P.z;
+		double invX = 1.0 / v.x, invY = 1.0 / v.y, invZ = 1.0 / v.z;
+
+		int kz = dominantAxis(v);
+		int kx = kz == 2 ? 0 : kz + 1;
+		int ky = kx == 2 ? 0 : kx + 1;
+		if (component(v, kz) < 0) {
+			int k = kx;
+			kx = ky;
+			ky = k;
+		}
+		double dz = component(v, kz);
+		double sx = component(v, kx) / dz, sy = component(v, ky) / dz, sz = 1.0 / dz;
+		double px = component(P, kx), py = component(P, ky), pz = component(P, kz);
+
+		int node = 0;
+		while (node < nodeCount) {
+			if (tree.entry(node, ox, oy, oz, invX, invY, invZ, lambdaMin, lambdaMax) == Double.POSITIVE_INFINITY) {
+				node = nodeSkip[node];
+				continue;
+			}
+			int size = nodeSize[node];
+			if (size > 0) {
+				int start = nodeStart[node];
+				for (int t = start; t < start + size; t++) {
+					double lambda = intersect(t, kx, ky, kz, px, py, pz, sx, sy, sz);
+					if (lambda > lambdaMin && lambda < lambdaMax) {
+						return true;
+					}
+				}
+			}
+			node++;
+		}
+		return false;
+	}
+
+	/**
+	 * Watertight ray-triangle test in ray space.
+	 *
+	 * @param t Triangle, in leaf order
+	 * @param kx Axis mapped to x in ray space
+	 * @param ky Axis mapped to y in ray space
+	 * @param kz Dominant axis of the ray direction
+	 * @param px Ray origin along kx
+	 * @param py Ray origin along ky
+	 * @param pz Ray origin along kz
+	 * @param sx Shear of x by z
+	 * @param sy Shear of y by z
+	 * @param sz Scale of z
+	 * @return Intersection distance, or 0 if the ray misses the triangle
+	 */
+	private double intersect(int t, int kx, int ky, int kz, double px, double py, double pz, double sx, double sy, double sz) {
+		float[] vertex = vertices;
+		int a = 3 * indices[3 * t], b = 3 * indices[3 * t + 1], c = 3 * indices[3 * t + 2];
+
+		double az = vertex[a + kz] - pz;
+		double bz = vertex[b + kz] - pz;
+		double cz = vertex[c + kz] - pz;
+		double ax = vertex[a + kx] - px - sx * az;
+		double ay = vertex[a + ky] - py - sy * az;
+		double bx = vertex[b + kx] - px - sx * bz;
+		double by = vertex[b + ky] - py - sy * bz;
+		double cx = vertex[c + kx] - px - sx * cz;
+		double cy = vertex[c + ky] - py - sy * cz;
+
+		// Edge functions, a point on an edge is inside both triangles
+		double u = cx * by - cy * bx;
+		double w = bx * ay - by * ax;
+		if ((u < 0 || w < 0) && (u > 0 || w > 0)) {
+			return 0;
+		}
+		double v = ax * cy - ay * cx;
+		if ((u < 0 || v < 0 || w < 0) && (u > 0 || v > 0 || w > 0)) {
+			return 0;
+		}
+		double det = u + v + w;
+		if (det == 0) {
+			return 0;
+		}
+		return (u * az + v * bz + w * cz) * sz / det;
+	}
+
+	private static int dominantAxis(Vec3 v) {
+		float x = Math.abs(v.x), y = Math.abs(v.y), z = Math.abs(v.z);
+		if (x > y) {
+			return x > z ? 0 : 2;
+		}
+		return y > z ? 1 : 2;
+	}
+
+	private static double component(Vec3 v, int axis) {
+		return axis == 0 ? v.x : axis == 1 ? v.y : v.z;
+	}
+
+	/**
+	 * Computes the closest intersection with the mesh.
+	 * Allocates a hit record, the renderer uses
+	 * {@link #intersect(Vec3, Vec3, double, HitRecord, int)} instead.
+	 *
+	 * @return Closest positive intersection distance or 0 if none
+	 */
+	@Override
+	public double getIntersection(Vec3 P, Vec3 v) {
+		HitRecord hit = new HitRecord().reset(Double.POSITIVE_INFINITY);
+		return intersect(P, v, 0, hit, 0) ? hit.lambda : 0;
+	}
+
+	/**
+	 * Computes the normal of the triangle the closest to a point. Scans
+	 * every triangle, the renderer passes the triangle hit to
+	 * {@link #getNormal(Vec3, int, Vec3)} instead.
+	 *
+	 * @param P A point on the mesh
+	 * @return The normalized normal vector, zero if the mesh is empty
+	 */
+	@Override
+	public Vec3 getNormal(Vec3 P) {
+		return getNormal(P, -1, new Vec3());
+	}
+
+	/**
+	 * Computes the normal of a triangle without allocating.
+	 *
+	 * @param P A point on the triangle
+	 * @param primitive Index of the triangle, in leaf order, -1 for the
+	 *                  triangle the closest to the point
+	 * @param normal Receives the normalized normal vector, facing the side
+	 *               the vertices are seen counter-clockwise from
+	 * @return The normal vector, zero if the mesh is empty
+	 */
+	@Override
+	public Vec3 getNormal(Vec3 P, int primitive, Vec3 normal) {
+		if (primitive < 0) {
+			primitive = closestTriangle(P);
+			if (primitive < 0) {
+				return normal.set(0, 0, 0);
+			}
+		}
+		int a = 3 * indices[3 * primitive], b = 3 * indices[3 * primitive + 1], c = 3 * indices[3 * primitive + 2];
+		float e1x = vertices[b] - vertices[a], e1y = vertices[b + 1] - vertices[a + 1], e1z = vertices[b + 2] - vertices[a + 2];
+		float e2x = vertices[c] - vertices[a], e2y = vertices[c + 1] - vertices[a + 1], e2z = vertices[c + 2] - vertices[a + 2];
+		return normal.set(e1y * e2z - e1z * e2y, e1z * e2x - e1x * e2z, e1x * e2y - e1y * e2x).normalize();
+	}
+
+	/**
+	 * Finds the triangle the closest to a point.
+	 *
+	 * @return The triangle index, in leaf order, -1 if the mesh is empty
+	 */
+	private int closestTriangle(Vec3 P) {
+		int closest = -1;
+		double distance = Double.POSITIVE_INFINITY;
+		for (int t = 0; t < triangleCount; t++) {
+			double d = squaredDistance(t, P.x, P.y, P.z);
+			if (d < distance) {
+				distance = d;
+				closest = t;
+			}
+		}
+		return closest;
+	}
+
+	/**
+	 * Gets the squared distance from a point to a triangle, by finding the
+	 * closest point among the inside, the edges and the vertices.
+	 */
+	private double squaredDistance(int t, double px, double py, double pz) {
+		int a = 3 * indices[3 * t], b = 3 * indices[3 * t + 1], c = 3 * indices[3 * t + 2];
+		double ax = vertices[a], ay = vertices[a + 1], az = vertices[a + 2];
+		double abx = vertices[b] - ax, aby = vertices[b + 1] - ay, abz = vertices[b + 2] - az;
+		double acx = vertices[c] - ax, acy = vertices[c + 1] - ay, acz = vertices[c + 2] - az;
+		double apx = px - ax, apy = py - ay, apz = pz - az;
+
+		double d1 = abx * apx + aby * apy + abz * apz;
+		double d2 = acx * apx + acy * apy + acz * apz;
+		// Same products from b and from c
+		double d3 = d1 - (abx * abx + aby * aby + abz * abz);
+		double d4 = d2 - (acx * abx + acy * aby + acz * abz);
+		double d5 = d1 - (abx * acx + aby * acy + abz * acz);
+		double d6 = d2 - (acx * acx + acy * acy + acz * acz);
+
+		// Barycentric weights of b and c for the closest point
+		double v, w;
+		double va = d3 * d6 - d5 * d4, vb = d5 * d2 - d1 * d6, vc = d1 * d4 - d3 * d2;
+		if (d1 <= 0 && d2 <= 0) {
+			v = 0;
+			w = 0;
+		} else if (d3 >= 0 && d4 <= d3) {
+			v = 1;
+			w = 0;
+		} else if (d6 >= 0 && d5 <= d6) {
+			v = 0;
+			w = 1;
+		} else if (vc <= 0 && d1 >= 0 && d3 <= 0) {
+			v = d1 / (d1 - d3);
+			w = 0;
+		} else if (vb <= 0 && d2 >= 0 && d6 <= 0) {
+			v = 0;
+			w = d2 / (d2 - d6);
+		} else if (va <= 0 && d4 - d3 >= 0 && d5 - d6 >= 0) {
+			w = (d4 - d3) / ((d4 - d3) + (d5 - d6));
+			v = 1 - w;
+		} else {
+			double denominator = va + vb + vc;
+			v = denominator != 0 ? vb / denominator : 0;
+			w = denominator != 0 ? vc / denominator : 0;
+		}
+		double dx = apx - v * abx - w * acx, dy = apy - v * aby - w * acy, dz = apz - v * abz - w * acz;
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/**
+	 * Gets the box enclosing every triangle.
+	 *
+	 * @return The root box of the hierarchy, or null if the mesh is empty
+	 */
+	@Override
+	public BoundingBox getBounds() {
+		if (nodeCount == 0) {
+			return null;
+		}
+		float[] bounds = tree.getNodeBounds();
+		return new BoundingBox()
+				.expand(bounds[0], bounds[1], bounds[2])
+				.expand(bounds[3], bounds[4], bounds[5]);
+	}
+
+	/**
+	 * Gets the number of triangles.
+	 *
+	 * @return The triangle count
+	 */
+	public int size() {
+		return triangleCount;
+	}
+
+	/**
+	 * Gets the number of vertices.
+	 *
+	 * @return The vertex count
+	 */
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	/**
+	 * Gets the vertex coordinates, x, y, z per vertex.
+	 *
+	 * @return The backing array
+	 */
+	public float[] getVertices() {
+		return vertices;
+	}
+
+	/**
+	 * Gets the vertex indices of the triangles, three per triangle in leaf order.
+	 *
+	 * @return The backing array
+	 */
+	public int[] getIndices() {
+		return indices;
+	}
+
+	/**
+	 * Gets the hierarchy over the triangles.
+	 *
+	 * @return The hierarchy, its leaves refer to triangles of {@link #getIndices()}
+	 */
+	public BoxHierarchy getHierarchy() {
+		return tree;
+	}
+
+	/**
+	 * Collects vertices and triangles into growing arrays, then builds the mesh.
+	 */
+	public static class Builder {
+
+		private static final int INITIAL_CAPACITY = 64;
+
+		private float[] vertices = new float[3 * INITIAL_CAPACITY];
+		private int vertexCount;
+		private int[] indices = new int[3 * INITIAL_CAPACITY];
+		private int triangleCount;
+
+		/**
+		 * Adds a vertex.
+		 *
+		 * @param x Coordinates
+		 * @param y Coordinates
+		 * @param z Coordinates
+		 * @return Index of the vertex, starting at 0
+		 */
+		public int vertex(float x, float y, float z) {
+			if (3 * vertexCount == vertices.length) {
+				vertices = Arrays.copyOf(vertices, 3 * (vertexCount + (vertexCount >> 1)));
+			}
+			int i = 3 * vertexCount;
+			vertices[i] = x;
+			vertices[i + 1] = y;
+			vertices[i + 2] = z;
+			return vertexCount++;
+		}
+
+		/**
+		 * Adds a triangle over vertices already added.
+		 *
+		 * @param a Vertex index
+		 * @param b Vertex index
+		 * @param c Vertex index
+		 * @return This builder
+		 */
+		public Builder triangle(int a, int b, int c) {
+			if (a < 0 || a >= vertexCount || b < 0 || b >= vertexCount || c < 0 || c >= vertexCount) {
+				throw new IllegalArgumentException("unknown vertex in triangle " + a + " " + b + " " + c);
+			}
+			if (3 * triangleCount == indices.length) {
+				indices = Arrays.copyOf(indices, 3 * (triangleCount + (triangleCount >> 1)));
+			}
+			int i = 3 * triangleCount++;
+			indices[i] = a;
+			indices[i + 1] = b;
+			indices[i + 2] = c;
+			return this;
+		}
+
+		/**
+		 * Gets the number of vertices added so far.
+		 *
+		 * @return The vertex count
+		 */
+		public int getVertexCount() {
+			return vertexCount;
+		}
+
+		/**
+		 * Gets the number of triangles added so far.
+		 *
+		 * @return The triangle count
+		 */
+		public int size() {
+			return triangleCount;
+		}
+
+		/**
+		 * Builds the mesh and its hierarchy.
+		 *
+		 * @return The mesh, with the default material
+		 */
+		public TriangleMesh build() {
+			return new TriangleMesh(Arrays.copyOf(vertices, 3 * vertexCount), vertexCount, indices, triangleCount);
+		}
+	}
+}
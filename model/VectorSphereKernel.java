@@ -0,0 +1,143 @@
+package model;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+import utils.Vec3;
+
+/**
+ * Sphere kernel testing a group of spheres per vector operation, with the
+ * incubating Vector API.
+ * The float part of the computation (offset to the center, beta and the
+ * squared distance) runs in float lanes, then the lanes are widened to
+ * double for gamma, delta and the roots, following
+ * {@link Sphere#getIntersection(Vec3, Vec3)} operation by operation so
+ * the hits are the same as the scalar kernel. A group is as wide as the
+ * preferred double vector: 8 spheres with AVX-512, 4 with AVX2. Lanes past
+ * the end of the range are masked; the last group of the arrays falls back
+ * to the scalar loop rather than reading past them.
+ * Loaded by name from {@link SphereKernel}, only this class needs
+ * {@code jdk.incubator.vector}.
+ *
+ * @author KepsyIn
+ */
+final class VectorSphereKernel extends SphereKernel {
+
+	private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+
+	private static final VectorSpecies<Float> FLOATS = VectorSpecies.of(float.class, VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+
+	private static final int LANES = DOUBLES.length();
+
+	private static final DoubleVector ZERO = DoubleVector.zero(DOUBLES);
+
+	// lane indices, compared to the range end to mask the last group
+	private static final DoubleVector IOTA = ZERO.addIndex(1);
+
+	private final SphereKernel scalar = SphereKernel.scalar();
+
+	@Override
+	public boolean intersect(float[] centerX, float[] centerY, float[] centerZ, double[] radiusSquared, int start, int end,
+			Vec3 P, Vec3 v, double lambdaMin, HitRecord hit, Model model, int order) {
+		FloatVector px = FloatVector.broadcast(FLOATS, P.x);
+		FloatVector py = FloatVector.broadcast(FLOATS, P.y);
+		FloatVector pz = FloatVector.broadcast(FLOATS, P.z);
+		FloatVector vx = FloatVector.broadcast(FLOATS, v.x);
+		FloatVector vy = FloatVector.broadcast(FLOATS, v.y);
+		FloatVector vz = FloatVector.broadcast(FLOATS, v.z);
+		double alpha = v.dotProduct(v);
+		boolean updated = false;
+
+		double[] lanes = hit.lanes(LANES);
+		int i = start;
+		for (; i < end && i + LANES <= radiusSquared.length; i += LANES) {
+			FloatVector cpx = px.sub(FloatVector.fromArray(FLOATS, centerX, i));
+			FloatVector cpy = py.sub(FloatVector.fromArray(FLOATS, centerY, i));
+			FloatVector cpz = pz.sub(FloatVector.fromArray(FLOATS, centerZ, i));
+			DoubleVector beta = (DoubleVector) vx.mul(cpx).add(vy.mul(cpy)).add(vz.mul(cpz)).convertShape(VectorOperators.F2D, DOUBLES, 0);
+			DoubleVector gamma = ((DoubleVector) cpx.mul(cpx).add(cpy.mul(cpy)).add(cpz.mul(cpz)).convertShape(VectorOperators.F2D, DOUBLES, 0))
+					.sub(DoubleVector.fromArray(DOUBLES, radiusSquared, i));
+			DoubleVector delta = beta.mul(beta).sub(gamma.mul(alpha));
+
+			VectorMask<Double> positive = delta.compare(VectorOperators.GT, 0).and(IOTA.compare(VectorOperators.LT, end - i));
+			if (!positive.anyTrue()) {
+				continue;
+			}
+			DoubleVector lambda = roots(beta, delta, alpha, positive);
+			if (!lambda.compare(VectorOperators.GT, lambdaMin).and(lambda.compare(VectorOperators.LT, hit.lambda)).anyTrue()) {
+				continue;
+			}
+			// Offered in index order, ties resolve as in the scalar loop
+			lambda.intoArray(lanes, 0);
+			for (int k = 0, n = Math.min(LANES, end - i); k < n; k++) {
+				if (hit.offer(model, lanes[k], lambdaMin, order, i + k)) {
+					updated = true;
+				}
+			}
+		}
+
+		if (i < end && scalar.intersect(centerX, centerY, centerZ, radiusSquared, i, end, P, v, lambdaMin, hit, model, order)) {
+			updated = true;
+		}
+		return updated;
+	}
+
+	@Override
+	public boolean occludes(float[] centerX, float[] centerY, float[] centerZ, double[] radiusSquared, int start, int end,
+			Vec3 P, Vec3 v, double lambdaMin, double lambdaMax) {
+		FloatVector px = FloatVector.broadcast(FLOATS, P.x);
+		FloatVector py = FloatVector.broadcast(FLOATS, P.y);
+		FloatVector pz = FloatVector.broadcast(FLOATS, P.z);
+		FloatVector vx = FloatVector.broadcast(FLOATS, v.x);
+		FloatVector vy = FloatVector.broadcast(FLOATS, v.y);
+		FloatVector vz = FloatVector.broadcast(FLOATS, v.z);
+		double alpha = v.dotProduct(v);
+
+		int i = start;
+		for (; i < end && i + LANES <= radiusSquared.length; i += LANES) {
+			FloatVector cpx = px.sub(FloatVector.fromArray(FLOATS, centerX, i));
+			FloatVector cpy = py.sub(FloatVector.fromArray(FLOATS, centerY, i));
+			FloatVector cpz = pz.sub(FloatVector.fromArray(FLOATS, centerZ, i));
+			DoubleVector beta = (DoubleVector) vx.mul(cpx).add(vy.mul(cpy)).add(vz.mul(cpz)).convertShape(VectorOperators.F2D, DOUBLES, 0);
+			DoubleVector gamma = ((DoubleVector) cpx.mul(cpx).add(cpy.mul(cpy)).add(cpz.mul(cpz)).convertShape(VectorOperators.F2D, DOUBLES, 0))
+					.sub(DoubleVector.fromArray(DOUBLES, radiusSquared, i));
+			DoubleVector delta = beta.mul(beta).sub(gamma.mul(alpha));
+
+			VectorMask<Double> positive = delta.compare(VectorOperators.GT, 0).and(IOTA.compare(VectorOperators.LT, end - i));
+			if (!positive.anyTrue()) {
+				continue;
+			}
+			DoubleVector lambda = roots(beta, delta, alpha, positive);
+			if (lambda.compare(VectorOperators.GT, lambdaMin).and(lambda.compare(VectorOperators.LT, lambdaMax)).anyTrue()) {
+				return true;
+			}
+		}
+
+		return i < end && scalar.occludes(centerX, centerY, centerZ, radiusSquared, i, end, P, v, lambdaMin, lambdaMax);
+	}
+
+	/**
+	 * Picks the closest positive root in each lane, as {@link SphereKernel#root}
+	 * does: lambda1 if positive, else lambda2 if lambda1 &lt; 0 &lt; lambda2,
+	 * else 0. Lanes outside the hit mask are 0 too, a distance no query accepts.
+	 */
+	private static DoubleVector roots(DoubleVector beta, DoubleVector delta, double alpha, VectorMask<Double> hit) {
+		DoubleVector sqrtDelta = delta.lanewise(VectorOperators.SQRT);
+		DoubleVector minusBeta = beta.neg();
+		DoubleVector lambda1 = minusBeta.sub(sqrtDelta).div(alpha);
+		DoubleVector lambda2 = minusBeta.add(sqrtDelta).div(alpha);
+
+		VectorMask<Double> second = lambda1.compare(VectorOperators.LT, 0).and(lambda2.compare(VectorOperators.GT, 0));
+		return ZERO
+				.blend(lambda2, second.and(hit))
+				.blend(lambda1, lambda1.compare(VectorOperators.GT, 0).and(hit));
+	}
+
+	@Override
+	public int getLanes() {
+		return LANES;
+	}
+}
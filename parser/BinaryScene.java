@@ -0,0 +1,398 @@
+package parser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import model.BoxHierarchy;
+import model.Material;
+import model.Model;
+import model.Plan;
+import model.Sphere;
+import model.SphereSet;
+import raytracing.LightSource;
+import raytracing.Scene;
+import utils.Vec3;
+
+/**
+ * Compact binary scene format, loaded by memory mapping.
+ * Where the text format describes one object per line, the binary format
+ * stores each kind of data as a packed little-endian array, so loading
+ * maps each section with {@link FileChannel#map} and copies it in one bulk
+ * transfer, without any per-object parsing. Spheres are loaded as a single
+ * {@link SphereSet}, whose hierarchy can be stored in the file as well,
+ * which skips its construction at load time.
+ * <p>
+ * Layout, all values being 4 bytes:
+ * <pre>
+ * header     magic "RTSB", version, flags (bit 0: hierarchy stored),
+ *            width, height, samples, depth, distance, viewer x y z,
+ *            light, material, plane, sphere and node counts
+ * lights     position xyz, color rgb, specular rgb
+ * materials  color rgb, specular rgb, shininess, reflection
+ * planes     point xyz, normal xyz, material index
+ * spheres    all center x, all center y, all center z, all radii,
+ *            all material indices
+ * hierarchy  node boxes (min xyz, max xyz), node starts, node sizes
+ * </pre>
+ * When the hierarchy is stored, the spheres are written in its leaf
+ * order. Shininess is stored as a float.
+ *
+ * @author KepsyIn
+ */
+public final class BinaryScene {
+
+	public static final String EXTENSION = "rtsb";
+
+	public static final int VERSION = 1;
+
+	private static final int MAGIC = 'R' | 'T' << 8 | 'S' << 16 | 'B' << 24;
+
+	private static final int FLAG_HIERARCHY = 1;
+
+	private static final int HEADER_SIZE = 64;
+
+	private static final int LIGHT_FLOATS = 9;
+	private static final int MATERIAL_FLOATS = 8;
+	private static final int PLANE_VALUES = 7;
+
+	private BinaryScene() {
+	}
+
+	/**
+	 * Loads a binary scene file.
+	 *
+	 * @param path The file
+	 * @return The scene and its render settings
+	 * @throws IOException If the file cannot be read or is not a valid binary scene
+	 */
+	public static SceneFile load(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long fileSize = channel.size();
+			if (fileSize < HEADER_SIZE) {
+				throw new IOException(path + ": not a binary scene file");
+			}
+			ByteBuffer header = map(channel, 0, HEADER_SIZE);
+			if (header.getInt() != MAGIC) {
+				throw new IOException(path + ": not a binary scene file");
+			}
+			int version = header.getInt();
+			if (version != VERSION) {
+				throw new IOException(path + ": unsupported binary scene version " + version);
+			}
+			int flags = header.getInt();
+			int width = header.getInt();
+			int height = header.getInt();
+			int samples = header.getInt();
+			int depth = header.getInt();
+			float distance = header.getFloat();
+			Vec3 viewer = new Vec3(header.getFloat(), header.getFloat(), header.getFloat());
+			int lightCount = header.getInt();
+			int materialCount = header.getInt();
+			int planeCount = header.getInt();
+			int sphereCount = header.getInt();
+			int nodeCount = header.getInt();
+
+			boolean hierarchy = (flags & FLAG_HIERARCHY) != 0;
+			if (lightCount < 0 || materialCount < 0 || planeCount < 0 || sphereCount < 0 || nodeCount < 0) {
+				throw new IOException(path + ": negative count");
+			}
+			if (fileSize != size(lightCount, materialCount, planeCount, sphereCount, hierarchy ? nodeCount : 0)) {
+				throw new IOException(path + ": file size does not match its counts");
+			}
+
+			Scene scene = new Scene();
+			scene.setViewerPosition(viewer);
+			scene.setDistance(distance);
+			try {
+				scene.setDepth(depth);
+			} catch (IllegalArgumentException e) {
+				throw new IOException(path + ": " + e.getMessage());
+			}
+
+			long offset = HEADER_SIZE;
+			float[] lights = floats(channel, offset, LIGHT_FLOATS * lightCount);
+			offset += 4L * lights.length;
+			for (int i = 0; i < lightCount; i++) {
+				int o = LIGHT_FLOATS * i;
+				LightSource light = new LightSource(new Vec3(lights[o + 3], lights[o + 4], lights[o + 5]), new Vec3(lights[o], lights[o + 1], lights[o + 2]));
+				light.setSpecular(new Vec3(lights[o + 6], lights[o + 7], lights[o + 8]));
+				scene.addLightSource(light);
+			}
+
+			float[] values = floats(channel, offset, MATERIAL_FLOATS * materialCount);
+			offset += 4L * values.length;
+			Material[] materials = new Material[materialCount];
+			for (int i = 0; i < materialCount; i++) {
+				int o = MATERIAL_FLOATS * i;
+				materials[i] = new Material(new Vec3(values[o], values[o + 1], values[o + 2]),
+						new Vec3(values[o + 3], values[o + 4], values[o + 5]), values[o + 6], values[o + 7]);
+			}
+
+			ByteBuffer planes = map(channel, offset, 4L * PLANE_VALUES * planeCount);
+			offset += 4L * PLANE_VALUES * planeCount;
+			for (int i = 0; i < planeCount; i++) {
+				Plan plane = new Plan(new Vec3(planes.getFloat(), planes.getFloat(), planes.getFloat()),
+						new Vec3(planes.getFloat(), planes.getFloat(), planes.getFloat()));
+				material(materials, planes.getInt(), path).applyTo(plane);
+				scene.addModel(plane);
+			}
+
+			if (sphereCount > 0) {
+				float[] centerX = floats(channel, offset, sphereCount);
+				float[] centerY = floats(channel, offset += 4L * sphereCount, sphereCount);
+				float[] centerZ = floats(channel, offset += 4L * sphereCount, sphereCount);
+				float[] radius = floats(channel, offset += 4L * sphereCount, sphereCount);
+				int[] material = ints(channel, offset += 4L * sphereCount, sphereCount);
+				offset += 4L * sphereCount;
+
+				SphereSet spheres;
+				try {
+					if (hierarchy) {
+						float[] nodeBounds = floats(channel, offset, 6 * nodeCount);
+						int[] nodeStart = ints(channel, offset += 4L * nodeBounds.length, nodeCount);
+						int[] nodeSize = ints(channel, offset += 4L * nodeCount, nodeCount);
+						BoxHierarchy tree = new BoxHierarchy(nodeBounds, nodeStart, nodeSize, nodeCount, null);
+						spheres = new SphereSet(centerX, centerY, centerZ, radius, material, materials, sphereCount, tree);
+					} else {
+						spheres = new SphereSet(centerX, centerY, centerZ, radius, material, materials, sphereCount);
+					}
+				} catch (IllegalArgumentException e) {
+					throw new IOException(path + ": " + e.getMessage());
+				}
+				scene.addModel(spheres);
+			}
+
+			return new SceneFile(scene, width, height, samples);
+		}
+	}
+
+	private static Material material(Material[] materials, int index, Path path) throws IOException {
+		if (index < 0 || index >= materials.length) {
+			throw new IOException(path + ": unknown material " + index);
+		}
+		return materials[index];
+	}
+
+	private static long size(int lights, int materials, int planes, int spheres, int nodes) {
+		return HEADER_SIZE + 4L * (LIGHT_FLOATS * (long) lights + MATERIAL_FLOATS * (long) materials
+				+ PLANE_VALUES * (long) planes + 5L * spheres + 8L * nodes);
+	}
+
+	private static MappedByteBuffer map(FileChannel channel, long offset, long size) throws IOException {
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	private static float[] floats(FileChannel channel, long offset, int count) throws IOException {
+		float[] values = new float[count];
+		map(channel, offset, 4L * count).asFloatBuffer().get(values);
+		return values;
+	}
+
+	private static int[] ints(FileChannel channel, long offset, int count) throws IOException {
+		int[] values = new int[count];
+		map(channel, offset, 4L * count).asIntBuffer().get(values);
+		return values;
+	}
+
+	/**
+	 * Writes a scene in the binary format.
+	 * Planes keep their order, spheres and sphere sets are merged into one
+	 * array and materials are stored once per distinct set of properties.
+	 *
+	 * @param file The scene and its render settings
+	 * @param path The file, replaced if it exists
+	 * @param withHierarchy Whether to store the sphere hierarchy, built here
+	 *                      unless the scene holds a single sphere set
+	 * @throws IOException If the file cannot be written
+	 * @throws IllegalArgumentException If the scene holds a model the format cannot describe
+	 */
+	public static void save(SceneFile file, Path path, boolean withHierarchy) throws IOException {
+		Scene scene = file.getScene();
+
+		Map<Material, Integer> materials = new LinkedHashMap<>();
+		List<Plan> planes = new ArrayList<>();
+		List<Sphere> singles = new ArrayList<>();
+		List<SphereSet> sets = new ArrayList<>();
+		int sphereCount = 0;
+		for (Model model : scene.getModelList()) {
+			if (model instanceof Plan) {
+				planes.add((Plan) model);
+				index(materials, Material.of(model));
+			} else if (model instanceof Sphere) {
+				singles.add((Sphere) model);
+				index(materials, Material.of(model));
+				sphereCount++;
+			} else if (model instanceof SphereSet) {
+				SphereSet set = (SphereSet) model;
+				sets.add(set);
+				for (Material material : set.getMaterials()) {
+					index(materials, material);
+				}
+				sphereCount = Math.addExact(sphereCount, set.size());
+			} else {
+				throw new IllegalArgumentException("model not supported by the binary scene format: " + model.getClass().getName());
+			}
+		}
+
+		Spheres spheres = pack(singles, sets, materials, sphereCount, withHierarchy);
+		BoxHierarchy tree = spheres.tree;
+		int nodeCount = tree != null ? tree.getNodeCount() : 0;
+		List<LightSource> lights = scene.getLightSources();
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long size = size(lights.size(), materials.size(), planes.size(), sphereCount, nodeCount);
+			ByteBuffer header = writable(channel, 0, HEADER_SIZE);
+			Vec3 viewer = scene.getViewerPosition();
+			header.putInt(MAGIC).putInt(VERSION).putInt(tree != null ? FLAG_HIERARCHY : 0)
+					.putInt(file.getWidth()).putInt(file.getHeight()).putInt(file.getSamples()).putInt(scene.getDepth())
+					.putFloat(scene.getDistance()).putFloat(viewer.x).putFloat(viewer.y).putFloat(viewer.z)
+					.putInt(lights.size()).putInt(materials.size()).putInt(planes.size()).putInt(sphereCount).putInt(nodeCount);
+
+			long offset = HEADER_SIZE;
+			ByteBuffer buffer = writable(channel, offset, 4L * LIGHT_FLOATS * lights.size());
+			for (LightSource light : lights) {
+				put(buffer, light.getPosition());
+				put(buffer, light.getColor());
+				put(buffer, light.getSpecular());
+			}
+			offset += buffer.capacity();
+
+			buffer = writable(channel, offset, 4L * MATERIAL_FLOATS * materials.size());
+			for (Material material : materials.keySet()) {
+				put(buffer, material.getColor());
+				put(buffer, material.getSpecular());
+				buffer.putFloat((float) material.getShininess()).putFloat(material.getReflexionCoeff());
+			}
+			offset += buffer.capacity();
+
+			buffer = writable(channel, offset, 4L * PLANE_VALUES * planes.size());
+			for (Plan plane : planes) {
+				put(buffer, plane.getPoint());
+				put(buffer, plane.getNormal());
+				buffer.putInt(materials.get(Material.of(plane)));
+			}
+			offset += buffer.capacity();
+
+			offset = put(channel, offset, spheres.centerX, sphereCount);
+			offset = put(channel, offset, spheres.centerY, sphereCount);
+			offset = put(channel, offset, spheres.centerZ, sphereCount);
+			offset = put(channel, offset, spheres.radius, sphereCount);
+			offset = put(channel, offset, spheres.material, sphereCount);
+
+			if (tree != null) {
+				offset = put(channel, offset, tree.getNodeBounds(), 6 * nodeCount);
+				offset = put(channel, offset, tree.getNodeStart(), nodeCount);
+				offset = put(channel, offset, tree.getNodeSize(), nodeCount);
+			}
+
+			if (offset != size) {
+				throw new IllegalStateException("wrote " + offset + " bytes instead of " + size);
+			}
+		}
+	}
+
+	/**
+	 * Spheres packed for writing, in the leaf order of their hierarchy if
+	 * there is one.
+	 */
+	private static class Spheres {
+		float[] centerX;
+		float[] centerY;
+		float[] centerZ;
+		float[] radius;
+		int[] material;
+		BoxHierarchy tree;
+
+		Spheres(int count) {
+			centerX = new float[count];
+			centerY = new float[count];
+			centerZ = new float[count];
+			radius = new float[count];
+			material = new int[count];
+		}
+
+		Spheres(SphereSet set, int[] material) {
+			centerX = set.getCenterX();
+			centerY = set.getCenterY();
+			centerZ = set.getCenterZ();
+			radius = set.getRadius();
+			tree = set.getHierarchy();
+			this.material = material;
+		}
+	}
+
+	/**
+	 * Merges spheres and sphere sets into one array per value, material
+	 * indices referring to the file table.
+	 */
+	private static Spheres pack(List<Sphere> singles, List<SphereSet> sets, Map<Material, Integer> materials, int count, boolean withHierarchy) {
+		Spheres spheres = new Spheres(count);
+
+		int n = 0;
+		for (Sphere sphere : singles) {
+			Vec3 center = sphere.getCenter();
+			spheres.centerX[n] = center.x;
+			spheres.centerY[n] = center.y;
+			spheres.centerZ[n] = center.z;
+			spheres.radius[n] = (float) sphere.getRayon();
+			spheres.material[n++] = materials.get(Material.of(sphere));
+		}
+		for (SphereSet set : sets) {
+			Material[] table = set.getMaterials();
+			int[] indices = set.getMaterial();
+			System.arraycopy(set.getCenterX(), 0, spheres.centerX, n, set.size());
+			System.arraycopy(set.getCenterY(), 0, spheres.centerY, n, set.size());
+			System.arraycopy(set.getCenterZ(), 0, spheres.centerZ, n, set.size());
+			System.arraycopy(set.getRadius(), 0, spheres.radius, n, set.size());
+			for (int i = 0; i < set.size(); i++) {
+				spheres.material[n++] = materials.get(table[indices[i]]);
+			}
+		}
+
+		if (!withHierarchy || count == 0) {
+			return spheres;
+		}
+		if (singles.isEmpty() && sets.size() == 1) {
+			// A single set is already stored in the leaf order of its hierarchy
+			return new Spheres(sets.get(0), spheres.material);
+		}
+		Material[] table = materials.keySet().toArray(new Material[0]);
+		SphereSet set = new SphereSet(spheres.centerX, spheres.centerY, spheres.centerZ, spheres.radius, spheres.material, table, count);
+		return new Spheres(set, set.getMaterial());
+	}
+
+	private static void index(Map<Material, Integer> materials, Material material) {
+		materials.putIfAbsent(material, materials.size());
+	}
+
+	private static MappedByteBuffer writable(FileChannel channel, long offset, long size) throws IOException {
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	private static void put(ByteBuffer buffer, Vec3 v) {
+		buffer.putFloat(v.x).putFloat(v.y).putFloat(v.z);
+	}
+
+	private static long put(FileChannel channel, long offset, float[] values, int count) throws IOException {
+		writable(channel, offset, 4L * count).asFloatBuffer().put(values, 0, count);
+		return offset + 4L * count;
+	}
+
+	private static long put(FileChannel channel, long offset, int[] values, int count) throws IOException {
+		writable(channel, offset, 4L * count).asIntBuffer().put(values, 0, count);
+		return offset + 4L * count;
+	}
+}
@@ -0,0 +1,291 @@
+package parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Base of the streaming parsers of line-based text formats.
+ * The input is read by blocks into a reusable line buffer, '#' starts a
+ * comment; tokens are separated by spaces or tabs and numbers are decoded
+ * straight from the bytes, correctly rounded, without allocating.
+ *
+ * @author KepsyIn
+ */
+abstract class LineParser {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	// double mantissa bits dropped when rounding to a float, and their value halfway
+	private static final long FLOAT_ROUNDING_MASK = (1L << 29) - 1;
+	private static final long FLOAT_HALFWAY = 1L << 28;
+
+	private static final float[] FLOAT_POWERS = {1E0f, 1E1f, 1E2f, 1E3f, 1E4f, 1E5f, 1E6f, 1E7f, 1E8f, 1E9f, 1E10f};
+	private static final double[] DOUBLE_POWERS = {
+			1E0, 1E1, 1E2, 1E3, 1E4, 1E5, 1E6, 1E7, 1E8, 1E9, 1E10,
+			1E11, 1E12, 1E13, 1E14, 1E15, 1E16, 1E17, 1E18, 1E19, 1E20, 1E21, 1E22};
+
+	private final InputStream in;
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int position;
+	private int limit;
+
+	// current line, without its end of line and comment
+	byte[] line = new byte[256];
+	int length;
+	int cursor;
+	int lineNumber;
+
+	// decimal() results besides the mantissa
+	private boolean negative;
+	private int exponent;
+
+	/**
+	 * Creates a parser.
+	 *
+	 * @param in The input, read until its end but not closed
+	 */
+	LineParser(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Loads the next line into the line buffer.
+	 *
+	 * @return false at the end of the input
+	 */
+	boolean readLine() throws IOException {
+		length = 0;
+		cursor = 0;
+		boolean comment = false;
+		boolean read = false;
+
+		while (true) {
+			if (position == limit) {
+				limit = in.read(buffer, 0, buffer.length);
+				position = 0;
+				if (limit <= 0) {
+					limit = 0;
+					if (read) {
+						lineNumber++;
+					}
+					return read;
+				}
+			}
+			read = true;
+
+			byte c = buffer[position++];
+			if (c == '\n') {
+				lineNumber++;
+				return true;
+			}
+			if (c == '#') {
+				comment = true;
+			}
+			if (comment || c == '\r') {
+				continue;
+			}
+			if (length == line.length) {
+				line = Arrays.copyOf(line, 2 * line.length);
+			}
+			line[length++] = c;
+		}
+	}
+
+	boolean hasToken() {
+		while (cursor < length && isSpace(line[cursor])) {
+			cursor++;
+		}
+		return cursor < length;
+	}
+
+	int tokenEnd() {
+		int end = cursor;
+		while (end < length && !isSpace(line[end])) {
+			end++;
+		}
+		return end;
+	}
+
+	boolean nextKeyword(byte[] keyword) {
+		int end = tokenEnd();
+		if (matches(keyword, cursor, end)) {
+			cursor = end;
+			return true;
+		}
+		return false;
+	}
+
+	void expectKeyword(byte[] keyword) throws SceneParseException {
+		if (!hasToken() || !nextKeyword(keyword)) {
+			throw error("expected '" + new String(keyword, StandardCharsets.US_ASCII) + "'");
+		}
+	}
+
+	int nextInt() throws SceneParseException {
+		if (!hasToken()) {
+			throw error("missing integer");
+		}
+		int start = cursor;
+		int end = tokenEnd();
+		cursor = end;
+
+		int i = start;
+		boolean negative = line[i] == '-';
+		if (negative || line[i] == '+') {
+			i++;
+		}
+		if (i == end || end - i > 9) {
+			throw error("invalid integer '" + text(start, end) + "'");
+		}
+		int value = 0;
+		for (; i < end; i++) {
+			int digit = line[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw error("invalid integer '" + text(start, end) + "'");
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	float nextFloat() throws SceneParseException {
+		if (!hasToken()) {
+			throw error("missing number");
+		}
+		int start = cursor;
+		long mantissa = decimal();
+		if (mantissa >= 0 && mantissa <= 1 << 24 && exponent >= -10 && exponent <= 10) {
+			// Both operands are exact floats, so the result is correctly rounded
+			float value = exponent < 0 ? mantissa / FLOAT_POWERS[-exponent] : mantissa * FLOAT_POWERS[exponent];
+			return negative ? -value : value;
+		}
+		if (mantissa >= 0 && mantissa <= 1L << 53 && exponent >= -22 && exponent <= 22) {
+			double value = exponent < 0 ? mantissa / DOUBLE_POWERS[-exponent] : mantissa * DOUBLE_POWERS[exponent];
+			// Rounding the correctly rounded double again is exact, unless it
+			// falls right between two floats
+			long bits = Double.doubleToRawLongBits(value);
+			if ((bits & FLOAT_ROUNDING_MASK) != FLOAT_HALFWAY && (value == 0 || Math.abs(value) >= Float.MIN_NORMAL)) {
+				return (float) (negative ? -value : value);
+			}
+		}
+		try {
+			return Float.parseFloat(text(start, cursor));
+		} catch (NumberFormatException e) {
+			throw error("invalid number '" + text(start, cursor) + "'");
+		}
+	}
+
+	double nextDouble() throws SceneParseException {
+		if (!hasToken()) {
+			throw error("missing number");
+		}
+		int start = cursor;
+		long mantissa = decimal();
+		if (mantissa >= 0 && mantissa <= 1L << 53 && exponent >= -22 && exponent <= 22) {
+			double value = exponent < 0 ? mantissa / DOUBLE_POWERS[-exponent] : mantissa * DOUBLE_POWERS[exponent];
+			return negative ? -value : value;
+		}
+		try {
+			return Double.parseDouble(text(start, cursor));
+		} catch (NumberFormatException e) {
+			throw error("invalid number '" + text(start, cursor) + "'");
+		}
+	}
+
+	/**
+	 * Decodes the next token as sign, digits and decimal exponent.
+	 *
+	 * @return The digits as an integer, or -1 if the token is not a plain
+	 *         decimal number or has too many digits
+	 */
+	private long decimal() throws SceneParseException {
+		if (!hasToken()) {
+			throw error("missing number");
+		}
+		int end = tokenEnd();
+		int i = cursor;
+		cursor = end;
+
+		negative = line[i] == '-';
+		if (negative || line[i] == '+') {
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int significant = 0;
+		exponent = 0;
+		boolean point = false;
+		for (; i < end; i++) {
+			byte c = line[i];
+			if (c >= '0' && c <= '9') {
+				digits++;
+				if (mantissa != 0 || c != '0') {
+					if (++significant > 18) {
+						return -1;
+					}
+				}
+				mantissa = mantissa * 10 + (c - '0');
+				if (point) {
+					exponent--;
+				}
+			} else if (c == '.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+		}
+		if (digits == 0) {
+			return -1;
+		}
+
+		if (i < end && (line[i] == 'e' || line[i] == 'E')) {
+			i++;
+			boolean negativeExponent = i < end && line[i] == '-';
+			if (i < end && (line[i] == '-' || line[i] == '+')) {
+				i++;
+			}
+			int value = 0;
+			int start = i;
+			for (; i < end && line[i] >= '0' && line[i] <= '9' && i - start < 4; i++) {
+				value = value * 10 + (line[i] - '0');
+			}
+			if (i == start) {
+				return -1;
+			}
+			exponent += negativeExponent ? -value : value;
+		}
+		return i == end ? mantissa : -1;
+	}
+
+	boolean matches(byte[] expected, int start, int end) {
+		if (end - start != expected.length) {
+			return false;
+		}
+		for (int i = 0; i < expected.length; i++) {
+			if (line[start + i] != expected[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	String text(int start, int end) {
+		return new String(line, start, end - start, StandardCharsets.UTF_8);
+	}
+
+	SceneParseException error(String message) {
+		return new SceneParseException(lineNumber, message);
+	}
+
+	static boolean isSpace(byte c) {
+		return c == ' ' || c == '\t';
+	}
+
+	static byte[] keyword(String keyword) {
+		return keyword.getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,147 @@
+package parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import model.TriangleMesh;
+
+/**
+ * Streaming parser of Wavefront OBJ geometry.
+ * The file is read by blocks like a scene file, vertices and faces go
+ * straight into a {@link TriangleMesh.Builder}, so the text is never held
+ * in memory.
+ * Only the geometry is read:
+ * <pre>
+ * v &lt;x&gt; &lt;y&gt; &lt;z&gt; [&lt;w&gt;]
+ * f &lt;v1&gt; &lt;v2&gt; &lt;v3&gt; ...
+ * </pre>
+ * Face vertices may carry texture and normal indices (v/vt, v/vt/vn or
+ * v//vn), which are skipped; negative indices count back from the last
+ * vertex. Polygons are split into a fan of triangles. Other statements
+ * (normals, texture coordinates, groups, materials, lines) are ignored.
+ *
+ * @author KepsyIn
+ */
+public class ObjParser extends LineParser {
+
+	public static final String EXTENSION = "obj";
+
+	private static final byte[] VERTEX = keyword("v");
+	private static final byte[] FACE = keyword("f");
+
+	private final TriangleMesh.Builder mesh;
+
+	/**
+	 * Creates a parser.
+	 *
+	 * @param in The OBJ file, read until its end but not closed
+	 * @param mesh Receives the vertices and triangles
+	 */
+	public ObjParser(InputStream in, TriangleMesh.Builder mesh) {
+		super(in);
+		this.mesh = mesh;
+	}
+
+	/**
+	 * Loads the geometry of an OBJ file into a mesh.
+	 *
+	 * @param path The file
+	 * @return The mesh and its hierarchy, with the default material
+	 * @throws SceneParseException If a statement is malformed
+	 * @throws IOException If the file cannot be read
+	 */
+	public static TriangleMesh load(Path path) throws IOException {
+		TriangleMesh.Builder mesh = new TriangleMesh.Builder();
+		try (InputStream in = Files.newInputStream(path)) {
+			new ObjParser(in, mesh).parse();
+		}
+		return mesh.build();
+	}
+
+	/**
+	 * Parses the whole input.
+	 *
+	 * @throws SceneParseException If a statement is malformed
+	 * @throws IOException If the input cannot be read
+	 */
+	public void parse() throws IOException {
+		while (readLine()) {
+			parseStatement();
+		}
+	}
+
+	private void parseStatement() throws SceneParseException {
+		if (!hasToken()) {
+			return;
+		}
+
+		int start = cursor;
+		int end = tokenEnd();
+		cursor = end;
+
+		if (matches(VERTEX, start, end)) {
+			float x = nextFloat(), y = nextFloat(), z = nextFloat();
+			float w = hasToken() ? nextFloat() : 1;
+			if (w != 1) {
+				x /= w;
+				y /= w;
+				z /= w;
+			}
+			mesh.vertex(x, y, z);
+			if (hasToken()) {
+				throw error("unexpected '" + text(cursor, tokenEnd()) + "'");
+			}
+		} else if (matches(FACE, start, end)) {
+			int first = nextVertex();
+			int previous = nextVertex();
+			if (!hasToken()) {
+				throw error("a face needs at least 3 vertices");
+			}
+			while (hasToken()) {
+				int current = nextVertex();
+				mesh.triangle(first, previous, current);
+				previous = current;
+			}
+		}
+	}
+
+	/**
+	 * Reads the vertex of a face corner, skipping its texture and normal
+	 * indices.
+	 *
+	 * @return The vertex index in the mesh, starting at 0
+	 */
+	private int nextVertex() throws SceneParseException {
+		if (!hasToken()) {
+			throw error("missing face vertex");
+		}
+		int start = cursor;
+		int end = tokenEnd();
+		cursor = end;
+
+		int i = start;
+		boolean negative = line[i] == '-';
+		if (negative) {
+			i++;
+		}
+		int digits = i;
+		long value = 0;
+		for (; i < end && line[i] != '/'; i++) {
+			int digit = line[i] - '0';
+			if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE) {
+				throw error("invalid face vertex '" + text(start, end) + "'");
+			}
+			value = value * 10 + digit;
+		}
+		if (i == digits || value == 0) {
+			throw error("invalid face vertex '" + text(start, end) + "'");
+		}
+
+		long index = negative ? mesh.getVertexCount() - value : value - 1;
+		if (index < 0 || index >= mesh.getVertexCount()) {
+			throw error("face vertex " + text(start, i) + " is not defined");
+		}
+		return (int) index;
+	}
+}
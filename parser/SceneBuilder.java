@@ -0,0 +1,118 @@
+package parser;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import model.Material;
+import model.Model;
+import model.Plan;
+import model.Sphere;
+import model.TriangleMesh;
+import raytracing.LightSource;
+import raytracing.Scene;
+import utils.Vec3;
+
+/**
+ * Builds a {@link Scene} from the statements of a scene file.
+ * Models of the same material share its color and specular vectors.
+ * 
+ * @author KepsyIn
+ */
+public class SceneBuilder implements SceneHandler {
+	
+	private final Scene scene = new Scene();
+	
+	private final List<Material> materials = new ArrayList<>();
+	
+	private final Path directory;
+	
+	private int width = SceneFile.DEFAULT_WIDTH;
+	private int height = SceneFile.DEFAULT_HEIGHT;
+	private int samples = 1;
+	
+	/**
+	 * Creates a builder resolving mesh files from the working directory.
+	 */
+	public SceneBuilder() {
+		this(Path.of(""));
+	}
+	
+	/**
+	 * Creates a builder resolving mesh files from a directory.
+	 * 
+	 * @param directory Directory of the scene file
+	 */
+	public SceneBuilder(Path directory) {
+		this.directory = directory;
+		materials.add(new Material(Model.DEFAULT_COLOR, Model.DEFAULT_SPECULAR, SceneParser.DEFAULT_SHININESS, 0));
+	}
+	
+	@Override
+	public void camera(float x, float y, float z, float distance) {
+		scene.setViewerPosition(new Vec3(x, y, z));
+		scene.setDistance(distance);
+	}
+	
+	@Override
+	public void render(int width, int height, int samples, int depth) {
+		this.width = width;
+		this.height = height;
+		this.samples = samples;
+		scene.setDepth(depth);
+	}
+	
+	@Override
+	public void material(int index, String name, float r, float g, float b, float specularR, float specularG, float specularB, double shininess, float reflection) {
+		materials.add(new Material(new Vec3(r, g, b), new Vec3(specularR, specularG, specularB), shininess, reflection));
+	}
+	
+	@Override
+	public void light(float x, float y, float z, float r, float g, float b, float specularR, float specularG, float specularB) {
+		LightSource light = new LightSource(new Vec3(r, g, b), new Vec3(x, y, z));
+		light.setSpecular(new Vec3(specularR, specularG, specularB));
+		scene.addLightSource(light);
+	}
+	
+	@Override
+	public void sphere(float x, float y, float z, double radius, int material) {
+		Sphere sphere = new Sphere(radius, new Vec3(x, y, z));
+		materials.get(material).applyTo(sphere);
+		scene.addModel(sphere);
+	}
+	
+	@Override
+	public void plane(float x, float y, float z, float normalX, float normalY, float normalZ, int material) {
+		Plan plane = new Plan(new Vec3(x, y, z), new Vec3(normalX, normalY, normalZ));
+		materials.get(material).applyTo(plane);
+		scene.addModel(plane);
+	}
+	
+	@Override
+	public void mesh(String file, int material) throws IOException {
+		TriangleMesh mesh = ObjParser.load(directory.resolve(file));
+		materials.get(material).applyTo(mesh);
+		scene.addModel(mesh);
+	}
+	
+	/**
+	 * Gets the scene built so far.
+	 * 
+	 * @return The scene
+	 */
+	public Scene getScene() {
+		return scene;
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	public int getHeight() {
+		return height;
+	}
+	
+	public int getSamples() {
+		return samples;
+	}
+}
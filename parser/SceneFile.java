@@ -0,0 +1,234 @@
+package parser;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import model.Material;
+import model.Model;
+import model.Plan;
+import model.Sphere;
+import model.SphereSet;
+import raytracing.LightSource;
+import raytracing.Scene;
+import utils.Vec3;
+
+/**
+ * A scene loaded from a text scene file, with its render settings.
+ * See {@link SceneParser} for the format.
+ *
+ * @author KepsyIn
+ */
+public class SceneFile {
+
+	public static final String EXTENSION = "scene";
+
+	public static final int DEFAULT_WIDTH = 800;
+	public static final int DEFAULT_HEIGHT = 600;
+
+	private final Scene scene;
+	private final int width;
+	private final int height;
+	private final int samples;
+
+	/**
+	 * Creates a scene file from a scene and its render settings.
+	 *
+	 * @param scene The scene
+	 * @param width Image width
+	 * @param height Image height
+	 * @param samples Samples per dimension
+	 */
+	public SceneFile(Scene scene, int width, int height, int samples) {
+		this.scene = scene;
+		this.width = width;
+		this.height = height;
+		this.samples = samples;
+	}
+
+	/**
+	 * Loads a scene file.
+	 *
+	 * @param path The file
+	 * @return The scene and its render settings
+	 * @throws SceneParseException If the file is malformed
+	 * @throws IOException If the file cannot be read
+	 */
+	public static SceneFile load(Path path) throws IOException {
+		Path directory = path.toAbsolutePath().getParent();
+		try (InputStream in = Files.newInputStream(path)) {
+			return load(in, new SceneBuilder(directory));
+		}
+	}
+
+	/**
+	 * Loads a scene from a stream, mesh files are resolved from the
+	 * working directory.
+	 *
+	 * @param in The scene text, read until its end but not closed
+	 * @return The scene and its render settings
+	 * @throws SceneParseException If the text is malformed
+	 * @throws IOException If the stream cannot be read
+	 */
+	public static SceneFile load(InputStream in) throws IOException {
+		return load(in, new SceneBuilder());
+	}
+
+	private static SceneFile load(InputStream in, SceneBuilder builder) throws IOException {
+		new SceneParser(in, builder).parse();
+		return new SceneFile(builder.getScene(), builder.getWidth(), builder.getHeight(), builder.getSamples());
+	}
+
+	/**
+	 * Writes the scene in the text format.
+	 * Models keep their order, the spheres of a {@link SphereSet} are
+	 * written one per line; materials are declared once per distinct set
+	 * of properties.
+	 *
+	 * @param path The file
+	 * @throws IOException If the file cannot be written
+	 * @throws IllegalArgumentException If the scene holds a model the format cannot describe
+	 */
+	public void save(Path path) throws IOException {
+		try (OutputStream out = Files.newOutputStream(path)) {
+			write(out);
+		}
+	}
+
+	/**
+	 * Writes the scene in the text format.
+	 *
+	 * @param out The destination, flushed but not closed
+	 * @throws IOException If the stream cannot be written
+	 * @throws IllegalArgumentException If the scene holds a model the format cannot describe
+	 */
+	public void write(OutputStream out) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+
+		Vec3 viewer = scene.getViewerPosition();
+		writer.write("camera " + vector(viewer) + " " + scene.getDistance() + "\n");
+		writer.write("render " + width + " " + height + " " + samples + " " + scene.getDepth() + "\n");
+
+		for (LightSource light : scene.getLightSources()) {
+			writer.write("light " + vector(light.getPosition()) + " " + vector(light.getColor()) + " specular " + vector(light.getSpecular()) + "\n");
+		}
+
+		Map<String, String> materials = new LinkedHashMap<>();
+		StringBuilder models = new StringBuilder();
+		for (Model model : scene.getModelList()) {
+			if (model instanceof SphereSet) {
+				writeSpheres((SphereSet) model, materials, models, writer);
+				continue;
+			}
+			String material = material(model, materials, writer);
+			if (model instanceof Sphere) {
+				Sphere sphere = (Sphere) model;
+				models.append("sphere ").append(vector(sphere.getCenter())).append(' ').append(sphere.getRayon());
+			} else if (model instanceof Plan) {
+				Plan plane = (Plan) model;
+				models.append("plane ").append(vector(plane.point)).append(' ').append(vector(plane.getNormal()));
+			} else {
+				throw new IllegalArgumentException("model not supported by the scene format: " + model.getClass().getName());
+			}
+			if (material != null) {
+				models.append(' ').append(material);
+			}
+			models.append('\n');
+
+			if (models.length() > 1 << 16) {
+				writer.append(models);
+				models.setLength(0);
+			}
+		}
+		writer.append(models);
+		writer.flush();
+	}
+
+	/**
+	 * Writes the spheres of a set one per line.
+	 */
+	private static void writeSpheres(SphereSet set, Map<String, String> materials, StringBuilder models, Writer writer) throws IOException {
+		Material[] table = set.getMaterials();
+		String[] names = new String[table.length];
+		for (int m = 0; m < table.length; m++) {
+			names[m] = material(table[m], materials, writer);
+		}
+
+		float[] centerX = set.getCenterX(), centerY = set.getCenterY(), centerZ = set.getCenterZ();
+		float[] radius = set.getRadius();
+		int[] material = set.getMaterial();
+		for (int i = 0; i < set.size(); i++) {
+			models.append("sphere ").append(centerX[i]).append(' ').append(centerY[i]).append(' ').append(centerZ[i])
+					.append(' ').append(radius[i]);
+			if (names[material[i]] != null) {
+				models.append(' ').append(names[material[i]]);
+			}
+			models.append('\n');
+
+			if (models.length() > 1 << 16) {
+				writer.append(models);
+				models.setLength(0);
+			}
+		}
+	}
+
+	/**
+	 * Gets the name of the material of a model, declaring it on first use.
+	 *
+	 * @return The material name, or null for the default material
+	 */
+	private static String material(Model model, Map<String, String> materials, Writer writer) throws IOException {
+		return material(Material.of(model), materials, writer);
+	}
+
+	/**
+	 * Gets the name of a material, declaring it on first use.
+	 *
+	 * @return The material name, or null for the default material
+	 */
+	private static String material(Material material, Map<String, String> materials, Writer writer) throws IOException {
+		String properties = vector(material.getColor())
+				+ " specular " + vector(material.getSpecular())
+				+ " shininess " + material.getShininess()
+				+ " reflection " + material.getReflexionCoeff();
+		if (material.getColor() == Model.DEFAULT_COLOR && material.getSpecular() == Model.DEFAULT_SPECULAR
+				&& material.getShininess() == SceneParser.DEFAULT_SHININESS && material.getReflexionCoeff() == 0) {
+			return null;
+		}
+
+		String name = materials.get(properties);
+		if (name == null) {
+			name = "m" + materials.size();
+			materials.put(properties, name);
+			writer.write("material " + name + " " + properties + "\n");
+		}
+		return name;
+	}
+
+	private static String vector(Vec3 v) {
+		return v.x + " " + v.y + " " + v.z;
+	}
+
+	public Scene getScene() {
+		return scene;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getSamples() {
+		return samples;
+	}
+}
@@ -0,0 +1,53 @@
+package parser;
+
+import java.io.IOException;
+
+/**
+ * Receives the statements of a scene file as they are parsed.
+ * Values are passed as primitives, the parser builds no intermediate
+ * objects; materials are referred to by their index, in declaration
+ * order, 0 being the default material.
+ * 
+ * @author KepsyIn
+ */
+public interface SceneHandler {
+	
+	/**
+	 * Viewer position and distance to the image plane.
+	 */
+	void camera(float x, float y, float z, float distance);
+	
+	/**
+	 * Image size, samples per dimension and reflection depth.
+	 */
+	void render(int width, int height, int samples, int depth);
+	
+	/**
+	 * Declares a material, its index is the number of materials declared
+	 * before it plus one.
+	 */
+	void material(int index, String name, float r, float g, float b, float specularR, float specularG, float specularB, double shininess, float reflection);
+	
+	/**
+	 * Point light source.
+	 */
+	void light(float x, float y, float z, float r, float g, float b, float specularR, float specularG, float specularB);
+	
+	/**
+	 * Sphere given by its center and radius.
+	 */
+	void sphere(float x, float y, float z, double radius, int material);
+	
+	/**
+	 * Plane given by a point and its normal.
+	 */
+	void plane(float x, float y, float z, float normalX, float normalY, float normalZ, int material);
+	
+	/**
+	 * Triangle mesh read from an OBJ file, the path is relative to the
+	 * scene file.
+	 * 
+	 * @throws IOException If the mesh cannot be loaded
+	 */
+	void mesh(String file, int material) throws IOException;
+}
@@ -0,0 +1,35 @@
+package parser;
+
+import java.io.IOException;
+
+/**
+ * Signals a malformed scene or mesh file.
+ * 
+ * @author KepsyIn
+ */
+public class SceneParseException extends IOException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private final int line;
+	
+	/**
+	 * Creates an exception for an error on a line.
+	 * 
+	 * @param line Line number, starting at 1
+	 * @param message Description of the error
+	 */
+	public SceneParseException(int line, String message) {
+		super("line " + line + ": " + message);
+		this.line = line;
+	}
+	
+	/**
+	 * Gets the line of the error.
+	 * 
+	 * @return The line number, starting at 1
+	 */
+	public int getLine() {
+		return line;
+	}
+}
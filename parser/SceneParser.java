@@ -0,0 +1,214 @@
+package parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import model.Model;
+import raytracing.Scene;
+
+/**
+ * Streaming parser of the text scene format.
+ * The input is read by blocks and each line is tokenized in place: numbers
+ * are decoded straight from the bytes and handed to a {@link SceneHandler},
+ * so the cost per primitive is a few comparisons and no allocation.
+ *
+ * A scene file holds one statement per line, '#' starts a comment:
+ * <pre>
+ * camera   &lt;x&gt; &lt;y&gt; &lt;z&gt; [&lt;distance&gt;]
+ * render   &lt;width&gt; &lt;height&gt; [&lt;samples&gt; [&lt;depth&gt;]]
+ * material &lt;name&gt; &lt;r&gt; &lt;g&gt; &lt;b&gt; [specular &lt;r&gt; &lt;g&gt; &lt;b&gt;] [shininess &lt;s&gt;] [reflection &lt;k&gt;]
+ * light    &lt;x&gt; &lt;y&gt; &lt;z&gt; [&lt;r&gt; &lt;g&gt; &lt;b&gt;] [specular &lt;r&gt; &lt;g&gt; &lt;b&gt;]
+ * sphere   &lt;x&gt; &lt;y&gt; &lt;z&gt; &lt;radius&gt; [&lt;material&gt;]
+ * plane    &lt;x&gt; &lt;y&gt; &lt;z&gt; &lt;nx&gt; &lt;ny&gt; &lt;nz&gt; [&lt;material&gt;]
+ * mesh     &lt;file.obj&gt; [&lt;material&gt;]
+ * </pre>
+ * A material must be declared before it is used; models without material
+ * use {@value #DEFAULT_MATERIAL} (white, same defaults as {@link Model}).
+ * A mesh file is read by {@link ObjParser}, its path is relative to the
+ * scene file and cannot hold spaces.
+ *
+ * @author KepsyIn
+ */
+public class SceneParser extends LineParser {
+
+	public static final String DEFAULT_MATERIAL = "default";
+
+	public static final double DEFAULT_SHININESS = 100;
+
+	private static final byte[] CAMERA = keyword("camera");
+	private static final byte[] RENDER = keyword("render");
+	private static final byte[] MATERIAL = keyword("material");
+	private static final byte[] LIGHT = keyword("light");
+	private static final byte[] SPHERE = keyword("sphere");
+	private static final byte[] PLANE = keyword("plane");
+	private static final byte[] MESH = keyword("mesh");
+	private static final byte[] SPECULAR = keyword("specular");
+	private static final byte[] SHININESS = keyword("shininess");
+	private static final byte[] REFLECTION = keyword("reflection");
+
+	private final SceneHandler handler;
+
+	private final Map<String, Integer> materials = new HashMap<>();
+	// models usually come in runs of the same material
+	private byte[] lastMaterialName = new byte[0];
+	private int lastMaterial = -1;
+
+	/**
+	 * Creates a parser.
+	 *
+	 * @param in The scene file, read until its end but not closed
+	 * @param handler Receives the statements
+	 */
+	public SceneParser(InputStream in, SceneHandler handler) {
+		super(in);
+		this.handler = handler;
+		materials.put(DEFAULT_MATERIAL, 0);
+	}
+
+	/**
+	 * Parses the whole input.
+	 *
+	 * @throws SceneParseException If a statement is malformed
+	 * @throws IOException If the input cannot be read
+	 */
+	public void parse() throws IOException {
+		while (readLine()) {
+			parseStatement();
+		}
+	}
+
+	private void parseStatement() throws IOException {
+		if (!hasToken()) {
+			return;
+		}
+
+		int start = cursor;
+		int end = tokenEnd();
+		cursor = end;
+
+		if (matches(CAMERA, start, end)) {
+			float x = nextFloat(), y = nextFloat(), z = nextFloat();
+			float distance = hasToken() ? nextFloat() : Scene.DEFAULT_DISTANCE;
+			handler.camera(x, y, z, distance);
+		} else if (matches(RENDER, start, end)) {
+			int width = nextInt(), height = nextInt();
+			int samples = hasToken() ? nextInt() : 1;
+			int depth = hasToken() ? nextInt() : Scene.DEFAULT_DEPTH;
+			if (width <= 0 || height <= 0 || samples <= 0 || depth < 0) {
+				throw error("invalid render settings");
+			}
+			handler.render(width, height, samples, depth);
+		} else if (matches(MATERIAL, start, end)) {
+			parseMaterial();
+		} else if (matches(LIGHT, start, end)) {
+			float x = nextFloat(), y = nextFloat(), z = nextFloat();
+			float r = 1, g = 1, b = 1;
+			if (hasToken() && !matches(SPECULAR, cursor, tokenEnd())) {
+				r = nextFloat();
+				g = nextFloat();
+				b = nextFloat();
+			}
+			float sr = 1, sg = 1, sb = 1;
+			if (hasToken()) {
+				expectKeyword(SPECULAR);
+				sr = nextFloat();
+				sg = nextFloat();
+				sb = nextFloat();
+			}
+			handler.light(x, y, z, r, g, b, sr, sg, sb);
+		} else if (matches(SPHERE, start, end)) {
+			float x = nextFloat(), y = nextFloat(), z = nextFloat();
+			double radius = nextDouble();
+			if (!(radius > 0)) {
+				throw error("sphere radius must be positive");
+			}
+			handler.sphere(x, y, z, radius, nextMaterial());
+		} else if (matches(PLANE, start, end)) {
+			float x = nextFloat(), y = nextFloat(), z = nextFloat();
+			float nx = nextFloat(), ny = nextFloat(), nz = nextFloat();
+			handler.plane(x, y, z, nx, ny, nz, nextMaterial());
+		} else if (matches(MESH, start, end)) {
+			if (!hasToken()) {
+				throw error("missing mesh file");
+			}
+			int fileEnd = tokenEnd();
+			String file = text(cursor, fileEnd);
+			cursor = fileEnd;
+			int material = nextMaterial();
+			try {
+				handler.mesh(file, material);
+			} catch (IOException e) {
+				SceneParseException error = error("mesh '" + file + "' not loaded: " + e.getMessage());
+				error.initCause(e);
+				throw error;
+			}
+		} else {
+			throw error("unknown statement '" + text(start, end) + "'");
+		}
+
+		if (hasToken()) {
+			throw error("unexpected '" + text(cursor, tokenEnd()) + "'");
+		}
+	}
+
+	private void parseMaterial() throws SceneParseException {
+		if (!hasToken()) {
+			throw error("missing material name");
+		}
+		int end = tokenEnd();
+		String name = text(cursor, end);
+		cursor = end;
+		if (materials.containsKey(name)) {
+			throw error("material '" + name + "' already declared");
+		}
+
+		float r = nextFloat(), g = nextFloat(), b = nextFloat();
+		float sr = Model.DEFAULT_SPECULAR.x, sg = Model.DEFAULT_SPECULAR.y, sb = Model.DEFAULT_SPECULAR.z;
+		double shininess = DEFAULT_SHININESS;
+		float reflection = 0;
+
+		while (hasToken()) {
+			if (nextKeyword(SPECULAR)) {
+				sr = nextFloat();
+				sg = nextFloat();
+				sb = nextFloat();
+			} else if (nextKeyword(SHININESS)) {
+				shininess = nextDouble();
+			} else if (nextKeyword(REFLECTION)) {
+				reflection = nextFloat();
+			} else {
+				throw error("unknown material property '" + text(cursor, tokenEnd()) + "'");
+			}
+		}
+
+		int index = materials.size();
+		materials.put(name, index);
+		handler.material(index, name, r, g, b, sr, sg, sb, shininess, reflection);
+	}
+
+	/**
+	 * Reads the optional material name ending a model statement.
+	 */
+	private int nextMaterial() throws SceneParseException {
+		if (!hasToken()) {
+			return 0;
+		}
+		int start = cursor;
+		int end = tokenEnd();
+		cursor = end;
+
+		if (lastMaterial >= 0 && matches(lastMaterialName, start, end)) {
+			return lastMaterial;
+		}
+		String name = text(start, end);
+		Integer index = materials.get(name);
+		if (index == null) {
+			throw error("unknown material '" + name + "'");
+		}
+		lastMaterialName = Arrays.copyOfRange(line, start, end);
+		lastMaterial = index;
+		return index;
+	}
+}
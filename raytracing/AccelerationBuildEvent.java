@@ -0,0 +1,32 @@
+package raytracing;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event emitted when the bounding volume hierarchy of a
+ * scene is built, or refitted after models moved.
+ * 
+ * @author KepsyIn
+ */
+@Name("raytracing.AccelerationBuild")
+@Label("Acceleration Structure Build")
+@Category({"Raytracing", "Scene"})
+final class AccelerationBuildEvent extends jdk.jfr.Event {
+	
+	@Label("Models")
+	int models;
+	
+	@Label("Unbounded Models")
+	int unboundedModels;
+	
+	@Label("Nodes")
+	int nodes;
+	
+	@Label("Depth")
+	int depth;
+	
+	@Label("Refit")
+	boolean refit;
+}
@@ -0,0 +1,316 @@
+package raytracing;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import utils.Vec3;
+
+/**
+ * Renders a scene with adaptive anti-aliasing.
+ * A first pass traces one ray through the center of every pixel. A second
+ * pass supersamples only the pixels whose color differs from one of their
+ * 8 neighbours by more than a threshold: a 2x2 grid is traced first, and
+ * the grid is doubled while the standard deviation of its samples stays
+ * above the threshold, up to the maximum sample count.
+ * Every sample lies on the final maxSamples x maxSamples grid and is kept
+ * by the finer grids; a coarser grid takes the cells closest to its own
+ * cell centres, mirrored around the pixel center so that a pixel which
+ * stops early is not shifted to one side. A fully refined pixel averages
+ * the same samples as uniform supersampling, at the cost of
+ * maxSamples x maxSamples rays on top of the first pass, one less when
+ * maxSamples is odd since the center ray of the first pass is reused.
+ * Flat regions therefore cost a single ray per pixel, edges and
+ * reflections get the full supersampling.
+ *
+ * @author KepsyIn
+ */
+public class AdaptiveRenderer {
+
+	public static final float DEFAULT_THRESHOLD = 0.1f;
+
+	private final int maxSamples;
+
+	private final float threshold;
+
+	// statistics of the last render
+	private long raysTraced;
+	private long uniformRays;
+	private long refinedPixels;
+
+	/**
+	 * Creates an adaptive renderer with the default threshold.
+	 *
+	 * @param maxSamples Maximum samples per dimension
+	 */
+	public AdaptiveRenderer(int maxSamples) {
+		this(maxSamples, DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * Creates an adaptive renderer.
+	 *
+	 * @param maxSamples Maximum samples per dimension
+	 * @param threshold Contrast and standard deviation above which a pixel
+	 *                  is refined, colors being in [0, 1]
+	 */
+	public AdaptiveRenderer(int maxSamples, float threshold) {
+		if (maxSamples < 1) {
+			throw new IllegalArgumentException("max samples must be positive: " + maxSamples);
+		}
+		if (threshold < 0) {
+			throw new IllegalArgumentException("threshold must not be negative: " + threshold);
+		}
+		this.maxSamples = maxSamples;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Renders the scene on the calling thread.
+	 *
+	 * @param scene The scene to render
+	 * @param width Image width
+	 * @param height Image height
+	 * @return Rendered image buffer
+	 */
+	public byte[] render(Scene scene, int width, int height) {
+		return render(scene, width, height, null);
+	}
+
+	/**
+	 * Renders the scene, both passes being split into tiles.
+	 *
+	 * @param scene The scene to render
+	 * @param width Image width
+	 * @param height Image height
+	 * @param tiles Schedules the tiles, or null to render on the calling thread
+	 * @return Rendered image buffer
+	 */
+	public byte[] render(Scene scene, int width, int height, TileRenderer tiles) {
+		float[] base = new float[3 * width * height];
+		byte[] buffer = new byte[3 * width * height];
+		LongAdder rays = new LongAdder();
+		LongAdder refined = new LongAdder();
+
+		forEachTile(tiles, width, height, (x0, y0, x1, y1) -> {
+			sampleCenters(scene, base, width, height, x0, y0, x1, y1);
+			rays.add((long) (x1 - x0) * (y1 - y0));
+		});
+		forEachTile(tiles, width, height, (x0, y0, x1, y1) -> refine(scene, base, buffer, width, height, x0, y0, x1, y1, rays, refined));
+
+		raysTraced = rays.sum();
+		refinedPixels = refined.sum();
+		uniformRays = (long) width * height * maxSamples * maxSamples;
+		return buffer;
+	}
+
+	private static void forEachTile(TileRenderer tiles, int width, int height, TileRenderer.TileTask task) {
+		if (tiles != null) {
+			tiles.forEachTile(width, height, task);
+		} else {
+			task.run(0, 0, width, height);
+		}
+	}
+
+	/**
+	 * First pass: one ray through the center of each pixel of the tile.
+	 */
+	private static void sampleCenters(Scene scene, float[] base, int width, int height, int x0, int y0, int x1, int y1) {
+		TraceContext ctx = TraceContext.current();
+		Vec3 color = ctx.pixelColor;
+		long start = RenderMetrics.ENABLED ? System.nanoTime() : 0;
+
+		for (int ye = y0; ye < y1; ye++) {
+			for (int xe = x0; xe < x1; xe++) {
+				int index = 3 * (ye * width + xe);
+				scene.sampleColor(xe, ye, 0, 0, width, height, ctx, color);
+				// Compare colors the way they will be stored
+				base[index] = Math.min(color.x, 1);
+				base[index + 1] = Math.min(color.y, 1);
+				base[index + 2] = Math.min(color.z, 1);
+			}
+		}
+
+		if (RenderMetrics.ENABLED) {
+			RenderMetrics.get().recordTile(ctx, (long) (x1 - x0) * (y1 - y0), System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Second pass: keeps the center sample of flat pixels and supersamples
+	 * the others.
+	 */
+	private void refine(Scene scene, float[] base, byte[] buffer, int width, int height, int x0, int y0, int x1, int y1, LongAdder rays, LongAdder refined) {
+		TraceContext ctx = TraceContext.current();
+		Vec3 sample = ctx.sampleColor;
+		long start = RenderMetrics.ENABLED ? System.nanoTime() : 0;
+		long tileRays = 0;
+		long tilePixels = 0;
+		// cells of the final grid already traced for the current pixel
+		boolean[] traced = new boolean[maxSamples * maxSamples];
+
+		for (int ye = y0; ye < y1; ye++) {
+			for (int xe = x0; xe < x1; xe++) {
+				int index = 3 * (ye * width + xe);
+				float r = base[index], g = base[index + 1], b = base[index + 2];
+
+				if (maxSamples > 1 && contrast(base, width, height, xe, ye) > threshold) {
+					tilePixels++;
+					Arrays.fill(traced, false);
+					int count = 0;
+					float sumR = 0, sumG = 0, sumB = 0;
+					float squaresR = 0, squaresG = 0, squaresB = 0;
+					if (maxSamples % 2 == 1) {
+						// The first pass ray goes through the center cell
+						int center = maxSamples / 2;
+						traced[center * maxSamples + center] = true;
+						sumR = r;
+						sumG = g;
+						sumB = b;
+						squaresR = r * r;
+						squaresG = g * g;
+						squaresB = b * b;
+						count = 1;
+					}
+					int reused = count;
+					int samples = 1;
+					float deviation;
+					do {
+						samples = Math.min(2 * samples, maxSamples);
+						// Cells of the final grid, those of the coarser grids are kept
+						for (int i = 0; i < samples; i++) {
+							int ci = cell(i, samples);
+							for (int j = 0; j < samples; j++) {
+								int cj = cell(j, samples);
+								if (traced[ci * maxSamples + cj]) {
+									continue;
+								}
+								traced[ci * maxSamples + cj] = true;
+								float dx = (ci + 0.5f) / maxSamples - 0.5f;
+								float dy = (cj + 0.5f) / maxSamples - 0.5f;
+								scene.sampleColor(xe, ye, dx, dy, width, height, ctx, sample);
+
+								float sr = Math.min(sample.x, 1), sg = Math.min(sample.y, 1), sb = Math.min(sample.z, 1);
+								sumR += sr;
+								sumG += sg;
+								sumB += sb;
+								squaresR += sr * sr;
+								squaresG += sg * sg;
+								squaresB += sb * sb;
+								count++;
+							}
+						}
+
+						float coeff = 1.0f / count;
+						r = sumR * coeff;
+						g = sumG * coeff;
+						b = sumB * coeff;
+						float variance = Math.max(squaresR * coeff - r * r, Math.max(squaresG * coeff - g * g, squaresB * coeff - b * b));
+						deviation = (float) Math.sqrt(Math.max(variance, 0));
+					} while (samples < maxSamples && deviation > threshold);
+					tileRays += count - reused;
+				}
+
+				buffer[index] = Scene.toByte(r);
+				buffer[index + 1] = Scene.toByte(g);
+				buffer[index + 2] = Scene.toByte(b);
+			}
+		}
+
+		rays.add(tileRays);
+		refined.add(tilePixels);
+
+		if (RenderMetrics.ENABLED) {
+			RenderMetrics.get().recordTile(ctx, (long) (x1 - x0) * (y1 - y0), System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Gets the cell of the final maxSamples grid closest to the center of a
+	 * cell of a coarser grid, along one dimension. The upper half mirrors
+	 * the lower one, so the cells of a grid are centered on the pixel.
+	 */
+	private int cell(int index, int samples) {
+		if (samples == maxSamples) {
+			return index;
+		}
+		if (2 * index >= samples) {
+			return maxSamples - 1 - cell(samples - 1 - index, samples);
+		}
+		return Math.round((index + 0.5f) * maxSamples / samples - 0.5f);
+	}
+
+	/**
+	 * Gets the largest channel difference between a pixel and its
+	 * neighbours.
+	 */
+	private static float contrast(float[] base, int width, int height, int xe, int ye) {
+		int index = 3 * (ye * width + xe);
+		float contrast = 0;
+
+		for (int ny = Math.max(0, ye - 1); ny <= Math.min(height - 1, ye + 1); ny++) {
+			for (int nx = Math.max(0, xe - 1); nx <= Math.min(width - 1, xe + 1); nx++) {
+				int neighbour = 3 * (ny * width + nx);
+				for (int c = 0; c < 3; c++) {
+					contrast = Math.max(contrast, Math.abs(base[neighbour + c] - base[index + c]));
+				}
+			}
+		}
+		return contrast;
+	}
+
+	/**
+	 * Gets the number of rays traced by the last render.
+	 *
+	 * @return The ray count
+	 */
+	public long getRaysTraced() {
+		return raysTraced;
+	}
+
+	/**
+	 * Gets the number of rays uniform supersampling would have traced for
+	 * the last render.
+	 *
+	 * @return width * height * maxSamples * maxSamples
+	 */
+	public long getUniformRays() {
+		return uniformRays;
+	}
+
+	/**
+	 * Gets the number of rays saved by the last render compared with
+	 * uniform supersampling.
+	 *
+	 * @return The saved ray count, negative if adaptive sampling cost more
+	 */
+	public long getRaysSaved() {
+		return uniformRays - raysTraced;
+	}
+
+	/**
+	 * Gets the number of pixels supersampled by the last render.
+	 *
+	 * @return The refined pixel count
+	 */
+	public long getRefinedPixels() {
+		return refinedPixels;
+	}
+
+	/**
+	 * Gets the number of samples per dimension of a fully refined pixel.
+	 *
+	 * @return The maximum samples per dimension
+	 */
+	public int getMaxSamples() {
+		return maxSamples;
+	}
+
+	/**
+	 * Gets the contrast and standard deviation above which a pixel is
+	 * refined.
+	 *
+	 * @return The threshold, colors being in [0, 1]
+	 */
+	public float getThreshold() {
+		return threshold;
+	}
+}
@@ -0,0 +1,194 @@
+package raytracing;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Renders a range of animation frames back to back in one process.
+ * Before each frame an {@link Animation} updates the scene (camera, model
+ * positions); models moved through their setters are refitted in the
+ * hierarchy rather than rebuilt.
+ * Frames are rendered on a {@link TileRenderer} and handed to a
+ * {@link FrameWriter} on a separate thread, so frame N is encoded and
+ * written while frame N+1 is rendered. The pipeline is bounded: a few
+ * image buffers are recycled from frame to frame, and rendering waits
+ * when the writer falls behind by more than the pipeline depth.
+ *
+ * @author KepsyIn
+ */
+public class AnimationRenderer {
+
+	/**
+	 * Frames rendered ahead of the one being written.
+	 */
+	public static final int DEFAULT_PIPELINE_DEPTH = 2;
+
+	/**
+	 * Updates a scene for a frame.
+	 */
+	@FunctionalInterface
+	public interface Animation {
+		/**
+		 * Moves the camera and the models to their state at a frame.
+		 * Runs on the rendering thread, between two frames.
+		 *
+		 * @param scene The scene
+		 * @param frame The frame number
+		 */
+		void setFrame(Scene scene, int frame);
+	}
+
+	/**
+	 * Encodes and writes a rendered frame.
+	 */
+	@FunctionalInterface
+	public interface FrameWriter {
+		/**
+		 * Writes a frame. Runs on the writer thread, frames arrive in order.
+		 * The image buffer is reused for a later frame once this returns.
+		 *
+		 * @param frame The frame number
+		 * @param image The pixels, 3 bytes per pixel
+		 * @param width Image width
+		 * @param height Image height
+		 * @throws IOException If the frame cannot be written
+		 */
+		void write(int frame, byte[] image, int width, int height) throws IOException;
+	}
+
+	/**
+	 * A rendered frame waiting for the writer.
+	 */
+	private static final class Frame {
+		final int number;
+		final byte[] image;
+
+		Frame(int number, byte[] image) {
+			this.number = number;
+			this.image = image;
+		}
+	}
+
+	private static final Frame END = new Frame(0, null);
+
+	private final TileRenderer tiles;
+	private final int depth;
+
+	/**
+	 * Creates an animation renderer with the default pipeline depth.
+	 *
+	 * @param tiles Renders the tiles of each frame, kept for the whole range
+	 */
+	public AnimationRenderer(TileRenderer tiles) {
+		this(tiles, DEFAULT_PIPELINE_DEPTH);
+	}
+
+	/**
+	 * Creates an animation renderer.
+	 *
+	 * @param tiles Renders the tiles of each frame, kept for the whole range
+	 * @param depth Largest number of rendered frames waiting for the writer
+	 */
+	public AnimationRenderer(TileRenderer tiles, int depth) {
+		if (depth < 1) {
+			throw new IllegalArgumentException("pipeline depth must be positive: " + depth);
+		}
+		this.tiles = tiles;
+		this.depth = depth;
+	}
+
+	/**
+	 * Renders the frames firstFrame to lastFrame and writes them in order.
+	 * Returns once the last frame is written. If the writer fails, no
+	 * frame is rendered after the failure is noticed and the error is
+	 * thrown once the frames already rendered are dropped.
+	 *
+	 * @param scene The scene, updated in place
+	 * @param animation Updates the scene before each frame
+	 * @param firstFrame First frame number (inclusive)
+	 * @param lastFrame Last frame number (inclusive)
+	 * @param width Image width
+	 * @param height Image height
+	 * @param samples Samples per dimension
+	 * @param writer Receives the frames
+	 * @throws IOException If the writer fails
+	 * @throws InterruptedException If the calling thread is interrupted
+	 */
+	public void render(Scene scene, Animation animation, int firstFrame, int lastFrame, int width, int height, int samples, FrameWriter writer) throws IOException, InterruptedException {
+		// One buffer being rendered, the others waiting for or in the writer
+		BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(depth + 1);
+		for (int i = 0; i <= depth && i <= lastFrame - firstFrame; i++) {
+			free.add(new byte[3 * width * height]);
+		}
+		BlockingQueue<Frame> rendered = new ArrayBlockingQueue<>(depth + 2);
+
+		Writer worker = new Writer(writer, width, height, rendered, free);
+		worker.start();
+		boolean done = false;
+		try {
+			for (int frame = firstFrame; frame <= lastFrame && worker.failure == null; frame++) {
+				byte[] image = free.take();
+				animation.setFrame(scene, frame);
+				tiles.render(scene, width, height, samples, image);
+				rendered.put(new Frame(frame, image));
+			}
+			rendered.put(END);
+			worker.join();
+			done = true;
+		} finally {
+			if (!done) {
+				worker.interrupt();
+			}
+		}
+		if (worker.failure != null) {
+			throw worker.failure;
+		}
+	}
+
+	/**
+	 * Thread writing the rendered frames in order and giving their buffers
+	 * back. After a failure it keeps recycling buffers without writing, so
+	 * the rendering thread is never left waiting.
+	 */
+	private static final class Writer extends Thread {
+
+		private final FrameWriter writer;
+		private final int width;
+		private final int height;
+		private final BlockingQueue<Frame> rendered;
+		private final BlockingQueue<byte[]> free;
+
+		volatile IOException failure;
+
+		Writer(FrameWriter writer, int width, int height, BlockingQueue<Frame> rendered, BlockingQueue<byte[]> free) {
+			super("animation-writer");
+			setDaemon(true);
+			this.writer = writer;
+			this.width = width;
+			this.height = height;
+			this.rendered = rendered;
+			this.free = free;
+		}
+
+		@Override
+		public void run() {
+			try {
+				for (Frame frame = rendered.take(); frame != END; frame = rendered.take()) {
+					if (failure == null) {
+						try {
+							writer.write(frame.number, frame.image, width, height);
+						} catch (IOException e) {
+							failure = e;
+						} catch (RuntimeException e) {
+							failure = new IOException("frame " + frame.number + " not written", e);
+						}
+					}
+					free.put(frame.image);
+				}
+			} catch (InterruptedException e) {
+				// The rendering thread gave up
+			}
+		}
+	}
+}
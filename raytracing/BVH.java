@@ -0,0 +1,459 @@
+package raytracing;
+
+import java.util.List;
+import model.BoundingBox;
+import model.BoxHierarchy;
+import model.HitRecord;
+import model.Model;
+import utils.Vec3;
+
+/**
+ * Bounding volume hierarchy over the models of a scene.
+ * Bounded models are stored in a {@link BoxHierarchy}, unbounded models
+ * (planes) are kept in a small list which is always tested.
+ *
+ * @author KepsyIn
+ */
+public class BVH {
+
+	/**
+	 * Relative margin added around each model box, so that rounding in the
+	 * model intersection code never lands a hit just outside its box.
+	 */
+	private static final double BOX_MARGIN = 1E-5;
+
+	/**
+	 * Growth of the estimated ray cost past which a refitted tree is
+	 * rebuilt rather than refitted again.
+	 */
+	public static final double REBUILD_COST_RATIO = 1.5;
+
+	private final Model[] primitives;
+	private final int[] primitiveOrder;
+
+	private final Model[] unbounded;
+	private final int[] unboundedOrder;
+
+	private final int modelCount;
+
+	private final BoxHierarchy tree;
+	private final int[] nodeStart;
+	private final int[] nodeSize;
+	private final int nodeCount;
+
+	// boxes of the bounded models in leaf order, kept for refitting
+	private final float[] boxes;
+	private final double buildCost;
+	private volatile long revision;
+
+	/**
+	 * Builds the hierarchy over a list of models.
+	 *
+	 * @param models The scene models, their position in the list is used to break ties
+	 */
+	public BVH(List<Model> models) {
+		this.modelCount = models.size();
+		this.revision = Model.getLatestRevision();
+
+		int boundedCount = 0;
+		BoundingBox[] bounds = new BoundingBox[modelCount];
+		for (int i = 0; i < modelCount; i++) {
+			bounds[i] = models.get(i).getBounds();
+			if (bounds[i] != null && !bounds[i].isEmpty()) {
+				boundedCount++;
+			}
+		}
+
+		unbounded = new Model[modelCount - boundedCount];
+		unboundedOrder = new int[modelCount - boundedCount];
+		float[] boxes = new float[6 * boundedCount];
+		int[] order = new int[boundedCount];
+
+		int b = 0;
+		int u = 0;
+		for (int i = 0; i < modelCount; i++) {
+			BoundingBox box = bounds[i];
+			if (box == null || box.isEmpty()) {
+				unbounded[u] = models.get(i);
+				unboundedOrder[u++] = i;
+				continue;
+			}
+			setBox(boxes, 6 * b, box);
+			order[b++] = i;
+		}
+
+		tree = new BoxHierarchy(boxes, boundedCount);
+		nodeStart = tree.getNodeStart();
+		nodeSize = tree.getNodeSize();
+		nodeCount = tree.getNodeCount();
+
+		int[] leaves = tree.getOrder();
+		primitives = new Model[boundedCount];
+		primitiveOrder = new int[boundedCount];
+		this.boxes = new float[6 * boundedCount];
+		for (int i = 0; i < boundedCount; i++) {
+			primitiveOrder[i] = order[leaves[i]];
+			primitives[i] = models.get(primitiveOrder[i]);
+			System.arraycopy(boxes, 6 * leaves[i], this.boxes, 6 * i, 6);
+		}
+		buildCost = tree.cost();
+	}
+
+	/**
+	 * Stores the box of a model, widened by the margin.
+	 */
+	private static void setBox(float[] boxes, int offset, BoundingBox box) {
+		double margin = BOX_MARGIN * (1 + Math.max(box.maxX - box.minX, Math.max(box.maxY - box.minY, box.maxZ - box.minZ))
+				+ Math.max(Math.abs(box.minX), Math.max(Math.abs(box.minY), Math.abs(box.minZ)))
+				+ Math.max(Math.abs(box.maxX), Math.max(Math.abs(box.maxY), Math.abs(box.maxZ))));
+		BoxHierarchy.setBox(boxes, offset, box.minX - margin, box.minY - margin, box.minZ - margin,
+				box.maxX + margin, box.maxY + margin, box.maxZ + margin);
+	}
+
+	/**
+	 * Updates the boxes of the models moved since the hierarchy was built
+	 * or last refitted, then the node boxes, in linear time. The tree keeps
+	 * its shape, so it gets slower as models drift apart from where it was
+	 * built; the caller should then build a new hierarchy.
+	 * Must not run while rays are traced through the hierarchy.
+	 *
+	 * @return false if the hierarchy should be rebuilt: its estimated ray
+	 *         cost grew by more than {@link #REBUILD_COST_RATIO}, or a
+	 *         model lost its bounds
+	 */
+	public boolean refit() {
+		long latest = Model.getLatestRevision();
+		long seen = revision;
+		boolean moved = false;
+		for (int i = 0; i < primitives.length; i++) {
+			if (primitives[i].getRevision() > seen) {
+				BoundingBox box = primitives[i].getBounds();
+				if (box == null || box.isEmpty()) {
+					return false;
+				}
+				setBox(boxes, 6 * i, box);
+				moved = true;
+			}
+		}
+		if (moved) {
+			tree.refit(boxes);
+		}
+		revision = latest;
+		return !moved || tree.cost() <= REBUILD_COST_RATIO * buildCost;
+	}
+
+	/**
+	 * Finds the closest model hit by a ray.
+	 * Gives the same result as testing every model in list order and
+	 * keeping the smallest distance in ]lambdaMin, lambdaMax[.
+	 *
+	 * @param P Ray starting point
+	 * @param v Ray direction
+	 * @param lambdaMin Lower bound of the distance (exclusive)
+	 * @param lambdaMax Upper bound of the distance (exclusive)
+	 * @param hit Receives the closest model and its distance
+	 * @return true if a model was hit
+	 */
+	public boolean intersect(Vec3 P, Vec3 v, double lambdaMin, double lambdaMax, HitRecord hit) {
+		return intersect(P, v, lambdaMin, lambdaMax, hit, new int[tree.getDepth() + 1]);
+	}
+
+	/**
+	 * Finds the closest model hit by a ray without allocating.
+	 *
+	 * @param P Ray starting point
+	 * @param v Ray direction
+	 * @param lambdaMin Lower bound of the distance (exclusive)
+	 * @param lambdaMax Upper bound of the distance (exclusive)
+	 * @param hit Receives the closest model and its distance
+	 * @param stack Traversal stack, at least {@link #getDepth()} + 1 long
+	 * @return true if a model was hit
+	 */
+	public boolean intersect(Vec3 P, Vec3 v, double lambdaMin, double lambdaMax, HitRecord hit, int[] stack) {
+		return intersect(P, v, lambdaMin, lambdaMax, hit, stack, null);
+	}
+
+	/**
+	 * Finds the closest model hit by a ray, counting the intersection tests
+	 * in a thread context when metrics are enabled.
+	 */
+	boolean intersect(Vec3 P, Vec3 v, double lambdaMin, double lambdaMax, HitRecord hit, int[] stack, TraceContext ctx) {
+		boolean counting = RenderMetrics.ENABLED && ctx != null;
+		hit.reset(lambdaMax);
+
+		for (int i = 0; i < unbounded.length; i++) {
+			unbounded[i].intersect(P, v, lambdaMin, hit, unboundedOrder[i]);
+		}
+		if (counting) {
+			ctx.intersectionTests += unbounded.length;
+		}
+
+		if (nodeCount == 0) {
+			return hit.hasHit();
+		}
+
+		double ox = P.x, oy = P.y, oz = P.z;
+		double invX = 1.0 / v.x, invY = 1.0 / v.y, invZ = 1.0 / v.z;
+
+		int top = 0;
+		int node = 0;
+
+		if (tree.entry(0, ox, oy, oz, invX, invY, invZ, lambdaMin, hit.lambda) == Double.POSITIVE_INFINITY) {
+			return hit.hasHit();
+		}
+
+		while (true) {
+			int size = nodeSize[node];
+			if (size > 0) {
+				int start = nodeStart[node];
+				if (counting) {
+					ctx.intersectionTests += size;
+				}
+				for (int i = start; i < start + size; i++) {
+					primitives[i].intersect(P, v, lambdaMin, hit, primitiveOrder[i]);
+				}
+			} else {
+				int left = node + 1;
+				int right = nodeStart[node];
+				double tLeft = tree.entry(left, ox, oy, oz, invX, invY, invZ, lambdaMin, hit.lambda);
+				double tRight = tree.entry(right, ox, oy, oz, invX, invY, invZ, lambdaMin, hit.lambda);
+
+				if (tLeft != Double.POSITIVE_INFINITY && tRight != Double.POSITIVE_INFINITY) {
+					if (tLeft <= tRight) {
+						stack[top++] = right;
+						node = left;
+					} else {
+						stack[top++] = left;
+						node = right;
+					}
+					continue;
+				} else if (tLeft != Double.POSITIVE_INFINITY) {
+					node = left;
+					continue;
+				} else if (tRight != Double.POSITIVE_INFINITY) {
+					node = right;
+					continue;
+				}
+			}
+
+			// Pop the next node still closer than the current hit
+			do {
+				if (top == 0) {
+					return hit.hasHit();
+				}
+				node = stack[--top];
+			} while (tree.entry(node, ox, oy, oz, invX, invY, invZ, lambdaMin, hit.lambda) == Double.POSITIVE_INFINITY);
+		}
+	}
+
+	/**
+	 * Finds the closest model hit by each ray of a packet.
+	 * The packet walks the tree once: an inner node is skipped when the
+	 * interval test shows that no ray of the packet reaches it before its
+	 * current hit, a leaf is then tested ray by ray. Each hit record gets
+	 * the same result as {@link #intersect(Vec3, Vec3, double, double, HitRecord, int[])}
+	 * for its ray.
+	 *
+	 * @param packet The rays, their hit records receive the results
+	 * @param lambdaMin Lower bound of the distance (exclusive)
+	 * @param lambdaMax Upper bound of the distance (exclusive)
+	 * @param stack Traversal stack, at least {@link #getDepth()} + 1 long
+	 * @param ctx Thread context counting the intersection tests, may be null
+	 */
+	void intersect(RayPacket packet, double lambdaMin, double lambdaMax, int[] stack, TraceContext ctx) {
+		boolean counting = RenderMetrics.ENABLED && ctx != null;
+		int n = packet.size;
+		Vec3 P = packet.origin;
+		Vec3[] directions = packet.directions;
+		HitRecord[] hits = packet.hits;
+
+		for (int k = 0; k < n; k++) {
+			hits[k].reset(lambdaMax);
+			for (int i = 0; i < unbounded.length; i++) {
+				unbounded[i].intersect(P, directions[k], lambdaMin, hits[k], unboundedOrder[i]);
+			}
+		}
+		if (counting) {
+			ctx.intersectionTests += (long) unbounded.length * n;
+		}
+
+		if (nodeCount == 0) {
+			return;
+		}
+
+		double ox = P.x, oy = P.y, oz = P.z;
+		double[] invX = packet.invX, invY = packet.invY, invZ = packet.invZ;
+		double minInvX = packet.minInvX, maxInvX = packet.maxInvX;
+		double minInvY = packet.minInvY, maxInvY = packet.maxInvY;
+		double minInvZ = packet.minInvZ, maxInvZ = packet.maxInvZ;
+
+		int top = 0;
+		int node = 0;
+
+		if (tree.intervalEntry(0, ox, oy, oz, minInvX, maxInvX, minInvY, maxInvY, minInvZ, maxInvZ, lambdaMin, packet.farthest()) == Double.POSITIVE_INFINITY) {
+			return;
+		}
+
+		while (true) {
+			int size = nodeSize[node];
+			if (size > 0) {
+				int start = nodeStart[node];
+				for (int k = 0; k < n; k++) {
+					HitRecord hit = hits[k];
+					if (tree.entry(node, ox, oy, oz, invX[k], invY[k], invZ[k], lambdaMin, hit.lambda) == Double.POSITIVE_INFINITY) {
+						continue;
+					}
+					if (counting) {
+						ctx.intersectionTests += size;
+					}
+					for (int i = start; i < start + size; i++) {
+						primitives[i].intersect(P, directions[k], lambdaMin, hit, primitiveOrder[i]);
+					}
+				}
+			} else {
+				int left = node + 1;
+				int right = nodeStart[node];
+				double far = packet.farthest();
+				double tLeft = tree.intervalEntry(left, ox, oy, oz, minInvX, maxInvX, minInvY, maxInvY, minInvZ, maxInvZ, lambdaMin, far);
+				double tRight = tree.intervalEntry(right, ox, oy, oz, minInvX, maxInvX, minInvY, maxInvY, minInvZ, maxInvZ, lambdaMin, far);
+
+				if (tLeft != Double.POSITIVE_INFINITY && tRight != Double.POSITIVE_INFINITY) {
+					if (tLeft <= tRight) {
+						stack[top++] = right;
+						node = left;
+					} else {
+						stack[top++] = left;
+						node = right;
+					}
+					continue;
+				} else if (tLeft != Double.POSITIVE_INFINITY) {
+					node = left;
+					continue;
+				} else if (tRight != Double.POSITIVE_INFINITY) {
+					node = right;
+					continue;
+				}
+			}
+
+			// Pop the next node still closer than the farthest hit of the packet
+			do {
+				if (top == 0) {
+					return;
+				}
+				node = stack[--top];
+			} while (tree.intervalEntry(node, ox, oy, oz, minInvX, maxInvX, minInvY, maxInvY, minInvZ, maxInvZ, lambdaMin, packet.farthest()) == Double.POSITIVE_INFINITY);
+		}
+	}
+
+	/**
+	 * Checks whether any model blocks a ray segment.
+	 * Returns at the first blocker found, children are not sorted.
+	 *
+	 * @param P Ray starting point
+	 * @param v Ray direction
+	 * @param lambdaMin Lower bound of the distance (exclusive)
+	 * @param lambdaMax Upper bound of the distance (exclusive)
+	 * @param stack Traversal stack, at least {@link #getDepth()} + 1 long
+	 * @return true if a model is hit in ]lambdaMin, lambdaMax[
+	 */
+	public boolean occluded(Vec3 P, Vec3 v, double lambdaMin, double lambdaMax, int[] stack) {
+		return occluded(P, v, lambdaMin, lambdaMax, stack, null);
+	}
+
+	/**
+	 * Checks whether any model blocks a ray segment, counting the
+	 * intersection tests in a thread context when metrics are enabled.
+	 * The position of the blocking model in the list is left in the
+	 * context.
+	 */
+	boolean occluded(Vec3 P, Vec3 v, double lambdaMin, double lambdaMax, int[] stack, TraceContext ctx) {
+		boolean counting = RenderMetrics.ENABLED && ctx != null;
+		// the closest hit of the context is already shaded, only its storage is lent
+		HitRecord scratch = ctx != null ? ctx.hit : null;
+
+		for (int i = 0; i < unbounded.length; i++) {
+			if (counting) {
+				ctx.intersectionTests++;
+			}
+			if (unbounded[i].isOccluding(P, v, lambdaMin, lambdaMax, scratch)) {
+				if (ctx != null) {
+					ctx.occluder = unboundedOrder[i];
+				}
+				return true;
+			}
+		}
+
+		if (nodeCount == 0) {
+			return false;
+		}
+
+		double ox = P.x, oy = P.y, oz = P.z;
+		double invX = 1.0 / v.x, invY = 1.0 / v.y, invZ = 1.0 / v.z;
+
+		int top = 0;
+		stack[top++] = 0;
+
+		while (top > 0) {
+			int node = stack[--top];
+			if (tree.entry(node, ox, oy, oz, invX, invY, invZ, lambdaMin, lambdaMax) == Double.POSITIVE_INFINITY) {
+				continue;
+			}
+
+			int size = nodeSize[node];
+			if (size > 0) {
+				int start = nodeStart[node];
+				for (int i = start; i < start + size; i++) {
+					if (counting) {
+						ctx.intersectionTests++;
+					}
+					if (primitives[i].isOccluding(P, v, lambdaMin, lambdaMax, scratch)) {
+						if (ctx != null) {
+							ctx.occluder = primitiveOrder[i];
+						}
+						return true;
+					}
+				}
+			} else {
+				stack[top++] = nodeStart[node];
+				stack[top++] = node + 1;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the number of models the hierarchy was built over.
+	 *
+	 * @return The number of models
+	 */
+	public int size() {
+		return modelCount;
+	}
+
+	/**
+	 * Gets the number of nodes of the tree.
+	 *
+	 * @return The number of nodes
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Gets the depth of the tree.
+	 *
+	 * @return The number of levels, 0 if no model is bounded
+	 */
+	public int getDepth() {
+		return tree.getDepth();
+	}
+
+	/**
+	 * Gets the number of unbounded models tested for every ray.
+	 *
+	 * @return The number of unbounded models
+	 */
+	public int getUnboundedCount() {
+		return unbounded.length;
+	}
+}
@@ -0,0 +1,59 @@
+package raytracing;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event emitted for each row band of a streamed render,
+ * from the start of its tiles until the sink has taken it.
+ * 
+ * @author KepsyIn
+ */
+@Name("raytracing.Band")
+@Label("Render Band")
+@Category({"Raytracing", "Rendering"})
+@Description("Rendering of a band of rows and its hand-off to the frame sink")
+@StackTrace(false)
+final class BandEvent extends jdk.jfr.Event {
+	
+	@Label("First Row")
+	int y;
+	
+	@Label("Rows")
+	int rows;
+	
+	@Label("Width")
+	int width;
+	
+	@Label("Samples")
+	@Description("Samples per dimension")
+	int samples;
+	
+	@Label("Primary Rays")
+	long primaryRays;
+	
+	/**
+	 * Creates and begins the event of a band.
+	 * 
+	 * @param y First row of the band
+	 * @param rows Number of rows
+	 * @param width Image width
+	 * @param samples Samples per dimension
+	 * @return The started event, to commit once the sink has the band
+	 */
+	static BandEvent start(int y, int rows, int width, int samples) {
+		BandEvent event = new BandEvent();
+		if (event.isEnabled()) {
+			event.y = y;
+			event.rows = rows;
+			event.width = width;
+			event.samples = samples;
+			event.primaryRays = (long) rows * width * samples * samples;
+		}
+		event.begin();
+		return event;
+	}
+}
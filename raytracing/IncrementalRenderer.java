@@ -0,0 +1,398 @@
+package raytracing;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import model.BoundingBox;
+import model.Model;
+import utils.Vec3;
+
+/**
+ * Re-renders only the pixels a scene edit can change.
+ * The renderer keeps the last image and, for every pixel, the path of its
+ * rays: the model hit by each primary and reflected ray, the hit points,
+ * and the model blocking each shadow ray. When models are changed through
+ * their setters, a pixel is traced again if one of its rays hit a changed
+ * model, was blocked by a moved one, or crosses the new bounds of a moved
+ * model; the other pixels keep their color. A color tweak retraces the
+ * pixels showing the model, a moved sphere those around its old and new
+ * positions and shadows.
+ * Moving the camera, changing the lights or replacing models renders the
+ * whole image again, as does moving an unbounded model such as a plane.
+ * The result is the image a full render of the edited scene gives.
+ *
+ * @author KepsyIn
+ */
+public class IncrementalRenderer {
+
+	private static final int DEFAULT_TILE_SIZE = 32;
+
+	// relative margin around the boxes of moved models, like the hierarchy boxes
+	private static final double BOX_MARGIN = 1e-5;
+
+	private static final byte GEOMETRY = 1;
+	private static final byte MATERIAL = 2;
+
+	/**
+	 * Ray paths of the pixels of a tile, in row order.
+	 */
+	private static final class Tile {
+		final int[] intStart;
+		final int[] floatStart;
+		int[] ints;
+		float[] floats;
+
+		Tile(int pixels) {
+			intStart = new int[pixels + 1];
+			floatStart = new int[pixels + 1];
+		}
+	}
+
+	private final Scene scene;
+	private final int width;
+	private final int height;
+	private final int samples;
+	private final TileRenderer tiles;
+	private final int tileSize;
+	private final int tilesX;
+	private final byte[] image;
+	private final Tile[] records;
+
+	// state of the scene at the last render, models is null before the first one
+	private Model[] models;
+	private float[] view;
+	private int lightCount;
+	private long revision;
+
+	// changes found for the current render
+	private byte[] changed;
+	private double[] boxes = new double[6 * 4];
+	private int boxCount;
+
+	private int retraced;
+
+	/**
+	 * Creates an incremental renderer working on the calling thread.
+	 *
+	 * @param scene The scene, edited between renders
+	 * @param width Image width
+	 * @param height Image height
+	 * @param samples Samples per dimension
+	 */
+	public IncrementalRenderer(Scene scene, int width, int height, int samples) {
+		this(scene, width, height, samples, null);
+	}
+
+	/**
+	 * Creates an incremental renderer tracing the tiles on a pool.
+	 *
+	 * @param scene The scene, edited between renders
+	 * @param width Image width
+	 * @param height Image height
+	 * @param samples Samples per dimension
+	 * @param tiles Renders the tiles in parallel, or null for the calling thread
+	 */
+	public IncrementalRenderer(Scene scene, int width, int height, int samples, TileRenderer tiles) {
+		this.scene = scene;
+		this.width = width;
+		this.height = height;
+		this.samples = samples;
+		this.tiles = tiles;
+		this.tileSize = tiles != null ? tiles.getTileSize() : DEFAULT_TILE_SIZE;
+		this.tilesX = (width + tileSize - 1) / tileSize;
+		this.image = new byte[3 * width * height];
+		this.records = new Tile[tilesX * ((height + tileSize - 1) / tileSize)];
+	}
+
+	/**
+	 * Brings the image up to date with the scene.
+	 * The first call renders every pixel, the next ones only the pixels
+	 * affected by the changes made since the previous call.
+	 *
+	 * @return The image, 3 bytes per pixel, updated in place by later calls
+	 */
+	public byte[] render() {
+		// Read first: a change made while rendering is seen by the next call
+		long latest = Model.getLatestRevision();
+		boolean full = findChanges();
+		if (!full && boxCount == 0 && !anyChanged()) {
+			retraced = 0;
+			revision = latest;
+			return image;
+		}
+
+		AtomicInteger count = new AtomicInteger();
+		TileRenderer.TileTask task = (x0, y0, x1, y1) -> count.addAndGet(update(x0, y0, x1, y1, full));
+		if (tiles != null) {
+			tiles.forEachTile(width, height, task);
+		} else {
+			for (int y = 0; y < height; y += tileSize) {
+				for (int x = 0; x < width; x += tileSize) {
+					task.run(x, y, Math.min(x + tileSize, width), Math.min(y + tileSize, height));
+				}
+			}
+		}
+		retraced = count.get();
+		revision = latest;
+		return image;
+	}
+
+	/**
+	 * Forgets the recorded paths, the next render traces every pixel.
+	 * Needed after changes made without the model setters.
+	 */
+	public void invalidate() {
+		models = null;
+	}
+
+	/**
+	 * Gets the number of pixels traced by the last render.
+	 *
+	 * @return The retraced pixel count
+	 */
+	public int getRetracedPixels() {
+		return retraced;
+	}
+
+	/**
+	 * Gets the image.
+	 *
+	 * @return The pixels of the last render, 3 bytes per pixel
+	 */
+	public byte[] getImage() {
+		return image;
+	}
+
+	/**
+	 * Compares the scene with the last render and collects the changed
+	 * models and the boxes of the moved ones.
+	 *
+	 * @return Whether the whole image must be rendered
+	 */
+	private boolean findChanges() {
+		List<Model> list = scene.getModelList();
+		float[] state = viewState();
+		boxCount = 0;
+		if (models == null || models.length != list.size() || !Arrays.equals(state, view)) {
+			return snapshot(list, state);
+		}
+		for (int i = 0; i < models.length; i++) {
+			if (models[i] != list.get(i)) {
+				return snapshot(list, state);
+			}
+		}
+
+		for (int i = 0; i < models.length; i++) {
+			Model m = models[i];
+			byte flags = 0;
+			if (m.getMaterialRevision() > revision) {
+				flags |= MATERIAL;
+			}
+			if (m.getRevision() > revision) {
+				flags |= GEOMETRY;
+				BoundingBox b = m.getBounds();
+				if (b == null || b.isEmpty()) {
+					// A moved plane may touch any pixel
+					return snapshot(list, state);
+				}
+				addBox(b);
+			}
+			changed[i] = flags;
+		}
+		return false;
+	}
+
+	private boolean snapshot(List<Model> list, float[] state) {
+		models = list.toArray(new Model[0]);
+		view = state;
+		lightCount = scene.getLightSources().size();
+		changed = new byte[models.length];
+		boxCount = 0;
+		return true;
+	}
+
+	private boolean anyChanged() {
+		for (byte flags : changed) {
+			if (flags != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Camera and lights, any difference renders the whole image.
+	 */
+	private float[] viewState() {
+		List<LightSource> lights = scene.getLightSources();
+		float[] state = new float[5 + 9 * lights.size()];
+		Vec3 viewer = scene.getViewerPosition();
+		state[0] = viewer.x;
+		state[1] = viewer.y;
+		state[2] = viewer.z;
+		state[3] = scene.getDistance();
+		state[4] = scene.getDepth();
+		int o = 5;
+		for (LightSource l : lights) {
+			o = put(state, o, l.position);
+			o = put(state, o, l.color);
+			o = put(state, o, l.specular);
+		}
+		return state;
+	}
+
+	private static int put(float[] state, int o, Vec3 v) {
+		state[o] = v.x;
+		state[o + 1] = v.y;
+		state[o + 2] = v.z;
+		return o + 3;
+	}
+
+	private void addBox(BoundingBox b) {
+		if (6 * (boxCount + 1) > boxes.length) {
+			boxes = Arrays.copyOf(boxes, 2 * boxes.length);
+		}
+		double margin = BOX_MARGIN * (1 + Math.max(Math.max(Math.abs(b.minX), Math.abs(b.maxX)),
+				Math.max(Math.max(Math.abs(b.minY), Math.abs(b.maxY)), Math.max(Math.abs(b.minZ), Math.abs(b.maxZ)))));
+		int o = 6 * boxCount++;
+		boxes[o] = b.minX - margin;
+		boxes[o + 1] = b.minY - margin;
+		boxes[o + 2] = b.minZ - margin;
+		boxes[o + 3] = b.maxX + margin;
+		boxes[o + 4] = b.maxY + margin;
+		boxes[o + 5] = b.maxZ + margin;
+	}
+
+	/**
+	 * Retraces the affected pixels of a tile and rebuilds its paths.
+	 *
+	 * @return The number of pixels traced
+	 */
+	private int update(int x0, int y0, int x1, int y1, boolean full) {
+		int index = (y0 / tileSize) * tilesX + x0 / tileSize;
+		Tile old = full ? null : records[index];
+		int tileWidth = x1 - x0;
+		int pixels = tileWidth * (y1 - y0);
+
+		boolean[] dirty = new boolean[pixels];
+		int count = 0;
+		for (int p = 0; p < pixels; p++) {
+			if (old == null || isAffected(old, p)) {
+				dirty[p] = true;
+				count++;
+			}
+		}
+		if (count == 0) {
+			return 0;
+		}
+
+		TraceContext ctx = TraceContext.current();
+		Vec3 color = ctx.pixelColor;
+		long start = RenderMetrics.ENABLED ? System.nanoTime() : 0;
+		Tile tile = new Tile(pixels);
+		PathRecorder recorder = old != null
+				? new PathRecorder(old.ints.length, old.floats.length)
+				: new PathRecorder(8 * pixels, 16 * pixels);
+		ctx.recorder = recorder;
+		try {
+			for (int p = 0; p < pixels; p++) {
+				tile.intStart[p] = recorder.intCount;
+				tile.floatStart[p] = recorder.floatCount;
+				if (dirty[p]) {
+					int xe = x0 + p % tileWidth, ye = y0 + p / tileWidth;
+					scene.pixelColor(xe, ye, width, height, samples, ctx, color);
+					int o = 3 * (ye * width + xe);
+					image[o] = Scene.toByte(color.x);
+					image[o + 1] = Scene.toByte(color.y);
+					image[o + 2] = Scene.toByte(color.z);
+				} else {
+					recorder.append(old.ints, old.intStart[p], old.intStart[p + 1], old.floats, old.floatStart[p], old.floatStart[p + 1]);
+				}
+			}
+		} finally {
+			ctx.recorder = null;
+		}
+		tile.intStart[pixels] = recorder.intCount;
+		tile.floatStart[pixels] = recorder.floatCount;
+		tile.ints = recorder.ints;
+		tile.floats = recorder.floats;
+		records[index] = tile;
+
+		if (RenderMetrics.ENABLED) {
+			RenderMetrics.get().recordTile(ctx, count, System.nanoTime() - start);
+		}
+		return count;
+	}
+
+	/**
+	 * Walks the recorded path of a pixel against the changes.
+	 */
+	private boolean isAffected(Tile tile, int p) {
+		int[] ints = tile.ints;
+		float[] floats = tile.floats;
+		int f = tile.floatStart[p];
+		float ox = 0, oy = 0, oz = 0;
+		for (int i = tile.intStart[p], end = tile.intStart[p + 1]; i < end; ) {
+			int code = ints[i++];
+			float x = floats[f++], y = floats[f++], z = floats[f++];
+			if (code == PathRecorder.START) {
+				ox = x;
+				oy = y;
+				oz = z;
+			} else if (code == PathRecorder.MISS) {
+				// The ray left the scene, a moved model may now cross it
+				if (crosses(ox, oy, oz, x, y, z, Double.POSITIVE_INFINITY)) {
+					return true;
+				}
+			} else {
+				if (changed[code] != 0 || crosses(ox, oy, oz, x - ox, y - oy, z - oz, 1)) {
+					return true;
+				}
+				for (int l = 0; l < lightCount; l++) {
+					int occluder = ints[i++];
+					if (occluder != PathRecorder.NONE) {
+						if ((changed[occluder] & GEOMETRY) != 0) {
+							return true;
+						}
+					} else {
+						int o = 5 + 9 * l;
+						if (crosses(x, y, z, view[o] - x, view[o + 1] - y, view[o + 2] - z, 1)) {
+							return true;
+						}
+					}
+				}
+				ox = x;
+				oy = y;
+				oz = z;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Tests the segment origin + t * direction, 0 &lt;= t &lt;= tMax,
+	 * against the boxes of the moved models (slab test).
+	 */
+	private boolean crosses(double ox, double oy, double oz, double dx, double dy, double dz, double tMax) {
+		double ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+		for (int o = 0; o < 6 * boxCount; o += 6) {
+			double t0 = 0, t1 = tMax;
+			double a = (boxes[o] - ox) * ix, b = (boxes[o + 3] - ox) * ix;
+			t0 = Math.max(t0, Math.min(a, b));
+			t1 = Math.min(t1, Math.max(a, b));
+			a = (boxes[o + 1] - oy) * iy;
+			b = (boxes[o + 4] - oy) * iy;
+			t0 = Math.max(t0, Math.min(a, b));
+			t1 = Math.min(t1, Math.max(a, b));
+			a = (boxes[o + 2] - oz) * iz;
+			b = (boxes[o + 5] - oz) * iz;
+			t0 = Math.max(t0, Math.min(a, b));
+			t1 = Math.min(t1, Math.max(a, b));
+			// NaN when the segment runs along a face, counted as crossing
+			if (!(t0 > t1)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
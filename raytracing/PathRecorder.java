@@ -0,0 +1,89 @@
+package raytracing;
+
+import java.util.Arrays;
+import utils.Vec3;
+
+/**
+ * Records the paths of the rays traced for a group of pixels: for each
+ * primary ray its origin, then every hit point with the model hit and the
+ * model blocking each shadow ray, and the direction of the ray leaving
+ * the scene if any. An {@link IncrementalRenderer} reads the records to
+ * find the pixels a model change can affect.
+ * Codes go to an int stream, coordinates to a float stream:
+ * <pre>
+ * start   START            origin x, y, z
+ * hit     model            point x, y, z
+ * shadow  model or NONE    (one per light, after their hit)
+ * miss    MISS             direction x, y, z
+ * </pre>
+ *
+ * @author KepsyIn
+ */
+final class PathRecorder {
+
+	/**
+	 * Shadow ray reaching its light.
+	 */
+	static final int NONE = -1;
+	static final int MISS = -2;
+	static final int START = -3;
+
+	int[] ints;
+	float[] floats;
+	int intCount;
+	int floatCount;
+
+	PathRecorder(int intCapacity, int floatCapacity) {
+		ints = new int[Math.max(16, intCapacity)];
+		floats = new float[Math.max(16, floatCapacity)];
+	}
+
+	void start(Vec3 origin) {
+		add(START, origin.x, origin.y, origin.z);
+	}
+
+	void hit(int model, Vec3 point) {
+		add(model, point.x, point.y, point.z);
+	}
+
+	void shadow(int occluder) {
+		if (intCount == ints.length) {
+			ints = Arrays.copyOf(ints, intCount + (intCount >> 1));
+		}
+		ints[intCount++] = occluder;
+	}
+
+	void miss(Vec3 direction) {
+		add(MISS, direction.x, direction.y, direction.z);
+	}
+
+	/**
+	 * Copies the records of a pixel kept from an earlier render.
+	 */
+	void append(int[] fromInts, int intStart, int intEnd, float[] fromFloats, int floatStart, int floatEnd) {
+		int n = intEnd - intStart, m = floatEnd - floatStart;
+		if (intCount + n > ints.length) {
+			ints = Arrays.copyOf(ints, Math.max(intCount + n, intCount + (intCount >> 1)));
+		}
+		if (floatCount + m > floats.length) {
+			floats = Arrays.copyOf(floats, Math.max(floatCount + m, floatCount + (floatCount >> 1)));
+		}
+		System.arraycopy(fromInts, intStart, ints, intCount, n);
+		System.arraycopy(fromFloats, floatStart, floats, floatCount, m);
+		intCount += n;
+		floatCount += m;
+	}
+
+	private void add(int code, float x, float y, float z) {
+		if (intCount == ints.length) {
+			ints = Arrays.copyOf(ints, intCount + (intCount >> 1));
+		}
+		if (floatCount + 3 > floats.length) {
+			floats = Arrays.copyOf(floats, floatCount + (floatCount >> 1));
+		}
+		ints[intCount++] = code;
+		floats[floatCount++] = x;
+		floats[floatCount++] = y;
+		floats[floatCount++] = z;
+	}
+}
@@ -0,0 +1,353 @@
+package raytracing;
+
+import utils.Vec3;
+
+/**
+ * Renders a scene progressively, so a usable image is available long
+ * before the frame is complete.
+ * Coarse passes first trace one ray per 8x8, 4x4 then 2x2 block and fill
+ * the whole block with it. Refinement passes then add one sample per
+ * pixel to an accumulation buffer, the first one through the pixel
+ * centers (same image as {@link Scene#draw(int, int)}), the next ones
+ * jittered along a shifted Halton (2, 3) sequence.
+ * Work is done by bands of rows; between two bands the renderer checks
+ * the budget and the cancel flag, and the band is published to the
+ * snapshots, so a snapshot never shows a half-accumulated row.
+ * Calling {@link #render(long, int)} or {@link #start(long, int)} again
+ * resumes where the previous budget stopped or the render was cancelled.
+ *
+ * @author KepsyIn
+ */
+public class ProgressiveRenderer {
+
+	public static final int COARSE_BLOCK = 8;
+
+	private static final int BAND_ROWS = COARSE_BLOCK;
+
+	private final Scene scene;
+	private final int width;
+	private final int height;
+	private final TileRenderer tiles;
+
+	// guarded by this
+	private final float[] coarse;
+	private final float[] accumulation;
+	private final int[] rowSamples;
+	private int passes;
+
+	private volatile boolean cancelled;
+
+	private Thread worker;
+	private RuntimeException failure;
+
+	/**
+	 * Creates a progressive renderer working on the calling thread.
+	 *
+	 * @param scene The scene to render
+	 * @param width Image width
+	 * @param height Image height
+	 */
+	public ProgressiveRenderer(Scene scene, int width, int height) {
+		this(scene, width, height, null);
+	}
+
+	/**
+	 * Creates a progressive renderer.
+	 *
+	 * @param scene The scene to render
+	 * @param width Image width
+	 * @param height Image height
+	 * @param tiles Renders the tiles of each band in parallel, or null to
+	 *              render on a single thread
+	 */
+	public ProgressiveRenderer(Scene scene, int width, int height, TileRenderer tiles) {
+		this.scene = scene;
+		this.width = width;
+		this.height = height;
+		this.tiles = tiles;
+		this.coarse = new float[3 * width * height];
+		this.accumulation = new float[3 * width * height];
+		this.rowSamples = new int[height];
+	}
+
+	/**
+	 * Renders until a budget is spent and returns the best image produced.
+	 * The first coarse pass always completes, whatever the time budget.
+	 *
+	 * @param maxMillis Wall-clock budget, 0 or less for none
+	 * @param maxSamples Samples per pixel to reach
+	 * @return The image
+	 */
+	public byte[] render(long maxMillis, int maxSamples) {
+		cancelled = false;
+		return run(maxMillis, maxSamples);
+	}
+
+	private byte[] run(long maxMillis, int maxSamples) {
+		long deadline = maxMillis > 0 ? System.nanoTime() + maxMillis * 1_000_000L : Long.MAX_VALUE;
+
+		boolean refined;
+		synchronized (this) {
+			refined = rowSamples.length > 0 && rowSamples[0] > 0;
+		}
+		for (int block = COARSE_BLOCK; block > 1 && !refined && !cancelled; block /= 2) {
+			for (int y = 0; y < height && !cancelled; y += BAND_ROWS) {
+				coarseBand(block, y, Math.min(y + BAND_ROWS, height));
+				if (block < COARSE_BLOCK && System.nanoTime() > deadline) {
+					return snapshot();
+				}
+			}
+		}
+
+		for (int pass = getSamplesPerPixel(); pass < maxSamples && !cancelled; pass++) {
+			for (int y = 0; y < height && !cancelled; y += BAND_ROWS) {
+				if (System.nanoTime() > deadline) {
+					return snapshot();
+				}
+				if (getRowSamples(y) <= pass) {
+					refineBand(pass, y, Math.min(y + BAND_ROWS, height));
+				}
+			}
+			if (!cancelled) {
+				synchronized (this) {
+					passes = pass + 1;
+				}
+			}
+		}
+		return snapshot();
+	}
+
+	/**
+	 * Starts rendering on a background thread.
+	 * Poll {@link #snapshot()} for the current image, {@link #cancel()} to
+	 * stop early and {@link #await()} for the final image. Once the
+	 * previous render is over, a new one may be started.
+	 *
+	 * @param maxMillis Wall-clock budget, 0 or less for none
+	 * @param maxSamples Samples per pixel to reach
+	 * @throws IllegalStateException If the previous render is still running
+	 */
+	public synchronized void start(long maxMillis, int maxSamples) {
+		if (worker != null && worker.isAlive()) {
+			throw new IllegalStateException("progressive render still running");
+		}
+		// Cleared here rather than by the worker, so a cancel() following
+		// start() is not lost
+		cancelled = false;
+		failure = null;
+		worker = new Thread(() -> {
+			try {
+				run(maxMillis, maxSamples);
+			} catch (RuntimeException e) {
+				synchronized (this) {
+					failure = e;
+				}
+			}
+		}, "progressive-render");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Waits for a render started with {@link #start(long, int)}.
+	 *
+	 * @return The final image
+	 * @throws InterruptedException If the calling thread is interrupted
+	 */
+	public byte[] await() throws InterruptedException {
+		Thread thread;
+		synchronized (this) {
+			thread = worker;
+		}
+		if (thread != null) {
+			thread.join();
+		}
+		synchronized (this) {
+			if (failure != null) {
+				throw failure;
+			}
+		}
+		return snapshot();
+	}
+
+	/**
+	 * Stops the current render at the end of the current band.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Tells whether the current or last render was cancelled.
+	 *
+	 * @return True if {@link #cancel()} was called since the render began
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Tells whether the last render started with {@link #start(long, int)}
+	 * is over.
+	 *
+	 * @return True once the background thread has returned
+	 */
+	public synchronized boolean isDone() {
+		return worker != null && !worker.isAlive();
+	}
+
+	/**
+	 * Gets the number of completed refinement passes.
+	 *
+	 * @return The samples every pixel has received
+	 */
+	public synchronized int getSamplesPerPixel() {
+		return passes;
+	}
+
+	private synchronized int getRowSamples(int y) {
+		return rowSamples[y];
+	}
+
+	/**
+	 * Builds the current image.
+	 * Rows which have received refinement samples show their average, the
+	 * others show the coarse pass (black before it reaches them).
+	 *
+	 * @return A new image buffer
+	 */
+	public synchronized byte[] snapshot() {
+		byte[] image = new byte[3 * width * height];
+		for (int y = 0; y < height; y++) {
+			int samples = rowSamples[y];
+			float[] source = samples > 0 ? accumulation : coarse;
+			float coeff = samples > 0 ? 1.0f / samples : 1;
+			for (int i = 3 * y * width; i < 3 * (y + 1) * width; i++) {
+				image[i] = Scene.toByte(source[i] * coeff);
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Traces one ray per block in the rows [y0, y1[ and fills the blocks.
+	 */
+	private void coarseBand(int block, int y0, int y1) {
+		float[] band = new float[3 * width * (y1 - y0)];
+		forEachTile(y0, y1, (x0, ty0, x1, ty1) -> {
+			TraceContext ctx = TraceContext.current();
+			Vec3 color = ctx.pixelColor;
+			long start = RenderMetrics.ENABLED ? System.nanoTime() : 0;
+			for (int by = ty0 - ty0 % block; by < ty1; by += block) {
+				for (int bx = x0 - x0 % block; bx < x1; bx += block) {
+					int xe = Math.min(bx + block / 2, width - 1);
+					int ye = Math.min(by + block / 2, height - 1);
+					scene.sampleColor(xe, ye, 0, 0, width, height, ctx, color);
+
+					for (int y = Math.max(by, ty0); y < Math.min(by + block, ty1); y++) {
+						for (int x = Math.max(bx, x0); x < Math.min(bx + block, x1); x++) {
+							int index = 3 * ((y - y0) * width + x);
+							band[index] = color.x;
+							band[index + 1] = color.y;
+							band[index + 2] = color.z;
+						}
+					}
+				}
+			}
+
+			if (RenderMetrics.ENABLED) {
+				RenderMetrics.get().recordTile(ctx, (long) (x1 - x0) * (ty1 - ty0), System.nanoTime() - start);
+			}
+		});
+
+		synchronized (this) {
+			System.arraycopy(band, 0, coarse, 3 * y0 * width, band.length);
+		}
+	}
+
+	/**
+	 * Traces the sample of a refinement pass for the rows [y0, y1[ and adds
+	 * it to the accumulation buffer.
+	 */
+	private void refineBand(int pass, int y0, int y1) {
+		float dx = jitter(pass, 2);
+		float dy = jitter(pass, 3);
+		float[] band = new float[3 * width * (y1 - y0)];
+		forEachTile(y0, y1, (x0, ty0, x1, ty1) -> {
+			TraceContext ctx = TraceContext.current();
+			Vec3 color = ctx.pixelColor;
+			long start = RenderMetrics.ENABLED ? System.nanoTime() : 0;
+			for (int ye = ty0; ye < ty1; ye++) {
+				for (int xe = x0; xe < x1; xe++) {
+					int index = 3 * ((ye - y0) * width + xe);
+					scene.sampleColor(xe, ye, dx, dy, width, height, ctx, color);
+					band[index] = color.x;
+					band[index + 1] = color.y;
+					band[index + 2] = color.z;
+				}
+			}
+
+			if (RenderMetrics.ENABLED) {
+				RenderMetrics.get().recordTile(ctx, (long) (x1 - x0) * (ty1 - ty0), System.nanoTime() - start);
+			}
+		});
+
+		synchronized (this) {
+			int offset = 3 * y0 * width;
+			for (int i = 0; i < band.length; i++) {
+				accumulation[offset + i] += band[i];
+			}
+			for (int y = y0; y < y1; y++) {
+				rowSamples[y]++;
+			}
+		}
+	}
+
+	private void forEachTile(int y0, int y1, TileRenderer.TileTask task) {
+		if (tiles != null) {
+			tiles.forEachTile(0, y0, width, y1, task);
+		} else {
+			task.run(0, y0, width, y1);
+		}
+	}
+
+	/**
+	 * Gets the offset of a pass from the pixel center: the Halton sequence
+	 * shifted by half a pixel, so pass 0 goes through the center.
+	 *
+	 * @param pass The pass index
+	 * @param base The Halton base
+	 * @return The offset, in [-0.5, 0.5[
+	 */
+	static float jitter(int pass, int base) {
+		float inverse = 0;
+		float digit = 1.0f / base;
+		for (int i = pass; i > 0; i /= base) {
+			inverse += (i % base) * digit;
+			digit /= base;
+		}
+		inverse += 0.5f;
+		if (inverse >= 1) {
+			inverse -= 1;
+		}
+		return inverse - 0.5f;
+	}
+
+	/**
+	 * Gets the image width.
+	 *
+	 * @return The width in pixels
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Gets the image height.
+	 *
+	 * @return The height in pixels
+	 */
+	public int getHeight() {
+		return height;
+	}
+}
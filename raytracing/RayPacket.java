@@ -0,0 +1,109 @@
+package raytracing;
+
+import model.HitRecord;
+import utils.Vec3;
+
+/**
+ * Group of coherent rays sharing one origin, traced through the hierarchy
+ * together: the primary rays of a block of neighbouring pixels, or the
+ * anti-aliasing samples of a pixel.
+ * Besides the rays, a packet keeps the interval of the inverse directions
+ * on each axis, used to cull a node for every ray at once.
+ * A packet belongs to a {@link TraceContext} and is reused from block to
+ * block.
+ *
+ * @author KepsyIn
+ */
+final class RayPacket {
+
+	/**
+	 * Largest number of rays, a block of 4x4 primary rays.
+	 */
+	static final int MAX_SIZE = 16;
+
+	final Vec3 origin = new Vec3();
+	final Vec3[] directions = new Vec3[MAX_SIZE];
+	final double[] invX = new double[MAX_SIZE];
+	final double[] invY = new double[MAX_SIZE];
+	final double[] invZ = new double[MAX_SIZE];
+
+	final HitRecord[] hits = new HitRecord[MAX_SIZE];
+	final Vec3[] colors = new Vec3[MAX_SIZE];
+
+	// pixel of the block each ray samples
+	final int[] pixels = new int[MAX_SIZE];
+
+	int size;
+
+	double minInvX, maxInvX;
+	double minInvY, maxInvY;
+	double minInvZ, maxInvZ;
+
+	RayPacket() {
+		for (int i = 0; i < MAX_SIZE; i++) {
+			directions[i] = new Vec3();
+			hits[i] = new HitRecord();
+			colors[i] = new Vec3();
+		}
+	}
+
+	/**
+	 * Empties the packet.
+	 *
+	 * @param origin Origin of the next rays
+	 */
+	void clear(Vec3 origin) {
+		this.origin.set(origin);
+		size = 0;
+		minInvX = minInvY = minInvZ = Double.POSITIVE_INFINITY;
+		maxInvX = maxInvY = maxInvZ = Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Adds a ray from the packet origin.
+	 *
+	 * @param x Ray direction
+	 * @param y Ray direction
+	 * @param z Ray direction
+	 * @param pixel Pixel sampled by the ray
+	 */
+	void add(float x, float y, float z, int pixel) {
+		int k = size++;
+		directions[k].set(x, y, z);
+		pixels[k] = pixel;
+
+		double ix = 1.0 / x, iy = 1.0 / y, iz = 1.0 / z;
+		invX[k] = ix;
+		invY[k] = iy;
+		invZ[k] = iz;
+		minInvX = Math.min(minInvX, ix);
+		maxInvX = Math.max(maxInvX, ix);
+		minInvY = Math.min(minInvY, iy);
+		maxInvY = Math.max(maxInvY, iy);
+		minInvZ = Math.min(minInvZ, iz);
+		maxInvZ = Math.max(maxInvZ, iz);
+	}
+
+	/**
+	 * Checks whether the packet holds its largest number of rays.
+	 *
+	 * @return true if no ray can be added
+	 */
+	boolean isFull() {
+		return size == MAX_SIZE;
+	}
+
+	/**
+	 * Gets the largest current hit distance of the rays, the farthest a
+	 * node may be and still matter to the packet.
+	 *
+	 * @return The largest hit distance
+	 */
+	double farthest() {
+		double far = hits[0].lambda;
+		for (int k = 1; k < size; k++) {
+			far = Math.max(far, hits[k].lambda);
+		}
+		return far;
+	}
+}
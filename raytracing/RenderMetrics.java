@@ -0,0 +1,212 @@
+package raytracing;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import utils.LatencyHistogram;
+
+/**
+ * Ray-tracing throughput counters.
+ * While tracing, every thread counts its rays and intersection tests in
+ * plain fields of its {@link TraceContext}; the counts are added to the
+ * shared totals once per tile, together with the tile duration, so the
+ * hot loops never touch shared memory.
+ * Instrumentation is controlled by the {@value #PROPERTY} system property
+ * (on by default). The flag is a static constant, so with
+ * -Draytracing.metrics=false the JIT removes the counting code entirely.
+ *
+ * @author KepsyIn
+ */
+public final class RenderMetrics implements RenderMetricsMXBean {
+
+	public static final String PROPERTY = "raytracing.metrics";
+
+	public static final String OBJECT_NAME = "raytracing:type=RenderMetrics";
+
+	public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(PROPERTY, "true"));
+
+	private static final double NANOS_PER_MILLI = 1E6;
+
+	private static final RenderMetrics INSTANCE = new RenderMetrics();
+
+	private final LongAdder primaryRays = new LongAdder();
+	private final LongAdder shadowRays = new LongAdder();
+	private final LongAdder reflectionRays = new LongAdder();
+	private final LongAdder intersectionTests = new LongAdder();
+	private final LongAdder tiles = new LongAdder();
+	private final LongAdder pixels = new LongAdder();
+	private final LatencyHistogram tileLatency = new LatencyHistogram();
+
+	private volatile long windowStart = System.nanoTime();
+
+	private RenderMetrics() {
+	}
+
+	/**
+	 * Gets the process-wide metrics.
+	 *
+	 * @return The metrics
+	 */
+	public static RenderMetrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server.
+	 * Does nothing if they are already registered.
+	 *
+	 * @throws JMException If the registration fails
+	 */
+	public static void registerMBean() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		synchronized (RenderMetrics.class) {
+			if (!server.isRegistered(name)) {
+				server.registerMBean(INSTANCE, name);
+			}
+		}
+	}
+
+	/**
+	 * Adds the counts of a thread to the totals and records a tile.
+	 * The counts of the context are cleared.
+	 *
+	 * @param ctx Context of the thread which rendered the tile
+	 * @param tilePixels Number of pixels of the tile
+	 * @param nanos Time spent on the tile
+	 */
+	void recordTile(TraceContext ctx, long tilePixels, long nanos) {
+		flush(ctx);
+		tiles.increment();
+		pixels.add(tilePixels);
+		tileLatency.record(nanos);
+	}
+
+	/**
+	 * Adds the counts of a thread to the totals without recording a tile.
+	 * The counts of the context are cleared.
+	 *
+	 * @param ctx Context of the calling thread
+	 */
+	public void flush(TraceContext ctx) {
+		primaryRays.add(ctx.primaryRays);
+		shadowRays.add(ctx.shadowRays);
+		reflectionRays.add(ctx.reflectionRays);
+		intersectionTests.add(ctx.intersectionTests);
+		ctx.primaryRays = 0;
+		ctx.shadowRays = 0;
+		ctx.reflectionRays = 0;
+		ctx.intersectionTests = 0;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return ENABLED;
+	}
+
+	@Override
+	public long getPrimaryRays() {
+		return primaryRays.sum();
+	}
+
+	@Override
+	public long getShadowRays() {
+		return shadowRays.sum();
+	}
+
+	@Override
+	public long getReflectionRays() {
+		return reflectionRays.sum();
+	}
+
+	@Override
+	public long getRays() {
+		return getPrimaryRays() + getShadowRays() + getReflectionRays();
+	}
+
+	@Override
+	public long getIntersectionTests() {
+		return intersectionTests.sum();
+	}
+
+	@Override
+	public double getIntersectionTestsPerRay() {
+		long rays = getRays();
+		return rays == 0 ? 0 : (double) getIntersectionTests() / rays;
+	}
+
+	/**
+	 * Gets the rays traced per second of wall-clock time since the last
+	 * reset (or the start of the process).
+	 */
+	@Override
+	public double getRaysPerSecond() {
+		long elapsed = System.nanoTime() - windowStart;
+		return elapsed <= 0 ? 0 : getRays() * 1E9 / elapsed;
+	}
+
+	@Override
+	public long getTiles() {
+		return tiles.sum();
+	}
+
+	@Override
+	public long getPixels() {
+		return pixels.sum();
+	}
+
+	/**
+	 * Gets the histogram of tile durations.
+	 *
+	 * @return The histogram, in nanoseconds
+	 */
+	public LatencyHistogram getTileLatency() {
+		return tileLatency;
+	}
+
+	@Override
+	public double getTileLatencyMeanMillis() {
+		return tileLatency.getMean() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getTileLatencyP50Millis() {
+		return tileLatency.getPercentile(50) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getTileLatencyP90Millis() {
+		return tileLatency.getPercentile(90) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getTileLatencyP99Millis() {
+		return tileLatency.getPercentile(99) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getTileLatencyMaxMillis() {
+		return tileLatency.getMax() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public void reset() {
+		primaryRays.reset();
+		shadowRays.reset();
+		reflectionRays.reset();
+		intersectionTests.reset();
+		tiles.reset();
+		pixels.reset();
+		tileLatency.reset();
+		windowStart = System.nanoTime();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d rays (%d primary, %d shadow, %d reflection), %.2f tests/ray, %.0f rays/s, %d tiles, tile p50 %.2f ms p99 %.2f ms",
+				getRays(), getPrimaryRays(), getShadowRays(), getReflectionRays(), getIntersectionTestsPerRay(), getRaysPerSecond(),
+				getTiles(), getTileLatencyP50Millis(), getTileLatencyP99Millis());
+	}
+}
@@ -0,0 +1,45 @@
+package raytracing;
+
+/**
+ * JMX view of the render metrics, registered as
+ * {@value RenderMetrics#OBJECT_NAME}.
+ * 
+ * @author KepsyIn
+ */
+public interface RenderMetricsMXBean {
+	
+	boolean isEnabled();
+	
+	long getPrimaryRays();
+	
+	long getShadowRays();
+	
+	long getReflectionRays();
+	
+	long getRays();
+	
+	long getIntersectionTests();
+	
+	double getIntersectionTestsPerRay();
+	
+	double getRaysPerSecond();
+	
+	long getTiles();
+	
+	long getPixels();
+	
+	double getTileLatencyMeanMillis();
+	
+	double getTileLatencyP50Millis();
+	
+	double getTileLatencyP90Millis();
+	
+	double getTileLatencyP99Millis();
+	
+	double getTileLatencyMaxMillis();
+	
+	/**
+	 * Clears every counter and starts a new rate window.
+	 */
+	void reset();
+}
@@ -1,8 +1,16 @@
 package raytracing;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import model.HitRecord;
 import model.Model;
+import model.ModelObserver;
+import model.Sphere;
+import model.SphereSet;
+import render.FrameSink;
 import utils.Vec3;
 
 /**
@@ -19,16 +27,34 @@ public class Scene {
 	
 	private Vec3 viewerPosition;
 	
+	private float distance = DEFAULT_DISTANCE;
+	
+	private int depth = DEFAULT_DEPTH;
+	
+	private volatile BVH accelerationStructure;
+	
+	// set when a model of the hierarchy moves, cleared when it is refitted
+	private volatile boolean modelsMoved;
+	
+	// held here, the models only keep a weak reference to it
+	private final ModelObserver moveObserver = model -> modelsMoved = true;
+	
+	private boolean packetTracing = true;
+	
 	public static final Vec3 DEFAULT_VIEWER_POS = new Vec3(0,0,0);
 	
 	public static final int DEFAULT_SIZE = 100;
 	public static final int DEFAULT_DISTANCE = 1;
+	public static final int DEFAULT_DEPTH = 5;
 	
 	public static final double EPSILON = 1E-4;
 	
 	private static final double LAMBDA_MAX = Double.MAX_VALUE;
 	
 	private static final LightSource DEFAULT_LIGHT = new LightSource(); 
+	
+	// side of a block of primary rays traced as one packet
+	private static final int PACKET_SIDE = 4;
 
 	/**
 	 * Creates an empty scene.
@@ -65,88 +91,122 @@ public class Scene {
 	 * @return [R, G, B] color values in range [0, 1]
 	 */
 	public float[] findColor(Vec3 rayStart, Vec3 rayDirection, int niv) {
+		TraceContext ctx = TraceContext.current();
+		Vec3 c = findColor(rayStart, rayDirection, niv, ctx, new Vec3());
+		return new float[]{c.x, c.y, c.z};
+	}
+	
+	/**
+	 * Computes the color of a pixel by ray tracing without allocating.
+	 * All temporary vectors come from the thread context.
+	 * 
+	 * @param rayStart Ray starting point
+	 * @param rayDirection Ray direction
+	 * @param niv Recursion level for reflections
+	 * @param ctx Scratch state of the calling thread
+	 * @param color Receives the color, values in range [0, 1]
+	 * @return The color vector
+	 */
+	public Vec3 findColor(Vec3 rayStart, Vec3 rayDirection, int niv, TraceContext ctx, Vec3 color) {
+		BVH bvh = getAccelerationStructure();
+		ctx.ensureDepth(niv);
+		if (ctx.recorder != null) {
+			ctx.recorder.start(rayStart);
+		}
+		trace(bvh, rayStart, rayDirection, niv, ctx, ctx.stack(bvh), color);
+		return color;
+	}
+	
+	private void trace(BVH bvh, Vec3 rayStart, Vec3 rayDirection, int niv, TraceContext ctx, int[] stack, Vec3 c) {
 		
-	    double lambdaMin = LAMBDA_MAX;
-	    Model objmin = null;
-	    
+	    HitRecord hit = ctx.hit;
+	    c.reset(); // Initialiser à 0
 
 	    // Trouver l'objet d'intersection le plus proche
-	    for (Model m : modelList) {
-	        Vec3 tempStart = new Vec3(rayStart);
-	        Vec3 tempDirection = new Vec3(rayDirection);
-	        double lambda = m.getIntersection(tempStart, tempDirection);
-
-	        if (lambda < lambdaMin && lambda > EPSILON ) {
-	            lambdaMin = lambda;
-	            objmin = m;
-	        }
+	    if (!bvh.intersect(rayStart, rayDirection, EPSILON, LAMBDA_MAX, hit, stack, ctx)) {
+	    	if (ctx.recorder != null) {
+	    		ctx.recorder.miss(rayDirection);
+	    	}
+	    	return;
 	    }
+	    
+	    shade(bvh, hit, rayStart, rayDirection, niv, ctx, stack, c);
+	}
+	
+	/**
+	 * Adds the lighting and the reflections of a ray hit to a color.
+	 * 
+	 * @param bvh Acceleration structure of the scene
+	 * @param hit Closest hit of the ray, read before any other ray is traced
+	 * @param rayStart Ray starting point
+	 * @param rayDirection Ray direction
+	 * @param niv Recursion level for reflections
+	 * @param ctx Scratch state of the calling thread
+	 * @param stack Traversal stack
+	 * @param c Receives the color, reset by the caller
+	 */
+	private void shade(BVH bvh, HitRecord hit, Vec3 rayStart, Vec3 rayDirection, int niv, TraceContext ctx, int[] stack, Vec3 c) {
+	    double lambdaMin = hit.lambda;
+	    Model objmin = hit.model;
+	    int primitive = hit.primitive;
+	    
+	    Vec3 P = ctx.point[niv].set(rayStart).addScale((float) lambdaMin, rayDirection);
+	    PathRecorder recorder = ctx.recorder;
+	    if (recorder != null) {
+	    	recorder.hit(hit.order, P);
+	    }
+	    Vec3 normal = objmin.getNormal(P, primitive, ctx.normal[niv]);
+	    Vec3 term = ctx.term;
 
-	    // Si un objet d'intersection est trouvé
-	    if (objmin != null) {
-	    	
-	    	Vec3 c = new Vec3(); // Initialiser à 0
+	    // Vérifier chaque source de lumière
+	    for (int i = 0; i < lightSources.size(); i++) {
+	    	LightSource src = lightSources.get(i);
 	    	
-	        Vec3 P = new Vec3(rayStart).add(new Vec3(rayDirection).scale((float) lambdaMin));
-	        Vec3 normal = objmin.getNormal(P);
-
-	        // Vérifier chaque source de lumière
-	        for (LightSource src : lightSources) {
-	        	
-	            Vec3 lightDir = new Vec3(src.position).sub(P);
-	            boolean visible = true;
-	            
-	            Vec3 shadowRayStart = new Vec3(P);
-                Vec3 shadowRayDir = new Vec3(lightDir);
-                
-	            // Vérifier les ombres pour chaque objet
-	            for (Model m : modelList) {
-	            	
-                    double lambdaOmbrage = m.getIntersection(shadowRayStart, shadowRayDir);
-
-                    if (lambdaOmbrage > EPSILON && lambdaOmbrage < 1 ) {
-                        visible = false;
-                    }
-	                
-	            }
-
-	            if (visible) {
-	            	
-	                Vec3 nlightDir = new Vec3(lightDir).normalize();
-	                
-	                float nDoth = Math.max(new Vec3(normal).dotProduct(nlightDir), 0);
-	                
-	                Vec3 diffuseColor = new Vec3(src.color).scale(objmin.getColor().x, objmin.getColor().y, objmin.getColor().z).scale(nDoth);
-	                
-	                c = new Vec3(c).add(diffuseColor);
-	                
-	                Vec3 specularColor = new Vec3(src.specular).scale(objmin.getSpecular().x, objmin.getSpecular().y, objmin.getSpecular().z).scale((float) Math.pow(nDoth, objmin.getShininess()));
-	                
-	                c = new Vec3(c).add(specularColor);
-	                
-	            }
+	        Vec3 lightDir = ctx.lightDir.setSub(src.position, P);
+	        
+	        // Vérifier les ombres, le premier objet bloquant suffit
+	        if (RenderMetrics.ENABLED) {
+	        	ctx.shadowRays++;
+	        }
+	        boolean occluded = bvh.occluded(P, lightDir, EPSILON, 1, stack, ctx);
+	        if (recorder != null) {
+	        	recorder.shadow(occluded ? ctx.occluder : PathRecorder.NONE);
+	        }
+	        if (occluded) {
+	            continue;
 	        }
 	        
-	        float reflexionCoeff = objmin.getReflexionCoeff();
+	        Vec3 nlightDir = ctx.nlightDir.set(lightDir).normalize();
 	        
-	        if (niv > 0) {
-	            Vec3 reflectionDir = new Vec3(rayDirection).sub(new Vec3(normal).scale(2 * new Vec3(normal).dotProduct(rayDirection))).normalize();
-	            Vec3 newRayStart = new Vec3(P);
-	            float[] reflectedColor = findColor(newRayStart, reflectionDir, niv - 1);
-	            c = new Vec3(c).add(new Vec3(reflectedColor[0], reflectedColor[1], reflectedColor[2]).scale(reflexionCoeff));
-	        }
+	        float nDoth = Math.max(normal.dotProduct(nlightDir), 0);
 	        
-	        correctColor(c);
+	        Vec3 objColor = objmin.getColor(primitive);
+	        c.add(term.set(src.color).scale(objColor.x, objColor.y, objColor.z).scale(nDoth));
 	        
-	        return new float[]{c.x, c.y, c.z};
+	        Vec3 objSpecular = objmin.getSpecular(primitive);
+	        c.add(term.set(src.specular).scale(objSpecular.x, objSpecular.y, objSpecular.z).scale((float) Math.pow(nDoth, objmin.getShininess(primitive))));
 	    }
 	    
-		return new float[] {0,0,0};
-		
+	    float reflexionCoeff = objmin.getReflexionCoeff(primitive);
+	    
+	    // Un coefficient nul n'ajoute rien, inutile de lancer le rayon réfléchi
+	    if (niv > 0 && reflexionCoeff != 0) {
+	        Vec3 reflectionDir = ctx.reflection[niv].setSub(rayDirection, term.set(normal).scale(2 * normal.dotProduct(rayDirection))).normalize();
+	        Vec3 reflectedColor = ctx.reflectedColor[niv];
+	        if (RenderMetrics.ENABLED) {
+	        	ctx.reflectionRays++;
+	        }
+	        trace(bvh, P, reflectionDir, niv - 1, ctx, stack, reflectedColor);
+	        c.add(term.set(reflectedColor).scale(reflexionCoeff));
+	    }
+	    
+	    correctColor(c);
 	}
 	
 	/**
 	 * Applies anti-aliasing by averaging samples per pixel.
+	 * Post-process filter: each pixel becomes the average of the
+	 * sample x sample window around it, clipped at the image borders.
 	 * 
 	 * @param image Original image buffer
 	 * @param width Image width
@@ -156,49 +216,87 @@ public class Scene {
 	 */
 	public byte[] applyAntiAliasing(byte[] image, int width, int height, int sample) {
 	    byte[] newImage = new byte[image.length];
+	    int before = (sample - 1) / 2;
+	    int after = sample / 2;
 
 	    for (int y = 0; y < height; y++) {
 	        for (int x = 0; x < width; x++) {
 	            float[] avgColor = new float[3];
 	            int count = 0;
 
-	            
+	            for (int ny = Math.max(0, y - before); ny <= Math.min(height - 1, y + after); ny++) {
+	            	for (int nx = Math.max(0, x - before); nx <= Math.min(width - 1, x + after); nx++) {
+	            		int neighbour = 3 * (ny * width + nx);
+	            		avgColor[0] += image[neighbour] & 0xFF;
+	            		avgColor[1] += image[neighbour + 1] & 0xFF;
+	            		avgColor[2] += image[neighbour + 2] & 0xFF;
+	            		count++;
+	            	}
+	            }
 
 	            int index = 3 * (y * width + x);
-	            newImage[index] = (byte) (avgColor[0] / count);
-	            newImage[index + 1] = (byte) (avgColor[1] / count);
-	            newImage[index + 2] = (byte) (avgColor[2] / count);
+	            newImage[index] = (byte) Math.round(avgColor[0] / count);
+	            newImage[index + 1] = (byte) Math.round(avgColor[1] / count);
+	            newImage[index + 2] = (byte) Math.round(avgColor[2] / count);
 	        }
 	    }
 
 	    return newImage;
 	}
 	
+	/**
+	 * Renders the scene with adaptive anti-aliasing.
+	 * One ray per pixel is traced first, then only the pixels with a strong
+	 * local contrast are supersampled.
+	 * 
+	 * @param width Image width
+	 * @param height Image height
+	 * @param maxSamples Maximum samples per dimension
+	 * @param threshold Contrast above which a pixel is refined, in [0, 1]
+	 * @return Rendered image buffer
+	 * @see AdaptiveRenderer
+	 */
+	public byte[] drawAdaptive(int width, int height, int maxSamples, float threshold) {
+		return new AdaptiveRenderer(maxSamples, threshold).render(this, width, height);
+	}
+	
+	/**
+	 * Renders the scene progressively within a budget.
+	 * A coarse image is produced first, then refined one sample per pixel
+	 * at a time until the time or the sample budget is spent.
+	 * 
+	 * @param width Image width
+	 * @param height Image height
+	 * @param maxMillis Wall-clock budget, 0 or less for none
+	 * @param maxSamples Samples per pixel to reach
+	 * @return The best image produced within the budget
+	 * @see ProgressiveRenderer
+	 */
+	public byte[] drawProgressive(int width, int height, long maxMillis, int maxSamples) {
+		return progressive(width, height).render(maxMillis, maxSamples);
+	}
+	
+	/**
+	 * Creates a progressive render of the scene, to be started in the
+	 * background and polled for snapshots.
+	 * 
+	 * @param width Image width
+	 * @param height Image height
+	 * @return The progressive renderer
+	 */
+	public ProgressiveRenderer progressive(int width, int height) {
+		return new ProgressiveRenderer(this, width, height);
+	}
+	
+	/**
+	 * Renders the scene without anti-aliasing (one ray per pixel).
+	 * 
+	 * @param width Image width
+	 * @param height Image height
+	 * @return Rendered image buffer
+	 */
 	public byte[] draw( int width , int height ) {
-		
-		int D = DEFAULT_DISTANCE;
-		
-		byte buffer[] = new byte[3*width*height];
-		
-		for( float ye = 0 ; ye < height; ye++ ) {
-			for( float xe = 0 ; xe < width; xe++ ) {
-				int index = (int) (3*((ye*width)+xe));
-				
-				float x = ( xe - ( width / 2 ) ) / width ;
-				float y = ( ye - ( height / 2 ) ) / width ;
-				
-				Vec3 primaryRayDirection = new Vec3(x,y,-D);
-				
-				float[] couleur = this.findColor(viewerPosition, primaryRayDirection,5);
-				
-				buffer[index] = (byte) (couleur[0] * 255);
-				buffer[index+1] = (byte) (couleur[1] * 255);
-				buffer[index+2] = (byte) (couleur[2] * 255);
-				
-			}
-		}
-		
-		return buffer;	
+		return this.draw(width, height, 1);
 	}
 	
 	/**
@@ -210,44 +308,315 @@ public class Scene {
 	 * @return Rendered image buffer
 	 */
 	public byte[] draw(int width, int height, int samples) {
-	    int D = DEFAULT_DISTANCE;
 	    byte[] buffer = new byte[3 * width * height];
+	    renderTile(buffer, width, height, samples, 0, 0, width, height);
+	    return buffer;
+	}
+	
+	/**
+	 * Renders the scene on several cores.
+	 * The frame is split into tiles scheduled on a work-stealing pool,
+	 * the result is identical to {@link #draw(int, int, int)}.
+	 * 
+	 * @param width Image width
+	 * @param height Image height
+	 * @param samples Samples per dimension
+	 * @param parallelism Number of worker threads
+	 * @return Rendered image buffer
+	 */
+	public byte[] drawParallel(int width, int height, int samples, int parallelism) {
+		TileRenderer renderer = new TileRenderer(parallelism);
+		try {
+			return renderer.render(this, width, height, samples);
+		} finally {
+			renderer.shutdown();
+		}
+	}
+	
+	/**
+	 * Renders the scene by horizontal bands, each band is handed to the sink
+	 * as soon as it is done. Peak memory is one band, whatever the image size.
+	 * If a band or the sink fails, the sink is aborted before the error is
+	 * thrown.
+	 * 
+	 * @param width Image width
+	 * @param height Image height
+	 * @param samples Samples per dimension
+	 * @param bandHeight Number of rows per band
+	 * @param sink Receives the bands in order
+	 * @throws IOException If the sink fails
+	 */
+	public void drawBands(int width, int height, int samples, int bandHeight, FrameSink sink) throws IOException {
+		byte[] band = new byte[3 * width * Math.min(bandHeight, height)];
+		
+		sink.begin(width, height);
+		try {
+			for (int y = 0; y < height; y += bandHeight) {
+				int rows = Math.min(bandHeight, height - y);
+				BandEvent event = BandEvent.start(y, rows, width, samples);
+				renderTile(band, y, width, height, samples, 0, y, width, y + rows);
+				sink.writeRows(y, rows, band);
+				event.commit();
+			}
+		} catch (IOException | RuntimeException | Error e) {
+			sink.abort();
+			throw e;
+		}
+		sink.finish();
+	}
+	
+	/**
+	 * Renders a rectangular region of the image into a shared buffer.
+	 * Pixels outside [x0, x1[ x [y0, y1[ are left untouched, so several
+	 * threads may render disjoint tiles of the same buffer.
+	 * 
+	 * @param buffer Image buffer of the whole frame
+	 * @param width Image width
+	 * @param height Image height
+	 * @param samples Samples per dimension
+	 * @param x0 First column (inclusive)
+	 * @param y0 First row (inclusive)
+	 * @param x1 Last column (exclusive)
+	 * @param y1 Last row (exclusive)
+	 */
+	public void renderTile(byte[] buffer, int width, int height, int samples, int x0, int y0, int x1, int y1) {
+		renderTile(buffer, 0, width, height, samples, x0, y0, x1, y1);
+	}
+	
+	/**
+	 * Renders a rectangular region of the image into a buffer holding
+	 * full-width rows from bufferY on, such as a band of the image.
+	 * 
+	 * @param buffer Image buffer, its first row is row bufferY of the image
+	 * @param bufferY Image row stored at the start of the buffer
+	 * @param width Image width
+	 * @param height Image height
+	 * @param samples Samples per dimension
+	 * @param x0 First column (inclusive)
+	 * @param y0 First row (inclusive)
+	 * @param x1 Last column (exclusive)
+	 * @param y1 Last row (exclusive)
+	 */
+	public void renderTile(byte[] buffer, int bufferY, int width, int height, int samples, int x0, int y0, int x1, int y1) {
+		renderTile(buffer, null, bufferY, width, height, samples, x0, y0, x1, y1);
+	}
+	
+	/**
+	 * Renders a rectangular region of the image straight into a byte buffer,
+	 * such as a memory-mapped file, using absolute puts only.
+	 * 
+	 * @param buffer Pixel rows, its first row is row bufferY of the image
+	 * @param bufferY Image row stored at the start of the buffer
+	 * @param width Image width
+	 * @param height Image height
+	 * @param samples Samples per dimension
+	 * @param x0 First column (inclusive)
+	 * @param y0 First row (inclusive)
+	 * @param x1 Last column (exclusive)
+	 * @param y1 Last row (exclusive)
+	 */
+	public void renderTile(ByteBuffer buffer, int bufferY, int width, int height, int samples, int x0, int y0, int x1, int y1) {
+		renderTile(null, buffer, bufferY, width, height, samples, x0, y0, x1, y1);
+	}
+	
+	private void renderTile(byte[] array, ByteBuffer buffer, int bufferY, int width, int height, int samples, int x0, int y0, int x1, int y1) {
+	    TraceContext ctx = TraceContext.current();
+	    Vec3 color = ctx.pixelColor;
+	    long start = RenderMetrics.ENABLED ? System.nanoTime() : 0;
+	    TileEvent event = ctx.tileEvent;
+	    event.begin();
 
-	    for (int ye = 0; ye < height; ye++) {
-	        for (int xe = 0; xe < width; xe++) {
-	            int index = 3 * ((ye * width) + xe);
-	            float[] color = new float[]{0, 0, 0};
+	    if (packetTracing) {
+	    	// Blocs de pixels voisins, leurs rayons primaires forment un paquet
+	    	int side = Math.max(1, PACKET_SIDE / samples);
+	    	for (int by = y0; by < y1; by += side) {
+	    		for (int bx = x0; bx < x1; bx += side) {
+	    			renderBlock(array, buffer, bufferY, width, height, samples, bx, by, Math.min(side, x1 - bx), Math.min(side, y1 - by), ctx);
+	    		}
+	    	}
+	    } else {
+	    	for (int ye = y0; ye < y1; ye++) {
+	    		for (int xe = x0; xe < x1; xe++) {
+	    			pixelColor(xe, ye, width, height, samples, ctx, color);
+	    			writePixel(array, buffer, 3 * (((ye - bufferY) * width) + xe), color);
+	    		}
+	    	}
+	    }
+	    
+	    event.end();
+	    if (event.shouldCommit()) {
+	    	event.x0 = x0;
+	    	event.y0 = y0;
+	    	event.x1 = x1;
+	    	event.y1 = y1;
+	    	event.samples = samples;
+	    	event.primaryRays = (long) (x1 - x0) * (y1 - y0) * samples * samples;
+	    	// counts of this tile, not yet published to the metrics
+	    	event.shadowRays = ctx.shadowRays;
+	    	event.reflectionRays = ctx.reflectionRays;
+	    	event.intersectionTests = ctx.intersectionTests;
+	    	event.commit();
+	    }
+	    
+	    if (RenderMetrics.ENABLED) {
+	    	RenderMetrics.get().recordTile(ctx, (long) (x1 - x0) * (y1 - y0), System.nanoTime() - start);
+	    }
+	}
+	
+	/**
+	 * Renders a block of pixels with ray packets. The primary rays of the
+	 * block, anti-aliasing samples included, are traced in packets of up to
+	 * {@link RayPacket#MAX_SIZE} rays; the samples of a pixel are summed in
+	 * the order of {@link #pixelColor}, so the pixels are the same as with
+	 * single rays.
+	 */
+	private void renderBlock(byte[] array, ByteBuffer buffer, int bufferY, int width, int height, int samples,
+			int bx, int by, int bw, int bh, TraceContext ctx) {
+	    float[] sums = ctx.blockSums;
+	    Arrays.fill(sums, 0, 3 * bw * bh, 0);
+	    RayPacket packet = ctx.packet;
+	    packet.clear(viewerPosition);
 
+	    for (int py = 0; py < bh; py++) {
+	        for (int px = 0; px < bw; px++) {
 	            for (int i = 0; i < samples; i++) {
 	                for (int j = 0; j < samples; j++) {
 	                    float dx = (i + 0.5f) / samples - 0.5f;
 	                    float dy = (j + 0.5f) / samples - 0.5f;
+	                    float nx = (bx + px + dx - width / 2) / (float) width;
+	                    float ny = (by + py + dy - height / 2) / (float) width;
 
-	                    float nx = (xe + dx - width / 2) / (float) width;
-	                    float ny = (ye + dy - height / 2) / (float) width;
+	                    packet.add(nx, ny, -distance, py * bw + px);
+	                    if (packet.isFull()) {
+	                        tracePacket(packet, sums, ctx);
+	                        packet.clear(viewerPosition);
+	                    }
+	                }
+	            }
+	        }
+	    }
+	    if (packet.size > 0) {
+	        tracePacket(packet, sums, ctx);
+	    }
 
-	                    Vec3 primaryRayDirection = new Vec3(nx, ny, -D);
+	    Vec3 color = ctx.pixelColor;
+	    float coeff = 1.0f / (samples * samples);
+	    for (int py = 0; py < bh; py++) {
+	        for (int px = 0; px < bw; px++) {
+	            int p = 3 * (py * bw + px);
+	            color.set(sums[p] * coeff, sums[p + 1] * coeff, sums[p + 2] * coeff);
+	            writePixel(array, buffer, 3 * (((by + py - bufferY) * width) + bx + px), color);
+	        }
+	    }
+	}
+	
+	/**
+	 * Traces a packet of primary rays and adds their colors to the sums of
+	 * their pixels. Only the closest hits are found together: shadow and
+	 * reflected rays no longer share an origin and are traced one by one.
+	 */
+	private void tracePacket(RayPacket packet, float[] sums, TraceContext ctx) {
+	    BVH bvh = getAccelerationStructure();
+	    ctx.ensureDepth(depth);
+	    int[] stack = ctx.stack(bvh);
+	    if (RenderMetrics.ENABLED) {
+	    	ctx.primaryRays += packet.size;
+	    }
 
-	                    float[] sampleColor = findColor(viewerPosition, primaryRayDirection, 5);
+	    bvh.intersect(packet, EPSILON, LAMBDA_MAX, stack, ctx);
 
-	                    color[0] += sampleColor[0];
-	                    color[1] += sampleColor[1];
-	                    color[2] += sampleColor[2];
-	                }
-	            }
+	    for (int k = 0; k < packet.size; k++) {
+	        Vec3 c = packet.colors[k].reset();
+	        HitRecord hit = packet.hits[k];
+	        if (hit.hasHit()) {
+	            shade(bvh, hit, packet.origin, packet.directions[k], depth, ctx, stack, c);
+	        }
+	        int p = 3 * packet.pixels[k];
+	        sums[p] += c.x;
+	        sums[p + 1] += c.y;
+	        sums[p + 2] += c.z;
+	    }
+	}
+	
+	private static void writePixel(byte[] array, ByteBuffer buffer, int index, Vec3 color) {
+	    if (array != null) {
+	    	array[index] = toByte(color.x);
+	    	array[index + 1] = toByte(color.y);
+	    	array[index + 2] = toByte(color.z);
+	    } else {
+	    	buffer.put(index, toByte(color.x));
+	    	buffer.put(index + 1, toByte(color.y));
+	    	buffer.put(index + 2, toByte(color.z));
+	    }
+	}
+	
+	/**
+	 * Computes the color of a pixel by averaging a regular grid of
+	 * samples x samples rays.
+	 * 
+	 * @param xe Pixel column
+	 * @param ye Pixel row
+	 * @param width Image width
+	 * @param height Image height
+	 * @param samples Samples per dimension
+	 * @param ctx Scratch state of the calling thread
+	 * @param color Receives the averaged color
+	 * @return The color vector
+	 */
+	public Vec3 pixelColor(int xe, int ye, int width, int height, int samples, TraceContext ctx, Vec3 color) {
+	    Vec3 sampleColor = ctx.sampleColor;
+	    float r = 0, g = 0, b = 0;
+
+	    for (int i = 0; i < samples; i++) {
+	        for (int j = 0; j < samples; j++) {
+	            float dx = (i + 0.5f) / samples - 0.5f;
+	            float dy = (j + 0.5f) / samples - 0.5f;
 
-	            float coeff = 1.0f / (samples * samples);
-	            color[0] *= coeff;
-	            color[1] *= coeff;
-	            color[2] *= coeff;
+	            sampleColor(xe, ye, dx, dy, width, height, ctx, sampleColor);
 
-	            buffer[index] = (byte) (Math.min(color[0] * 255, 255));
-	            buffer[index + 1] = (byte) (Math.min(color[1] * 255, 255));
-	            buffer[index + 2] = (byte) (Math.min(color[2] * 255, 255));
+	            r += sampleColor.x;
+	            g += sampleColor.y;
+	            b += sampleColor.z;
 	        }
 	    }
 
-	    return buffer;
+	    float coeff = 1.0f / (samples * samples);
+	    return color.set(r * coeff, g * coeff, b * coeff);
+	}
+	
+	/**
+	 * Traces one primary ray through a point of a pixel.
+	 * 
+	 * @param xe Pixel column
+	 * @param ye Pixel row
+	 * @param dx Horizontal offset from the pixel center, in [-0.5, 0.5]
+	 * @param dy Vertical offset from the pixel center, in [-0.5, 0.5]
+	 * @param width Image width
+	 * @param height Image height
+	 * @param ctx Scratch state of the calling thread
+	 * @param color Receives the sample color
+	 * @return The color vector
+	 */
+	public Vec3 sampleColor(int xe, int ye, float dx, float dy, int width, int height, TraceContext ctx, Vec3 color) {
+	    float nx = (xe + dx - width / 2) / (float) width;
+	    float ny = (ye + dy - height / 2) / (float) width;
+
+	    Vec3 primaryRayDirection = ctx.primaryDirection.set(nx, ny, -distance);
+	    if (RenderMetrics.ENABLED) {
+	    	ctx.primaryRays++;
+	    }
+
+	    return findColor(viewerPosition, primaryRayDirection, depth, ctx, color);
+	}
+	
+	/**
+	 * Converts a color component in [0, 1] to a pixel byte.
+	 * 
+	 * @param component The color component
+	 * @return The byte value
+	 */
+	static byte toByte(float component) {
+		return (byte) (Math.min(component * 255, 255));
 	}
 	
 	/**
@@ -274,7 +643,12 @@ public class Scene {
 	 * @param modelList List of models
 	 */
 	public void setModelList(List<Model> modelList) {
+		// Models left out no longer move this scene's hierarchy
+		for (Model model : this.modelList) {
+			model.removeObserver(moveObserver);
+		}
 		this.modelList = modelList;
+		invalidateAccelerationStructure();
 	}
 	
 	/**
@@ -284,6 +658,100 @@ public class Scene {
 	 */
 	public void addModel( Model m ) {
 		this.modelList.add(m);
+		invalidateAccelerationStructure();
+	}
+	
+	/**
+	 * Replaces the {@link Sphere} models by a single {@link SphereSet}
+	 * holding them in packed arrays, placed where the first sphere was.
+	 * Large sphere counts render faster and take far less memory this way;
+	 * radii are rounded to floats.
+	 * 
+	 * @return The number of spheres packed
+	 */
+	public int packSpheres() {
+		SphereSet.Builder builder = new SphereSet.Builder();
+		List<Model> models = new ArrayList<>(modelList.size());
+		int position = -1;
+		for (Model m : modelList) {
+			if (m instanceof Sphere) {
+				if (position < 0) {
+					position = models.size();
+				}
+				builder.add((Sphere) m);
+			} else {
+				models.add(m);
+			}
+		}
+		if (builder.size() == 0) {
+			return 0;
+		}
+		models.add(position, builder.build());
+		setModelList(models);
+		return builder.size();
+	}
+	
+	/**
+	 * Gets the acceleration structure over the models, building it if needed.
+	 * It is rebuilt when models are added through this class, and refitted
+	 * when models of this scene were moved through their setters, such as
+	 * {@link Sphere#setCenter(Vec3)} between two frames of an animation;
+	 * a refit tree whose quality degraded too much is rebuilt. Material
+	 * changes and moves of models of other scenes leave it as it is. Call
+	 * {@link #invalidateAccelerationStructure()} after changing the list
+	 * returned by {@link #getModelList()} or a vector of a model in place.
+	 * 
+	 * @return The bounding volume hierarchy of the scene
+	 */
+	public BVH getAccelerationStructure() {
+		BVH bvh = accelerationStructure;
+		if (bvh == null || bvh.size() != modelList.size() || modelsMoved) {
+			synchronized (this) {
+				bvh = accelerationStructure;
+				if (bvh != null && bvh.size() == modelList.size() && modelsMoved) {
+					// Cleared first, a move during the refit is seen next time
+					modelsMoved = false;
+					AccelerationBuildEvent event = new AccelerationBuildEvent();
+					event.begin();
+					if (bvh.refit()) {
+						event.refit = true;
+						commit(event, bvh);
+					} else {
+						bvh = null;
+					}
+				}
+				if (bvh == null || bvh.size() != modelList.size()) {
+					AccelerationBuildEvent event = new AccelerationBuildEvent();
+					event.begin();
+					modelsMoved = false;
+					for (Model model : modelList) {
+						model.addObserver(moveObserver);
+					}
+					bvh = new BVH(modelList);
+					commit(event, bvh);
+					accelerationStructure = bvh;
+				}
+			}
+		}
+		return bvh;
+	}
+	
+	private static void commit(AccelerationBuildEvent event, BVH bvh) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.models = bvh.size();
+			event.unboundedModels = bvh.getUnboundedCount();
+			event.nodes = bvh.getNodeCount();
+			event.depth = bvh.getDepth();
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Discards the acceleration structure, it will be rebuilt on the next ray.
+	 */
+	public void invalidateAccelerationStructure() {
+		accelerationStructure = null;
 	}
 	
 	/**
@@ -313,6 +781,75 @@ public class Scene {
 		return viewerPosition;
 	}
 	
+	/**
+	 * Sets the viewer position, origin of the primary rays.
+	 * 
+	 * @param viewerPosition The 3D position
+	 */
+	public void setViewerPosition(Vec3 viewerPosition) {
+		this.viewerPosition = viewerPosition;
+	}
+	
+	/**
+	 * Gets the distance between the viewer and the image plane.
+	 * 
+	 * @return The distance, the image plane is one unit wide
+	 */
+	public float getDistance() {
+		return distance;
+	}
+	
+	/**
+	 * Sets the distance between the viewer and the image plane.
+	 * A larger distance narrows the field of view.
+	 * 
+	 * @param distance The distance
+	 */
+	public void setDistance(float distance) {
+		this.distance = distance;
+	}
+	
+	/**
+	 * Gets the maximum number of reflection bounces.
+	 * 
+	 * @return The recursion depth
+	 */
+	public int getDepth() {
+		return depth;
+	}
+	
+	/**
+	 * Sets the maximum number of reflection bounces.
+	 * 
+	 * @param depth The recursion depth, 0 disables reflections
+	 */
+	public void setDepth(int depth) {
+		if (depth < 0) {
+			throw new IllegalArgumentException("depth must not be negative: " + depth);
+		}
+		this.depth = depth;
+	}
+	
+	/**
+	 * Checks whether tiles trace their primary rays by packets.
+	 * 
+	 * @return true if packets are used
+	 */
+	public boolean isPacketTracing() {
+		return packetTracing;
+	}
+	
+	/**
+	 * Chooses between packets of primary rays and single rays for the tiles.
+	 * Both give the same image, packets walk the hierarchy once for a block
+	 * of coherent rays.
+	 * 
+	 * @param packetTracing true to trace primary rays by packets
+	 */
+	public void setPacketTracing(boolean packetTracing) {
+		this.packetTracing = packetTracing;
+	}
+	
 	/**
 	 * Clamps color values to [0, 1].
 	 * 
@@ -0,0 +1,50 @@
+package raytracing;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event emitted for each rendered tile.
+ * Shadow and reflection rays and intersection tests are only counted when
+ * {@link RenderMetrics#ENABLED} is set, they read 0 otherwise.
+ * 
+ * @author KepsyIn
+ */
+@Name("raytracing.Tile")
+@Label("Render Tile")
+@Category({"Raytracing", "Rendering"})
+@Description("Rendering of a rectangular region of the image")
+@StackTrace(false)
+final class TileEvent extends jdk.jfr.Event {
+	
+	@Label("First Column")
+	int x0;
+	
+	@Label("First Row")
+	int y0;
+	
+	@Label("End Column")
+	int x1;
+	
+	@Label("End Row")
+	int y1;
+	
+	@Label("Samples")
+	@Description("Samples per dimension")
+	int samples;
+	
+	@Label("Primary Rays")
+	long primaryRays;
+	
+	@Label("Shadow Rays")
+	long shadowRays;
+	
+	@Label("Reflection Rays")
+	long reflectionRays;
+	
+	@Label("Intersection Tests")
+	long intersectionTests;
+}
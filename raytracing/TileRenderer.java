@@ -0,0 +1,256 @@
+package raytracing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import render.FrameSink;
+import render.MappedImage;
+
+/**
+ * Renders a scene on several cores.
+ * The frame is split into square tiles which are scheduled on a
+ * work-stealing ForkJoinPool. Every tile writes straight into the
+ * shared image buffer, tiles never overlap.
+ * 
+ * @author KepsyIn
+ */
+public class TileRenderer {
+	
+	public static final int DEFAULT_TILE_SIZE = 32;
+	
+	private final ForkJoinPool pool;
+	
+	private final int tileSize;
+	
+	/**
+	 * Work done on a single tile.
+	 */
+	@FunctionalInterface
+	public interface TileTask {
+		
+		/**
+		 * Processes the tile [x0, x1[ x [y0, y1[.
+		 * 
+		 * @param x0 First column (inclusive)
+		 * @param y0 First row (inclusive)
+		 * @param x1 Last column (exclusive)
+		 * @param y1 Last row (exclusive)
+		 */
+		void run(int x0, int y0, int x1, int y1);
+	}
+	
+	/**
+	 * Creates a tile renderer with the default tile size.
+	 * 
+	 * @param parallelism Number of worker threads
+	 */
+	public TileRenderer(int parallelism) {
+		this(parallelism, DEFAULT_TILE_SIZE);
+	}
+	
+	/**
+	 * Creates a tile renderer.
+	 * 
+	 * @param parallelism Number of worker threads
+	 * @param tileSize Width and height of a tile in pixels
+	 */
+	public TileRenderer(int parallelism, int tileSize) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		}
+		if (tileSize < 1) {
+			throw new IllegalArgumentException("tile size must be positive: " + tileSize);
+		}
+		this.pool = new ForkJoinPool(parallelism);
+		this.tileSize = tileSize;
+	}
+	
+	/**
+	 * Renders the scene with anti-aliasing.
+	 * The result is byte-identical to {@link Scene#draw(int, int, int)}.
+	 * 
+	 * @param scene The scene to render
+	 * @param width Image width
+	 * @param height Image height
+	 * @param samples Samples per dimension
+	 * @return Rendered image buffer
+	 */
+	public byte[] render(Scene scene, int width, int height, int samples) {
+		byte[] buffer = new byte[3 * width * height];
+		render(scene, width, height, samples, buffer);
+		return buffer;
+	}
+	
+	/**
+	 * Renders the scene with anti-aliasing into an existing buffer, such as
+	 * the buffer of a previous frame.
+	 * 
+	 * @param scene The scene to render
+	 * @param width Image width
+	 * @param height Image height
+	 * @param samples Samples per dimension
+	 * @param buffer Receives the image, at least 3 * width * height bytes
+	 */
+	public void render(Scene scene, int width, int height, int samples, byte[] buffer) {
+		forEachTile(width, height, (x0, y0, x1, y1) -> scene.renderTile(buffer, width, height, samples, x0, y0, x1, y1));
+	}
+	
+	/**
+	 * Renders the scene straight into a memory-mapped image.
+	 * Tiles write their pixels into the mapping, there is no heap copy of
+	 * the image.
+	 * 
+	 * @param scene The scene to render
+	 * @param samples Samples per dimension
+	 * @param image The mapped pixel rows, its size gives the image size
+	 */
+	public void render(Scene scene, int samples, MappedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		
+		for (int c = 0; c < image.getChunkCount(); c++) {
+			ByteBuffer chunk = image.getChunk(c);
+			int firstRow = image.getChunkFirstRow(c);
+			forEachTile(0, firstRow, width, firstRow + image.getChunkRows(c),
+					(x0, y0, x1, y1) -> scene.renderTile(chunk, firstRow, width, height, samples, x0, y0, x1, y1));
+		}
+	}
+	
+	/**
+	 * Renders the scene by horizontal bands, the tiles of each band are
+	 * rendered in parallel and the band is handed to the sink once complete.
+	 * Peak memory is one band, whatever the image size.
+	 * If a band or the sink fails, the sink is aborted before the error is
+	 * thrown.
+	 * 
+	 * @param scene The scene to render
+	 * @param width Image width
+	 * @param height Image height
+	 * @param samples Samples per dimension
+	 * @param bandHeight Number of rows per band
+	 * @param sink Receives the bands in order
+	 * @throws IOException If the sink fails
+	 */
+	public void renderBands(Scene scene, int width, int height, int samples, int bandHeight, FrameSink sink) throws IOException {
+		byte[] band = new byte[3 * width * Math.min(bandHeight, height)];
+		
+		sink.begin(width, height);
+		try {
+			for (int y = 0; y < height; y += bandHeight) {
+				int bandY = y;
+				int rows = Math.min(bandHeight, height - y);
+				BandEvent event = BandEvent.start(y, rows, width, samples);
+				forEachTile(0, y, width, y + rows, (x0, y0, x1, y1) -> scene.renderTile(band, bandY, width, height, samples, x0, y0, x1, y1));
+				sink.writeRows(y, rows, band);
+				event.commit();
+			}
+		} catch (IOException | RuntimeException | Error e) {
+			sink.abort();
+			throw e;
+		}
+		sink.finish();
+	}
+	
+	/**
+	 * Runs a task on every tile of a width x height frame and waits
+	 * until all of them are done.
+	 * 
+	 * @param width Frame width
+	 * @param height Frame height
+	 * @param task The work to run on each tile
+	 */
+	public void forEachTile(int width, int height, TileTask task) {
+		forEachTile(0, 0, width, height, task);
+	}
+	
+	/**
+	 * Runs a task on every tile of the region [x0, x1[ x [y0, y1[ and
+	 * waits until all of them are done.
+	 * 
+	 * @param x0 First column (inclusive)
+	 * @param y0 First row (inclusive)
+	 * @param x1 Last column (exclusive)
+	 * @param y1 Last row (exclusive)
+	 * @param task The work to run on each tile
+	 */
+	public void forEachTile(int x0, int y0, int x1, int y1, TileTask task) {
+		int tilesX = (x1 - x0 + tileSize - 1) / tileSize;
+		int tilesY = (y1 - y0 + tileSize - 1) / tileSize;
+		
+		if (tilesX <= 0 || tilesY <= 0) {
+			return;
+		}
+		
+		pool.invoke(new TileAction(task, x0, y0, x1, y1, tilesX, 0, tilesX * tilesY));
+	}
+	
+	/**
+	 * Gets the tile size.
+	 * 
+	 * @return Width and height of a tile in pixels
+	 */
+	public int getTileSize() {
+		return tileSize;
+	}
+	
+	/**
+	 * Gets the number of worker threads.
+	 * 
+	 * @return The parallelism of the pool
+	 */
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+	
+	/**
+	 * Stops the worker threads.
+	 * The renderer cannot be used afterwards.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+	
+	/**
+	 * Splits a range of tile indices in halves until a single tile is left,
+	 * so idle workers can steal the larger pending halves.
+	 */
+	private class TileAction extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final TileTask task;
+		private final int originX;
+		private final int originY;
+		private final int endX;
+		private final int endY;
+		private final int tilesX;
+		private final int first;
+		private final int last;
+		
+		TileAction(TileTask task, int originX, int originY, int endX, int endY, int tilesX, int first, int last) {
+			this.task = task;
+			this.originX = originX;
+			this.originY = originY;
+			this.endX = endX;
+			this.endY = endY;
+			this.tilesX = tilesX;
+			this.first = first;
+			this.last = last;
+		}
+		
+		@Override
+		protected void compute() {
+			if (last - first > 1) {
+				int middle = (first + last) >>> 1;
+				invokeAll(new TileAction(task, originX, originY, endX, endY, tilesX, first, middle),
+						new TileAction(task, originX, originY, endX, endY, tilesX, middle, last));
+				return;
+			}
+			
+			int x0 = originX + (first % tilesX) * tileSize;
+			int y0 = originY + (first / tilesX) * tileSize;
+			task.run(x0, y0, Math.min(x0 + tileSize, endX), Math.min(y0 + tileSize, endY));
+		}
+	}
+}
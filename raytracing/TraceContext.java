@@ -0,0 +1,102 @@
+package raytracing;
+
+import model.HitRecord;
+import utils.Vec3;
+
+/**
+ * Per-thread scratch state used while tracing rays.
+ * Holds the hit record, the traversal stack and one set of vectors per
+ * reflection level, so tracing a ray allocates nothing once the context
+ * has grown to the scene depth.
+ * A context must only be used by one thread at a time.
+ * 
+ * @author KepsyIn
+ */
+public final class TraceContext {
+	
+	private static final ThreadLocal<TraceContext> CURRENT = ThreadLocal.withInitial(TraceContext::new);
+	
+	final HitRecord hit = new HitRecord();
+	
+	int[] stack = new int[32];
+	
+	// per reflection level
+	Vec3[] point = new Vec3[0];
+	Vec3[] normal = new Vec3[0];
+	Vec3[] reflection = new Vec3[0];
+	Vec3[] reflectedColor = new Vec3[0];
+	
+	// shared by a level, never live across the recursive call
+	final Vec3 lightDir = new Vec3();
+	final Vec3 nlightDir = new Vec3();
+	final Vec3 term = new Vec3();
+	
+	final Vec3 primaryDirection = new Vec3();
+	final Vec3 sampleColor = new Vec3();
+	final Vec3 pixelColor = new Vec3();
+	
+	// primary rays of a block of pixels, and the color sums of its pixels
+	final RayPacket packet = new RayPacket();
+	final float[] blockSums = new float[3 * RayPacket.MAX_SIZE];
+	
+	// event of the tile being rendered, reused so tiles allocate nothing
+	final TileEvent tileEvent = new TileEvent();
+	
+	// paths of the pixels rendered by an IncrementalRenderer, null otherwise
+	PathRecorder recorder;
+	// position in the scene list of the model found by the last blocked shadow ray
+	int occluder;
+	
+	// counts not yet published to RenderMetrics
+	long primaryRays;
+	long shadowRays;
+	long reflectionRays;
+	long intersectionTests;
+	
+	/**
+	 * Gets the context of the calling thread.
+	 * 
+	 * @return The thread context
+	 */
+	public static TraceContext current() {
+		return CURRENT.get();
+	}
+	
+	/**
+	 * Grows the per-level vectors to hold a given reflection depth.
+	 * 
+	 * @param niv Maximum recursion level
+	 */
+	void ensureDepth(int niv) {
+		int size = niv + 1;
+		if (point.length >= size) {
+			return;
+		}
+		point = grow(point, size);
+		normal = grow(normal, size);
+		reflection = grow(reflection, size);
+		reflectedColor = grow(reflectedColor, size);
+	}
+	
+	/**
+	 * Gets a traversal stack deep enough for a hierarchy.
+	 * 
+	 * @param bvh The hierarchy to traverse
+	 * @return The stack
+	 */
+	int[] stack(BVH bvh) {
+		if (stack.length <= bvh.getDepth()) {
+			stack = new int[bvh.getDepth() + 1];
+		}
+		return stack;
+	}
+	
+	private static Vec3[] grow(Vec3[] vectors, int size) {
+		Vec3[] grown = new Vec3[size];
+		System.arraycopy(vectors, 0, grown, 0, vectors.length);
+		for (int i = vectors.length; i < size; i++) {
+			grown[i] = new Vec3();
+		}
+		return grown;
+	}
+}
@@ -0,0 +1,48 @@
+package render;
+
+import java.io.IOException;
+
+/**
+ * Destination of an image rendered by horizontal bands.
+ * Bands are handed over as soon as they are rendered, so the whole image
+ * never has to be held in memory.
+ * 
+ * @author KepsyIn
+ */
+public interface FrameSink {
+	
+	/**
+	 * Called once before the first band.
+	 * 
+	 * @param width Image width
+	 * @param height Image height
+	 * @throws IOException If I/O error occurs
+	 */
+	void begin(int width, int height) throws IOException;
+	
+	/**
+	 * Receives a band of full-width rows.
+	 * Bands arrive in increasing row order and do not overlap.
+	 * 
+	 * @param y First row of the band
+	 * @param rows Number of rows in the band
+	 * @param pixels Band buffer (3 bytes per pixel: Blue, Green, Red), only valid during the call
+	 * @throws IOException If I/O error occurs
+	 */
+	void writeRows(int y, int rows, byte[] pixels) throws IOException;
+	
+	/**
+	 * Called once after the last band.
+	 * 
+	 * @throws IOException If I/O error occurs
+	 */
+	void finish() throws IOException;
+	
+	/**
+	 * Called instead of {@link #finish()} when the rendering fails, after
+	 * {@link #begin(int, int)} or a band. Releases what the sink holds, its
+	 * own errors are dropped so the rendering error is the one reported.
+	 */
+	default void abort() {
+	}
+}
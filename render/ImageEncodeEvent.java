@@ -0,0 +1,59 @@
+package render;
+
+import java.io.File;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event emitted when an image is encoded to a file.
+ * 
+ * @author KepsyIn
+ */
+@Name("raytracing.ImageEncode")
+@Label("Image Encode")
+@Category({"Raytracing", "Output"})
+final class ImageEncodeEvent extends jdk.jfr.Event {
+	
+	@Label("Format")
+	String format;
+	
+	@Label("File")
+	String file;
+	
+	@Label("Width")
+	int width;
+	
+	@Label("Height")
+	int height;
+	
+	@Label("Pixel Bytes")
+	@DataAmount
+	long pixelBytes;
+	
+	@Label("File Size")
+	@DataAmount
+	long fileSize;
+	
+	/**
+	 * Ends the event and commits it if it passes the recording settings.
+	 * 
+	 * @param format Name of the image format
+	 * @param filename The written file
+	 * @param width Image width
+	 * @param height Image height
+	 */
+	void record(String format, String filename, int width, int height) {
+		end();
+		if (shouldCommit()) {
+			this.format = format;
+			this.file = filename;
+			this.width = width;
+			this.height = height;
+			this.pixelBytes = 3L * width * height;
+			this.fileSize = new File(filename).length();
+			commit();
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package render;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Pixel rows of an image file mapped in memory.
+ * Render workers write pixels straight into the mapped region with
+ * absolute puts, so disjoint tiles can be written concurrently and no
+ * heap copy of the image is needed.
+ * A mapping is limited to 2 GB, large images are split into several
+ * chunks of whole rows.
+ * 
+ * @author KepsyIn
+ */
+public class MappedImage implements FrameSink, Closeable {
+	
+	private static final long MAX_CHUNK_BYTES = 1L << 30;
+	
+	private final FileChannel channel;
+	private final int width;
+	private final int height;
+	private final int rowsPerChunk;
+	private final MappedByteBuffer[] chunks;
+	
+	/**
+	 * Maps the pixel rows of an image file.
+	 * The file must already be large enough to hold them.
+	 * 
+	 * @param channel Channel opened for reading and writing, closed with this image
+	 * @param offset Position of the first row in the file
+	 * @param width Image width
+	 * @param height Image height
+	 * @throws IOException If the file cannot be mapped
+	 */
+	public MappedImage(FileChannel channel, long offset, int width, int height) throws IOException {
+		this.channel = channel;
+		this.width = width;
+		this.height = height;
+		
+		long rowBytes = 3L * width;
+		this.rowsPerChunk = (int) Math.max(1, Math.min(height, MAX_CHUNK_BYTES / Math.max(1, rowBytes)));
+		
+		int count = height == 0 ? 0 : (height + rowsPerChunk - 1) / rowsPerChunk;
+		this.chunks = new MappedByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			int rows = Math.min(rowsPerChunk, height - i * rowsPerChunk);
+			chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset + i * rowsPerChunk * rowBytes, rows * rowBytes);
+		}
+	}
+	
+	/**
+	 * Gets the image width.
+	 * 
+	 * @return The width in pixels
+	 */
+	public int getWidth() {
+		return width;
+	}
+	
+	/**
+	 * Gets the image height.
+	 * 
+	 * @return The height in pixels
+	 */
+	public int getHeight() {
+		return height;
+	}
+	
+	/**
+	 * Gets the number of mapped chunks.
+	 * 
+	 * @return The number of chunks
+	 */
+	public int getChunkCount() {
+		return chunks.length;
+	}
+	
+	/**
+	 * Gets a mapped chunk. Its first byte is the first pixel of row
+	 * {@link #getChunkFirstRow(int)}, only absolute puts should be used.
+	 * 
+	 * @param index Chunk index
+	 * @return The mapped rows
+	 */
+	public ByteBuffer getChunk(int index) {
+		return chunks[index];
+	}
+	
+	/**
+	 * Gets the first image row held by a chunk.
+	 * 
+	 * @param index Chunk index
+	 * @return The row number
+	 */
+	public int getChunkFirstRow(int index) {
+		return index * rowsPerChunk;
+	}
+	
+	/**
+	 * Gets the number of rows held by a chunk.
+	 * 
+	 * @param index Chunk index
+	 * @return The number of rows
+	 */
+	public int getChunkRows(int index) {
+		return Math.min(rowsPerChunk, height - index * rowsPerChunk);
+	}
+	
+	@Override
+	public void begin(int width, int height) throws IOException {
+		if (width != this.width || height != this.height) {
+			throw new IOException("mapped image is " + this.width + "x" + this.height + ", cannot receive " + width + "x" + height);
+		}
+	}
+	
+	/**
+	 * Copies a band into the mapping. Unlike a streaming sink, bands may
+	 * arrive in any order and from several threads.
+	 */
+	@Override
+	public void writeRows(int y, int rows, byte[] pixels) throws IOException {
+		int rowBytes = 3 * width;
+		for (int r = 0; r < rows; r++) {
+			int row = y + r;
+			int chunk = row / rowsPerChunk;
+			chunks[chunk].put((row - chunk * rowsPerChunk) * rowBytes, pixels, r * rowBytes, rowBytes);
+		}
+	}
+	
+	@Override
+	public void finish() throws IOException {
+		force();
+	}
+	
+	/**
+	 * Writes the mapped content back to the file.
+	 */
+	public void force() {
+		for (MappedByteBuffer chunk : chunks) {
+			chunk.force();
+		}
+	}
+	
+	/**
+	 * Flushes the mapping and closes the file.
+	 * The mapping itself is released when garbage collected.
+	 * 
+	 * @throws IOException If I/O error occurs
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			force();
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package render;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes uncompressed TGA files through a memory mapping.
+ * The file is preallocated to its final size and mapped with
+ * FileChannel.map, pixels are then written straight into the mapping.
+ * 
+ * @author KepsyIn
+ */
+public class MappedTgaRenderer extends ImageRenderer {
+	
+	private static final String DEFAULT_EXTENSION = "tga";
+	private static final String FORMAT_NAME = "TGA (memory-mapped)";
+	
+	private static final int HEADER_SIZE = 18;
+	
+	/**
+	 * Creates a TGA file of the final size and maps its pixel rows.
+	 * Render workers can fill the returned image directly, for example with
+	 * {@link raytracing.TileRenderer#render(raytracing.Scene, int, MappedImage)}.
+	 * 
+	 * @param filename The filename
+	 * @param width Image width
+	 * @param height Image height
+	 * @return The mapped pixel rows, to close once rendered
+	 * @throws IOException If I/O error occurs
+	 */
+	public MappedImage open(String filename, int width, int height) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_SIZE);
+		RenderTga.writeTGAHeader(header, width, height);
+		
+		FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			long size = HEADER_SIZE + 3L * width * height;
+			
+			// Preallocate the whole file before mapping it
+			if (size > HEADER_SIZE) {
+				channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+			}
+			channel.write(ByteBuffer.wrap(header.toByteArray()), 0);
+			
+			return new MappedImage(channel, HEADER_SIZE, width, height);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	@Override
+	public void save(String filename, byte buffer[], int width, int height) throws IOException {
+		try (MappedImage image = open(filename, width, height)) {
+			image.begin(width, height);
+			image.writeRows(0, height, buffer);
+			image.finish();
+		}
+	}
+	
+	@Override
+	protected String getExtension() {
+		return DEFAULT_EXTENSION;
+	}
+	
+	@Override
+	protected String getFormatName() {
+		return FORMAT_NAME;
+	}
+}
@@ -0,0 +1,364 @@
+package render;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes PNG files (8-bit RGB), compressing in parallel like pigz.
+ * The image is cut into groups of rows which are filtered and deflated
+ * independently; each group is primed with the last 32 KB of the
+ * previous one and ends on a byte boundary (sync flush), so the
+ * compressed groups concatenate into a single valid zlib stream.
+ * Each group is stored in its own IDAT chunk.
+ *
+ * @author KepsyIn
+ */
+public class RenderPng extends ImageRenderer {
+
+    private static final String DEFAULT_EXTENSION = "png";
+    private static final String FORMAT_NAME = "PNG";
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final byte[] IHDR = {'I', 'H', 'D', 'R'};
+    private static final byte[] IDAT = {'I', 'D', 'A', 'T'};
+    private static final byte[] IEND = {'I', 'E', 'N', 'D'};
+
+    private static final byte BIT_DEPTH = 8;
+    private static final byte COLOR_TYPE_RGB = 2;
+
+    // zlib header: deflate with a 32 KB window, default compression
+    private static final byte[] ZLIB_HEADER = {0x78, (byte) 0x9C};
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int GROUP_BYTES = 128 * 1024;
+    private static final int ADLER_BASE = 65521;
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    private final int level;
+
+    /**
+     * Creates a PNG renderer with the default compression level.
+     */
+    public RenderPng() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates a PNG renderer.
+     *
+     * @param level Deflate level, from 0 (none) to 9 (best), or -1 for the default
+     */
+    public RenderPng(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Result of compressing a group of rows.
+     */
+    private static class Group {
+        byte[] compressed;
+        int adler;
+        long length;
+    }
+
+    @Override
+    public void save(String filename, byte buffer[], int width, int height) throws IOException {
+        ImageEncodeEvent event = new ImageEncodeEvent();
+        event.begin();
+
+        try (OutputStream out = new FileOutputStream(new File(filename))) {
+            write(out, buffer, width, height);
+        }
+        event.record(getFormatName(), filename, width, height);
+    }
+
+    /**
+     * Encodes an image as PNG to a stream.
+     *
+     * @param stream The destination, flushed but not closed
+     * @param buffer Image buffer, rows bottom to top as for TGA
+     * @param width Image width
+     * @param height Image height
+     * @throws IOException If the stream cannot be written
+     */
+    public void write(OutputStream stream, byte buffer[], int width, int height) throws IOException {
+        int rowBytes = 1 + 3 * width;
+        int rowsPerGroup = Math.max(1, GROUP_BYTES / rowBytes);
+        int groupCount = (height + rowsPerGroup - 1) / rowsPerGroup;
+
+        Group[] groups = new Group[groupCount];
+        IntStream.range(0, groupCount).parallel().forEach(g -> {
+            int first = g * rowsPerGroup;
+            int last = Math.min(height, first + rowsPerGroup);
+            groups[g] = compressGroup(buffer, width, height, first, last, g == groupCount - 1);
+        });
+
+        int adler = 1;
+        for (Group group : groups) {
+            adler = combineAdler32(adler, group.adler, group.length);
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.write(SIGNATURE);
+
+        byte[] header = new byte[13];
+        writeInt(header, 0, width);
+        writeInt(header, 4, height);
+        header[8] = BIT_DEPTH;
+        header[9] = COLOR_TYPE_RGB;
+        writeChunk(out, IHDR, header, header.length);
+
+        for (int g = 0; g < groupCount; g++) {
+            byte[] data = groups[g].compressed;
+            if (g == 0) {
+                data = concat(ZLIB_HEADER, data);
+            }
+            if (g == groupCount - 1) {
+                byte[] trailer = new byte[4];
+                writeInt(trailer, 0, adler);
+                data = concat(data, trailer);
+            }
+            writeChunk(out, IDAT, data, data.length);
+        }
+
+        if (groupCount == 0) {
+            // Empty image: a stored empty block keeps the zlib stream valid
+            byte[] empty = {0x78, (byte) 0x9C, 0x03, 0x00, 0x00, 0x00, 0x00, 0x01};
+            writeChunk(out, IDAT, empty, empty.length);
+        }
+
+        writeChunk(out, IEND, new byte[0], 0);
+        out.flush();
+    }
+
+    public static void savePNG(String filename, byte buffer[], int width, int height) throws IOException {
+        RenderPng renderer = new RenderPng();
+        renderer.save(filename, buffer, width, height);
+    }
+
+    /**
+     * Filters and deflates the PNG rows [first, last[.
+     * PNG stores rows top to bottom, the buffer bottom to top (TGA order).
+     */
+    private Group compressGroup(byte[] buffer, int width, int height, int first, int last, boolean finish) {
+        int rowBytes = 1 + 3 * width;
+        byte[] previous = new byte[3 * width];
+        byte[] current = new byte[3 * width];
+        byte[] filtered = new byte[(last - first) * rowBytes];
+
+        if (first > 0) {
+            readRow(buffer, width, height, first - 1, previous);
+        }
+        for (int y = first; y < last; y++) {
+            readRow(buffer, width, height, y, current);
+            filterRow(current, y > 0 ? previous : null, filtered, (y - first) * rowBytes);
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (first > 0) {
+                // Prime with the end of the previous group, as pigz does
+                byte[] dictionary = previousGroupTail(buffer, width, height, first);
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(filtered);
+            if (finish) {
+                deflater.finish();
+            }
+
+            byte[] out = new byte[Math.max(64, filtered.length / 2)];
+            int length = 0;
+            while (true) {
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                int space = out.length - length;
+                int n = deflater.deflate(out, length, space, finish ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                length += n;
+                // A sync flush is complete once it leaves output space unused
+                if (finish ? deflater.finished() : n < space) {
+                    break;
+                }
+            }
+
+            Adler32 adler = new Adler32();
+            adler.update(filtered);
+
+            Group group = new Group();
+            group.compressed = Arrays.copyOf(out, length);
+            group.adler = (int) adler.getValue();
+            group.length = filtered.length;
+            return group;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Rebuilds the filtered bytes just before a group, to use as dictionary.
+     */
+    private static byte[] previousGroupTail(byte[] buffer, int width, int height, int first) {
+        int rowBytes = 1 + 3 * width;
+        int rows = Math.min(first, (DICTIONARY_SIZE + rowBytes - 1) / rowBytes);
+        byte[] filtered = new byte[rows * rowBytes];
+        byte[] previous = new byte[3 * width];
+        byte[] current = new byte[3 * width];
+
+        int start = first - rows;
+        if (start > 0) {
+            readRow(buffer, width, height, start - 1, previous);
+        }
+        for (int y = start; y < first; y++) {
+            readRow(buffer, width, height, y, current);
+            filterRow(current, y > 0 ? previous : null, filtered, (y - start) * rowBytes);
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        int size = Math.min(DICTIONARY_SIZE, filtered.length);
+        return Arrays.copyOfRange(filtered, filtered.length - size, filtered.length);
+    }
+
+    /**
+     * Reads PNG row y as RGB from the bottom-up BGR buffer.
+     */
+    private static void readRow(byte[] buffer, int width, int height, int y, byte[] row) {
+        int offset = 3 * (height - 1 - y) * width;
+        for (int x = 0; x < 3 * width; x += 3) {
+            row[x] = buffer[offset + x + 2];
+            row[x + 1] = buffer[offset + x + 1];
+            row[x + 2] = buffer[offset + x];
+        }
+    }
+
+    /**
+     * Filters a row with the filter giving the smallest sum of absolute
+     * values, the usual heuristic of PNG encoders.
+     *
+     * @param row The row bytes
+     * @param previous The row above, or null for the first row
+     * @param out Destination, receives the filter type then the filtered bytes
+     * @param offset Position in the destination
+     */
+    private static void filterRow(byte[] row, byte[] previous, byte[] out, int offset) {
+        int bestFilter = FILTER_NONE;
+        long bestSum = Long.MAX_VALUE;
+
+        int lastFilter = previous == null ? FILTER_SUB : FILTER_PAETH;
+        for (int filter = FILTER_NONE; filter <= lastFilter; filter++) {
+            long sum = 0;
+            for (int i = 0; i < row.length && sum < bestSum; i++) {
+                sum += Math.abs((byte) filtered(filter, row, previous, i));
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+                bestFilter = filter;
+            }
+        }
+
+        out[offset] = (byte) bestFilter;
+        for (int i = 0; i < row.length; i++) {
+            out[offset + 1 + i] = (byte) filtered(bestFilter, row, previous, i);
+        }
+    }
+
+    private static int filtered(int filter, byte[] row, byte[] previous, int i) {
+        int value = row[i] & 0xFF;
+        int left = i >= 3 ? row[i - 3] & 0xFF : 0;
+        int up = previous != null ? previous[i] & 0xFF : 0;
+        int upLeft = previous != null && i >= 3 ? previous[i - 3] & 0xFF : 0;
+
+        switch (filter) {
+            case FILTER_SUB: return value - left;
+            case FILTER_UP: return value - up;
+            case FILTER_AVERAGE: return value - ((left + up) >> 1);
+            case FILTER_PAETH: return value - paeth(left, up, upLeft);
+            default: return value;
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * Computes the Adler-32 of two concatenated blocks from their own
+     * checksums (same algorithm as zlib's adler32_combine).
+     *
+     * @param adler1 Checksum of the first block
+     * @param adler2 Checksum of the second block
+     * @param length2 Length of the second block
+     * @return Checksum of the concatenation
+     */
+    static int combineAdler32(int adler1, int adler2, long length2) {
+        long remainder = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum2 >= (ADLER_BASE << 1)) sum2 -= (ADLER_BASE << 1);
+        if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+        return (int) (sum1 | (sum2 << 16));
+    }
+
+    private static void writeChunk(DataOutputStream out, byte[] type, byte[] data, int length) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(data, 0, length);
+
+        out.writeInt(length);
+        out.write(type);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void writeInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    @Override
+    protected String getExtension() {
+        return DEFAULT_EXTENSION;
+    }
+
+    @Override
+    protected String getFormatName() {
+        return FORMAT_NAME;
+    }
+
+}
@@ -1,7 +1,9 @@
 package render;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 public class RenderTga extends ImageRenderer {
 
@@ -12,6 +14,7 @@ public class RenderTga extends ImageRenderer {
     private static final byte COMMENT_SIZE = 0;
     private static final byte COLORMAP_TYPE = 0;
     private static final byte IMAGE_TYPE = 2;
+    static final byte IMAGE_TYPE_RLE = 10;
     private static final int ORIGIN = 0;
     private static final int LENGTH = 0;
     private static final byte DEPTH = 0;
@@ -20,26 +23,58 @@ public class RenderTga extends ImageRenderer {
     private static final byte BITS_PER_PIXEL = 24;
     private static final byte DESCRIPTOR = 0;
     
+    private static final int MAX_SIZE = 0xFFFF;
+    
     private static class TGAHeader {
+        public final byte imageType;
         public final int width;
         public final int height;
         
-        public TGAHeader(int width, int height) {
+        public TGAHeader(byte imageType, int width, int height) {
+            this.imageType = imageType;
             this.width = width;
             this.height = height;
         }
     }
     
-    private static void writeShort(FileOutputStream fout,int n) throws IOException
+    private static void writeShort(OutputStream fout,int n) throws IOException
     {
         fout.write(n&255);
         fout.write((n>>8)&255);
     }
 
-    private static void writeTGAHeader(FileOutputStream fout, TGAHeader header) throws IOException {
+    /**
+     * Writes the header of an uncompressed 24-bit TGA image.
+     * 
+     * @param out The destination
+     * @param width Image width, at most 65535
+     * @param height Image height, at most 65535
+     * @throws IOException If I/O error occurs
+     */
+    static void writeTGAHeader(OutputStream out, int width, int height) throws IOException {
+        writeTGAHeader(out, IMAGE_TYPE, width, height);
+    }
+
+    /**
+     * Writes the header of a 24-bit TGA image.
+     * 
+     * @param out The destination
+     * @param imageType 2 for uncompressed, 10 for run-length encoded
+     * @param width Image width, at most 65535
+     * @param height Image height, at most 65535
+     * @throws IOException If I/O error occurs
+     */
+    static void writeTGAHeader(OutputStream out, byte imageType, int width, int height) throws IOException {
+        if (width < 0 || width > MAX_SIZE || height < 0 || height > MAX_SIZE) {
+            throw new IllegalArgumentException("TGA images are limited to " + MAX_SIZE + " pixels per side: " + width + "x" + height);
+        }
+        writeTGAHeader(out, new TGAHeader(imageType, width, height));
+    }
+
+    private static void writeTGAHeader(OutputStream fout, TGAHeader header) throws IOException {
         fout.write(COMMENT_SIZE);
         fout.write(COLORMAP_TYPE);
-        fout.write(IMAGE_TYPE);
+        fout.write(header.imageType);
         writeShort(fout, ORIGIN);
         writeShort(fout, LENGTH);
         fout.write(DEPTH);
@@ -53,15 +88,27 @@ public class RenderTga extends ImageRenderer {
 
     @Override
     public void save(String filename, byte buffer[], int width, int height) throws IOException {
+        ImageEncodeEvent event = new ImageEncodeEvent();
+        event.begin();
 
-        FileOutputStream fout = new FileOutputStream(new File(filename));
-        TGAHeader header = new TGAHeader(width, height);
-        
-        writeTGAHeader(fout, header);
-
-        fout.write(buffer);
+        try (OutputStream fout = new BufferedOutputStream(new FileOutputStream(new File(filename)))) {
+            write(fout, buffer, width, height);
+        }
+        event.record(getFormatName(), filename, width, height);
+    }
 
-        fout.close();
+    /**
+     * Writes an uncompressed TGA image to a stream.
+     *
+     * @param out The destination, not closed
+     * @param buffer Image buffer
+     * @param width Image width
+     * @param height Image height
+     * @throws IOException If the stream cannot be written
+     */
+    public void write(OutputStream out, byte buffer[], int width, int height) throws IOException {
+        writeTGAHeader(out, width, height);
+        out.write(buffer, 0, 3 * width * height);
     }
 
     public static void saveTGA(String filename, byte buffer[], int width, int height) throws IOException {
@@ -0,0 +1,141 @@
+package render;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Writes run-length encoded TGA files (image type 10).
+ * Packets never cross a row, so rows are encoded independently: in
+ * parallel when saving a whole buffer, band by band when streaming.
+ * 
+ * @author KepsyIn
+ */
+public class RenderTgaRle extends ImageRenderer {
+
+    private static final String DEFAULT_EXTENSION = "tga";
+    private static final String FORMAT_NAME = "TGA (RLE)";
+    
+    private static final int MAX_PACKET_PIXELS = 128;
+    private static final int RUN_FLAG = 0x80;
+    
+    private static final int ROWS_PER_TASK = 16;
+
+    @Override
+    public void save(String filename, byte buffer[], int width, int height) throws IOException {
+        ImageEncodeEvent event = new ImageEncodeEvent();
+        event.begin();
+
+        byte[][] encoded = encodeRows(buffer, width, height);
+        
+        try (OutputStream fout = new BufferedOutputStream(new FileOutputStream(new File(filename)))) {
+            RenderTga.writeTGAHeader(fout, RenderTga.IMAGE_TYPE_RLE, width, height);
+            for (byte[] rows : encoded) {
+                fout.write(rows);
+            }
+        }
+        event.record(getFormatName(), filename, width, height);
+    }
+
+    public static void saveTGA(String filename, byte buffer[], int width, int height) throws IOException {
+        RenderTgaRle renderer = new RenderTgaRle();
+        renderer.save(filename, buffer, width, height);
+    }
+    
+    /**
+     * Encodes rows in parallel, by groups of rows.
+     * 
+     * @param buffer Rows to encode (3 bytes per pixel: Blue, Green, Red)
+     * @param width Image width
+     * @param rows Number of rows in the buffer
+     * @return The encoded groups, to be written in order
+     */
+    static byte[][] encodeRows(byte[] buffer, int width, int rows) {
+        int tasks = (rows + ROWS_PER_TASK - 1) / ROWS_PER_TASK;
+        byte[][] encoded = new byte[tasks][];
+        
+        IntStream.range(0, tasks).parallel().forEach(t -> {
+            int first = t * ROWS_PER_TASK;
+            int last = Math.min(rows, first + ROWS_PER_TASK);
+            byte[] out = new byte[(last - first) * maxEncodedRowSize(width)];
+            int length = 0;
+            for (int y = first; y < last; y++) {
+                length = encodeRow(buffer, 3 * y * width, width, out, length);
+            }
+            encoded[t] = Arrays.copyOf(out, length);
+        });
+        
+        return encoded;
+    }
+    
+    /**
+     * Gets the worst-case size of an encoded row (no two equal neighbours).
+     * 
+     * @param width Row width in pixels
+     * @return The size in bytes
+     */
+    static int maxEncodedRowSize(int width) {
+        return 3 * width + (width + MAX_PACKET_PIXELS - 1) / MAX_PACKET_PIXELS;
+    }
+    
+    /**
+     * Encodes one row into run-length packets.
+     * Two or more equal pixels make a run packet, other pixels are grouped
+     * into raw packets; a packet holds at most 128 pixels.
+     * 
+     * @param pixels Source buffer
+     * @param offset Position of the first pixel of the row
+     * @param width Row width in pixels
+     * @param out Destination, at least {@link #maxEncodedRowSize(int)} bytes left
+     * @param position Position in the destination
+     * @return The position after the encoded row
+     */
+    static int encodeRow(byte[] pixels, int offset, int width, byte[] out, int position) {
+        int x = 0;
+        while (x < width) {
+            int run = 1;
+            while (x + run < width && run < MAX_PACKET_PIXELS && samePixel(pixels, offset + 3 * x, offset + 3 * (x + run))) {
+                run++;
+            }
+            
+            if (run > 1) {
+                out[position++] = (byte) (RUN_FLAG | (run - 1));
+                out[position++] = pixels[offset + 3 * x];
+                out[position++] = pixels[offset + 3 * x + 1];
+                out[position++] = pixels[offset + 3 * x + 2];
+                x += run;
+                continue;
+            }
+            
+            // Raw packet up to the next pair of equal pixels
+            int raw = 1;
+            while (x + raw < width && raw < MAX_PACKET_PIXELS
+                    && !(x + raw + 1 < width && samePixel(pixels, offset + 3 * (x + raw), offset + 3 * (x + raw + 1)))) {
+                raw++;
+            }
+            out[position++] = (byte) (raw - 1);
+            System.arraycopy(pixels, offset + 3 * x, out, position, 3 * raw);
+            position += 3 * raw;
+            x += raw;
+        }
+        return position;
+    }
+    
+    private static boolean samePixel(byte[] pixels, int a, int b) {
+        return pixels[a] == pixels[b] && pixels[a + 1] == pixels[b + 1] && pixels[a + 2] == pixels[b + 2];
+    }
+    
+    @Override
+    protected String getExtension() {
+        return DEFAULT_EXTENSION;
+    }
+    
+    @Override
+    protected String getFormatName() {
+        return FORMAT_NAME;
+    }
+
+}
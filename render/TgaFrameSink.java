@@ -0,0 +1,33 @@
+package render;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streams an uncompressed TGA file band by band.
+ * Only the band being written is kept in memory, so the image size is
+ * limited by the TGA format (65535 x 65535) rather than by the heap.
+ * 
+ * @author KepsyIn
+ */
+public class TgaFrameSink extends TgaStreamSink {
+	
+	/**
+	 * Creates a sink writing to a file.
+	 * 
+	 * @param filename The filename
+	 */
+	public TgaFrameSink(String filename) {
+		super(filename);
+	}
+	
+	@Override
+	protected void writeHeader(OutputStream out, int width, int height) throws IOException {
+		RenderTga.writeTGAHeader(out, width, height);
+	}
+	
+	@Override
+	protected void writeRows(OutputStream out, byte[] pixels, int width, int rows) throws IOException {
+		out.write(pixels, 0, 3 * width * rows);
+	}
+}
@@ -0,0 +1,34 @@
+package render;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streams a run-length encoded TGA file band by band.
+ * The rows of each band are encoded in parallel, then written in order.
+ * 
+ * @author KepsyIn
+ */
+public class TgaRleFrameSink extends TgaStreamSink {
+	
+	/**
+	 * Creates a sink writing to a file.
+	 * 
+	 * @param filename The filename
+	 */
+	public TgaRleFrameSink(String filename) {
+		super(filename);
+	}
+	
+	@Override
+	protected void writeHeader(OutputStream out, int width, int height) throws IOException {
+		RenderTga.writeTGAHeader(out, RenderTga.IMAGE_TYPE_RLE, width, height);
+	}
+	
+	@Override
+	protected void writeRows(OutputStream out, byte[] pixels, int width, int rows) throws IOException {
+		for (byte[] encoded : RenderTgaRle.encodeRows(pixels, width, rows)) {
+			out.write(encoded);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package render;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Base of the sinks streaming a TGA file band by band: opens the file,
+ * checks that rows arrive in order and that the image is complete.
+ * Subclasses write the header and encode the rows.
+ * 
+ * @author KepsyIn
+ */
+public abstract class TgaStreamSink implements FrameSink {
+	
+	private static final int BUFFER_SIZE = 1 << 16;
+	
+	private final String filename;
+	
+	private OutputStream out;
+	private int width;
+	private int height;
+	private int nextRow;
+	
+	/**
+	 * Creates a sink writing to a file.
+	 * 
+	 * @param filename The filename
+	 */
+	protected TgaStreamSink(String filename) {
+		this.filename = filename;
+	}
+	
+	/**
+	 * Writes the TGA header of the image.
+	 * 
+	 * @param out The file stream
+	 * @param width Image width
+	 * @param height Image height
+	 * @throws IOException If I/O error occurs
+	 */
+	protected abstract void writeHeader(OutputStream out, int width, int height) throws IOException;
+	
+	/**
+	 * Writes the pixels of a band of full-width rows.
+	 * 
+	 * @param out The file stream
+	 * @param pixels Band buffer (3 bytes per pixel: Blue, Green, Red)
+	 * @param width Image width
+	 * @param rows Number of rows in the band
+	 * @throws IOException If I/O error occurs
+	 */
+	protected abstract void writeRows(OutputStream out, byte[] pixels, int width, int rows) throws IOException;
+	
+	@Override
+	public void begin(int width, int height) throws IOException {
+		this.width = width;
+		this.height = height;
+		this.nextRow = 0;
+		this.out = new BufferedOutputStream(new FileOutputStream(filename), BUFFER_SIZE);
+		try {
+			writeHeader(out, width, height);
+		} catch (IOException | RuntimeException e) {
+			out.close();
+			throw e;
+		}
+	}
+	
+	@Override
+	public void writeRows(int y, int rows, byte[] pixels) throws IOException {
+		if (y != nextRow) {
+			throw new IOException("TGA rows must be written in order: expected row " + nextRow + " but got " + y);
+		}
+		writeRows(out, pixels, width, rows);
+		nextRow += rows;
+	}
+	
+	@Override
+	public void finish() throws IOException {
+		try {
+			if (nextRow != height) {
+				throw new IOException("TGA image incomplete: " + nextRow + " of " + height + " rows written");
+			}
+			out.flush();
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Closes the file, the incomplete image is left on disk.
+	 */
+	@Override
+	public void abort() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			// The rendering error is reported instead
+		}
+	}
+}
@@ -0,0 +1,376 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import demo.SceneContainer;
+import parser.SceneBuilder;
+import parser.SceneParser;
+import raytracing.Scene;
+import render.RenderPng;
+import render.RenderTga;
+import utils.LatencyHistogram;
+
+/**
+ * HTTP render service on the JDK HTTP server.
+ * <pre>
+ * GET  /render?scene=2&amp;width=256&amp;height=192&amp;samples=1&amp;format=png   demo scene
+ * POST /render?width=256&amp;height=192                              scene text in the body
+ * GET  /stats                                                    counts and latencies (JSON)
+ * </pre>
+ * Requests are handled on virtual threads when the JVM has them (JDK 21
+ * and later), on a cached thread pool otherwise. They only wait: scenes
+ * are parsed, traced and encoded on a fixed pool of CPU threads with a
+ * bounded queue. When the queue is full the request is answered at once
+ * with 429 Too Many Requests instead of piling up, so latency stays
+ * bounded under overload.
+ * The end to end latency of the rendered requests and their wait in the
+ * queue are kept in histograms, reported by /stats.
+ *
+ * @author KepsyIn
+ */
+public class RenderServer {
+
+	public static final int DEFAULT_PORT = 8080;
+	public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+	public static final int DEFAULT_WIDTH = 256;
+	public static final int DEFAULT_HEIGHT = 192;
+
+	// Limits of a single request
+	private static final long MAX_PIXELS = 4096L * 4096;
+	private static final int MAX_SAMPLES = 8;
+	private static final int MAX_SCENE_BYTES = 16 << 20;
+
+	private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+	private final HttpServer http;
+	private final ExecutorService requests;
+	private final boolean virtualThreads;
+	private final ThreadPoolExecutor renderers;
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LatencyHistogram queueWait = new LatencyHistogram();
+	private final LongAdder rendered = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+
+	/**
+	 * Creates a render server, not started.
+	 *
+	 * @param port The port, 0 for any free port
+	 * @param threads Number of rendering threads
+	 * @param queueCapacity Requests waiting for a rendering thread before new ones are refused
+	 * @throws IOException If the port cannot be bound
+	 */
+	public RenderServer(int port, int threads, int queueCapacity) throws IOException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive: " + threads);
+		}
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("queue capacity must be positive: " + queueCapacity);
+		}
+		ExecutorService virtual = newVirtualThreadExecutor();
+		this.virtualThreads = virtual != null;
+		this.requests = virtual != null ? virtual : Executors.newCachedThreadPool(daemon("render-request"));
+		this.renderers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), daemon("render-cpu"), new ThreadPoolExecutor.AbortPolicy());
+
+		this.http = HttpServer.create(new InetSocketAddress(port), 0);
+		http.createContext("/render", this::handleRender);
+		http.createContext("/stats", this::handleStats);
+		http.setExecutor(requests);
+	}
+
+	/**
+	 * Gets an executor starting a virtual thread per task.
+	 * Looked up by name, so the server builds and runs on JDK 17.
+	 *
+	 * @return The executor, or null if the JVM has no virtual threads
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static ThreadFactory daemon(String name) {
+		return task -> {
+			Thread thread = new Thread(task, name);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * Starts answering requests.
+	 */
+	public void start() {
+		http.start();
+	}
+
+	/**
+	 * Stops the server, requests in progress are dropped.
+	 */
+	public void stop() {
+		http.stop(0);
+		renderers.shutdownNow();
+		requests.shutdownNow();
+	}
+
+	/**
+	 * Gets the port the server listens on.
+	 *
+	 * @return The local port
+	 */
+	public int getPort() {
+		return http.getAddress().getPort();
+	}
+
+	/**
+	 * Tells whether requests run on virtual threads.
+	 *
+	 * @return false when the JVM has no virtual threads and a thread pool is used
+	 */
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Gets the end to end latency of the rendered requests.
+	 *
+	 * @return The latency histogram
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Gets the time the rendered requests waited for a rendering thread.
+	 *
+	 * @return The queue wait histogram
+	 */
+	public LatencyHistogram getQueueWait() {
+		return queueWait;
+	}
+
+	/**
+	 * Gets the number of requests refused because the queue was full.
+	 *
+	 * @return The rejected request count
+	 */
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	private void handleRender(HttpExchange exchange) throws IOException {
+		long start = System.nanoTime();
+		try (exchange) {
+			String method = exchange.getRequestMethod();
+			if (!method.equals("GET") && !method.equals("POST")) {
+				exchange.getResponseHeaders().set("Allow", "GET, POST");
+				sendText(exchange, 405, "use GET or POST\n");
+				return;
+			}
+
+			Request request;
+			try {
+				request = new Request(query(exchange), method.equals("POST") ? readBody(exchange.getRequestBody()) : null);
+			} catch (IllegalArgumentException e) {
+				sendText(exchange, 400, e.getMessage() + "\n");
+				return;
+			}
+
+			Future<byte[]> image;
+			try {
+				image = renderers.submit(() -> {
+					queueWait.record(System.nanoTime() - start);
+					return request.render();
+				});
+			} catch (RejectedExecutionException e) {
+				rejected.increment();
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				sendText(exchange, 429, "render queue full\n");
+				return;
+			}
+
+			byte[] body;
+			try {
+				body = image.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				boolean client = cause instanceof IOException || cause instanceof IllegalArgumentException;
+				failed.increment();
+				sendText(exchange, client ? 400 : 500, "scene not rendered: " + cause + "\n");
+				return;
+			} catch (InterruptedException e) {
+				image.cancel(true);
+				Thread.currentThread().interrupt();
+				return;
+			}
+
+			exchange.getResponseHeaders().set("Content-Type", request.png ? "image/png" : "image/x-tga");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+			rendered.increment();
+			latency.record(System.nanoTime() - start);
+		}
+	}
+
+	private void handleStats(HttpExchange exchange) throws IOException {
+		try (exchange) {
+			String json = String.format(Locale.ROOT,
+					"{\"virtualThreads\":%b,\"rendered\":%d,\"rejected\":%d,\"failed\":%d,\"queued\":%d,\"active\":%d,"
+					+ "\"latencyMillis\":%s,\"queueWaitMillis\":%s}\n",
+					virtualThreads, rendered.sum(), rejected.sum(), failed.sum(), renderers.getQueue().size(), renderers.getActiveCount(),
+					percentiles(latency), percentiles(queueWait));
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			byte[] body = json.getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		}
+	}
+
+	private static String percentiles(LatencyHistogram histogram) {
+		return String.format(Locale.ROOT, "{\"count\":%d,\"mean\":%.3f,\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"max\":%.3f}",
+				histogram.getCount(), histogram.getMean() / NANOS_PER_MILLI,
+				histogram.getPercentile(50) / NANOS_PER_MILLI, histogram.getPercentile(90) / NANOS_PER_MILLI,
+				histogram.getPercentile(99) / NANOS_PER_MILLI, histogram.getMax() / NANOS_PER_MILLI);
+	}
+
+	private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+		byte[] body = text.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private static Map<String, String> query(HttpExchange exchange) {
+		Map<String, String> parameters = new HashMap<>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query == null) {
+			return parameters;
+		}
+		for (String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+			String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+			parameters.put(name, value);
+		}
+		return parameters;
+	}
+
+	private static byte[] readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] chunk = new byte[8192];
+		for (int n; (n = in.read(chunk)) > 0; ) {
+			if (body.size() + n > MAX_SCENE_BYTES) {
+				throw new IllegalArgumentException("scene larger than " + MAX_SCENE_BYTES + " bytes");
+			}
+			body.write(chunk, 0, n);
+		}
+		return body.toByteArray();
+	}
+
+	/**
+	 * A checked render request, rendered on a CPU thread.
+	 */
+	private static final class Request {
+
+		final int sceneNumber;
+		final byte[] sceneText;
+		final int width;
+		final int height;
+		final int samples;
+		final boolean png;
+
+		Request(Map<String, String> parameters, byte[] sceneText) {
+			this.sceneText = sceneText;
+			this.sceneNumber = sceneText == null ? intParameter(parameters, "scene", 1, 1, SceneContainer.getTotalScenes()) : 0;
+			this.width = intParameter(parameters, "width", DEFAULT_WIDTH, 1, Integer.MAX_VALUE);
+			this.height = intParameter(parameters, "height", DEFAULT_HEIGHT, 1, Integer.MAX_VALUE);
+			this.samples = intParameter(parameters, "samples", 1, 1, MAX_SAMPLES);
+			if ((long) width * height > MAX_PIXELS) {
+				throw new IllegalArgumentException("image larger than " + MAX_PIXELS + " pixels");
+			}
+			String format = parameters.getOrDefault("format", "png");
+			if (!format.equals("png") && !format.equals("tga")) {
+				throw new IllegalArgumentException("format must be png or tga: " + format);
+			}
+			this.png = format.equals("png");
+		}
+
+		private static int intParameter(Map<String, String> parameters, String name, int defaultValue, int min, int max) {
+			String value = parameters.get(name);
+			if (value == null) {
+				return defaultValue;
+			}
+			try {
+				int n = Integer.parseInt(value);
+				if (n >= min && n <= max) {
+					return n;
+				}
+			} catch (NumberFormatException e) {
+				// reported below
+			}
+			throw new IllegalArgumentException(name + " must be an integer in [" + min + ", " + max + "]: " + value);
+		}
+
+		/**
+		 * Builds the scene, renders and encodes it.
+		 */
+		byte[] render() throws IOException {
+			Scene scene;
+			if (sceneText != null) {
+				// Mesh files would be read from the disk of the server
+				SceneBuilder builder = new SceneBuilder() {
+					@Override
+					public void mesh(String file, int material) throws IOException {
+						throw new IOException("meshes are not rendered by the server: " + file);
+					}
+				};
+				new SceneParser(new ByteArrayInputStream(sceneText), builder).parse();
+				scene = builder.getScene();
+			} else {
+				scene = SceneContainer.buildScene(sceneNumber);
+			}
+
+			byte[] image = scene.draw(width, height, samples);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(png ? image.length / 4 : image.length + 18);
+			if (png) {
+				new RenderPng().write(out, image, width, height);
+			} else {
+				new RenderTga().write(out, image, width, height);
+			}
+			return out.toByteArray();
+		}
+	}
+}
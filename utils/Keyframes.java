@@ -0,0 +1,81 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * Track of positions keyed by frame number, such as the path of the
+ * camera or of a model in an animation.
+ * Positions between two keys are interpolated linearly; before the first
+ * key and after the last one the track holds still.
+ *
+ * @author KepsyIn
+ */
+public class Keyframes {
+
+	private int[] frames = new int[4];
+	private float[] values = new float[3 * 4];
+	private int count;
+
+	/**
+	 * Adds a key after the existing ones.
+	 *
+	 * @param frame Frame number, greater than the frame of the previous key
+	 * @param value Position at this frame
+	 * @return This track
+	 * @throws IllegalArgumentException If the frame does not follow the previous key
+	 */
+	public Keyframes add(int frame, Vec3 value) {
+		if (count > 0 && frame <= frames[count - 1]) {
+			throw new IllegalArgumentException("key at frame " + frame + " after frame " + frames[count - 1]);
+		}
+		if (count == frames.length) {
+			frames = Arrays.copyOf(frames, 2 * count);
+			values = Arrays.copyOf(values, 6 * count);
+		}
+		frames[count] = frame;
+		values[3 * count] = value.x;
+		values[3 * count + 1] = value.y;
+		values[3 * count + 2] = value.z;
+		count++;
+		return this;
+	}
+
+	/**
+	 * Computes the position at a frame.
+	 *
+	 * @param frame Frame number, may fall between two keys
+	 * @param value Receives the position
+	 * @return The position
+	 * @throws IllegalStateException If the track has no key
+	 */
+	public Vec3 valueAt(double frame, Vec3 value) {
+		if (count == 0) {
+			throw new IllegalStateException("no keyframe");
+		}
+		if (frame <= frames[0]) {
+			return value.set(values[0], values[1], values[2]);
+		}
+		if (frame >= frames[count - 1]) {
+			int o = 3 * (count - 1);
+			return value.set(values[o], values[o + 1], values[o + 2]);
+		}
+		int k = 1;
+		while (frames[k] < frame) {
+			k++;
+		}
+		float t = (float) ((frame - frames[k - 1]) / (frames[k] - frames[k - 1]));
+		int a = 3 * (k - 1), b = 3 * k;
+		return value.set(values[a] + t * (values[b] - values[a]),
+				values[a + 1] + t * (values[b + 1] - values[a + 1]),
+				values[a + 2] + t * (values[b + 2] - values[a + 2]));
+	}
+
+	/**
+	 * Gets the number of keys.
+	 *
+	 * @return The key count
+	 */
+	public int size() {
+		return count;
+	}
+}